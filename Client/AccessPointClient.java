@@ -0,0 +1,284 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Connection to the TCP access point of a peer.
+*
+* Every message is a frame: [int length][int id][byte kind][payload],
+* where length counts the bytes after itself. Many requests can be in flight
+* on the same connection; replies are matched to requests by id.
+* Connections are reused: {@link #connect} returns the open connection to a peer if there is one.
+* Streamed restores arrive as DATA frames with the id of the request, ended by an END frame
+*/
+public class AccessPointClient implements Closeable {
+
+  /** Frame kind: request to the peer */
+  public static final byte REQUEST = 1;
+  /** Frame kind: reply from the peer */
+  public static final byte REPLY = 2;
+  /** Frame kind: data streamed for a request */
+  public static final byte DATA = 3;
+  /** Frame kind: end of the data streamed for a request */
+  public static final byte END = 4;
+
+  /** Size of the frame header after the length: id + kind */
+  public static final int HEADER_SIZE = 5;
+
+  /** Max length of a frame (as on the access point) */
+  public static final int MAX_FRAME = 1 << 20;
+
+  /** Open connections, by "address:port" */
+  private static HashMap<String, AccessPointClient> connections = new HashMap<String, AccessPointClient>();
+
+  /** "address:port" of the peer */
+  private String endpoint;
+
+  /** Socket of the connection */
+  private Socket socket;
+
+  /** Output stream of the socket */
+  private DataOutputStream output;
+
+  /** Input stream of the socket */
+  private DataInputStream input;
+
+  /** Id of the next request */
+  private AtomicInteger nextId = new AtomicInteger(1);
+
+  /** Requests waiting for their reply, by id */
+  private ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+
+  /** Where the data of streamed requests goes, by id */
+  private ConcurrentHashMap<Integer, OutputStream> streams = new ConcurrentHashMap<Integer, OutputStream>();
+
+  /** Streamed requests waiting for their END, by id */
+  private ConcurrentHashMap<Integer, CompletableFuture<String>> ends = new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+
+  /**
+  * Returns a connection to a peer, opening it if needed
+  *
+  * @param address Address of the peer access point
+  * @param port Port of the peer access point
+  *
+  * @return Connection
+  *
+  * @throws IOException If the connection can't be opened
+  */
+  public static synchronized AccessPointClient connect(String address, int port) throws IOException {
+
+    String endpoint = address + ":" + port;
+
+    AccessPointClient client = connections.get(endpoint);
+
+    if (client == null || client.socket.isClosed()) {
+      client = new AccessPointClient(endpoint, new Socket(address, port));
+      connections.put(endpoint, client);
+    }
+
+    return client;
+  }
+
+  /**
+  * Constructor
+  *
+  * @param endpoint {@link #endpoint}
+  * @param socket {@link #socket}
+  *
+  * @throws IOException If the streams can't be opened
+  */
+  private AccessPointClient(String endpoint, Socket socket) throws IOException {
+
+    this.endpoint = endpoint;
+    this.socket = socket;
+
+    socket.setTcpNoDelay(true);
+
+    output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+    Thread reader = new Thread(this::readReplies);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+  * Sends a request without waiting for the reply
+  *
+  * @param request Request, e.g. "BACKUP testing/a.bin 2"
+  *
+  * @return Reply, completed when it arrives
+  *
+  * @throws IOException If the request can't be sent
+  */
+  public CompletableFuture<String> send(String request) throws IOException {
+    return send(nextId.getAndIncrement(), request);
+  }
+
+  /**
+  * Sends a request whose data is streamed back, e.g. "RESTORE testing/a.bin STREAM".
+  * The data is written by the reading thread, so a slow output slows the peer down
+  *
+  * @param request Request
+  * @param output Where the data goes
+  *
+  * @return "ok" or "failed", completed when the stream ends
+  *
+  * @throws IOException If the request can't be sent
+  */
+  public CompletableFuture<String> stream(String request, OutputStream output) throws IOException {
+
+    int id = nextId.getAndIncrement();
+
+    CompletableFuture<String> end = new CompletableFuture<String>();
+
+    streams.put(id, output);
+    ends.put(id, end);
+
+    // an error reply ends the stream too
+    send(id, request).thenAccept(reply -> {
+      if (reply.startsWith("error")) {
+        streams.remove(id);
+        CompletableFuture<String> pendingEnd = ends.remove(id);
+        if (pendingEnd != null) {
+          pendingEnd.complete(reply);
+        }
+      }
+    });
+
+    return end;
+  }
+
+  /**
+  * Sends a request with a given id
+  *
+  * @param id Id of the request
+  * @param request Request
+  *
+  * @return Reply, completed when it arrives
+  *
+  * @throws IOException If the request can't be sent
+  */
+  private CompletableFuture<String> send(int id, String request) throws IOException {
+
+    CompletableFuture<String> reply = new CompletableFuture<String>();
+
+    pending.put(id, reply);
+
+    byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+
+    synchronized (output) {
+      output.writeInt(HEADER_SIZE + payload.length);
+      output.writeInt(id);
+      output.writeByte(REQUEST);
+      output.write(payload);
+      output.flush();
+    }
+
+    return reply;
+  }
+
+  /**
+  * Sends a request and waits for the reply
+  *
+  * @param request Request, e.g. "STATUS 3"
+  *
+  * @return Reply
+  *
+  * @throws Exception If the request fails
+  */
+  public String request(String request) throws Exception {
+    return send(request).get();
+  }
+
+  /**
+  * Reads replies until the connection closes
+  */
+  private void readReplies() {
+
+    try {
+      while (true) {
+
+        int length = input.readInt();
+
+        // a broken stream, fail the requests instead of allocating whatever it says
+        if (length < HEADER_SIZE || length > MAX_FRAME) {
+          throw new IOException("bad frame length " + length);
+        }
+
+        int id = input.readInt();
+        byte kind = input.readByte();
+
+        byte[] payload = new byte[length - HEADER_SIZE];
+        input.readFully(payload);
+
+        switch (kind) {
+
+          case REPLY: {
+            CompletableFuture<String> reply = pending.remove(id);
+            if (reply != null) {
+              reply.complete(new String(payload, StandardCharsets.UTF_8));
+            }
+            break;
+          }
+
+          case DATA: {
+            OutputStream output = streams.get(id);
+            if (output != null) {
+              output.write(payload);
+            }
+            break;
+          }
+
+          case END: {
+            OutputStream output = streams.remove(id);
+            if (output != null) {
+              output.flush();
+            }
+            CompletableFuture<String> end = ends.remove(id);
+            if (end != null) {
+              end.complete(new String(payload, StandardCharsets.UTF_8));
+            }
+            break;
+          }
+
+          default:
+            break;
+        }
+      }
+    }
+    catch (IOException e) {
+
+      // fail every request still waiting
+      for (CompletableFuture<String> reply : pending.values()) {
+        reply.completeExceptionally(e);
+      }
+
+      for (CompletableFuture<String> end : ends.values()) {
+        end.completeExceptionally(e);
+      }
+
+      pending.clear();
+      ends.clear();
+      streams.clear();
+
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+
+    synchronized (AccessPointClient.class) {
+      connections.remove(endpoint, this);
+    }
+
+    try {
+      socket.close();
+    }
+    catch (IOException e) {}
+  }
+}
@@ -6,12 +6,6 @@ public class Client {
 
   private static String address;
   private static int port;
-  protected static int bufferSize;
-  protected static boolean open = true;
-  protected static DatagramSocket socket;
-  protected static InetAddress inetAddress;
-
-  private static int BUFFER_SIZE = 256;
 
   /**
   * Entry point of the program
@@ -26,43 +20,35 @@ public class Client {
     address = add[0];
     port = Integer.parseInt(add[1]);
 
+    String request = "";
+    for (int i = 1; i < args.length; i++) {
+      if (i == args.length - 1) {
+        request += args[i];
+      } else {
+        request += args[i] + " ";
+      }
+    }
+
     try {
-      // get a datagram socket
-      DatagramSocket socket = new DatagramSocket();
+      AccessPointClient client = AccessPointClient.connect(address, port);
 
-      //get inet address
-      InetAddress inetAddress = InetAddress.getByName(address);
+      // streamed restore: data goes to the standard output
+      if (args[1].equals("RESTORE") && Arrays.asList(args).contains("STREAM")) {
 
-      // initialize buffer
-      byte[] buffer = new byte[BUFFER_SIZE];
+        String end = client.stream(request, System.out).get();
 
-      String request = "";
-      for (int i = 1; i < args.length; i++) {
-        if (i == args.length - 1) {
-          request += args[i];
-        } else {
-          request += args[i] + " ";
-        }
+        System.err.println("Server reply: " + end);
+        return;
       }
 
-      // send request
-      buffer = request.getBytes();
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, inetAddress, port);
-      socket.send(packet);
-
-      // reset buffer
-      buffer = new byte[BUFFER_SIZE];
-
-      // get response
-      packet = new DatagramPacket(buffer, buffer.length);
-      socket.receive(packet);
+      // send request to the TCP access point and wait for the response
+      String reply = client.request(request);
 
       // display response
-      String reply = new String(packet.getData(), 0, packet.getLength());
       System.out.println("Server reply: " + reply);
-
-      socket.close();
     }
-    catch (Exception e) {}
+    catch (Exception e) {
+      System.out.println("Error: " + e);
+    }
   }
 }
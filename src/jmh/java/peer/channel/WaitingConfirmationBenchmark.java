@@ -0,0 +1,174 @@
+package peer.channel;
+
+import peer.*;
+import peer.file.*;
+import peer.message.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Handling of the STOREDs (and STOREDCHUNKS) received on the control channel by {@link ControlChannelListener#handler}:
+* replication tracking, lookup of the confirmed PUTCHUNK in {@link ControlChannelListener#getWaitingConfirmation} and its update,
+* with as many PUTCHUNKs in flight as backups usually have.
+*
+* The messages are parsed from the bytes a storage peer sends. The PUTCHUNKs ask for more replicas than there are senders,
+* so they keep waiting and every run handles the same state
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WaitingConfirmationBenchmark {
+
+  /** File id of the PUTCHUNKs */
+  private static final String FILE_ID = "92200DA3F4C914B80262A17F18BDCAE3D3087AEAE10326472DED4DF53B1BFCA3";
+
+  /** File id no PUTCHUNK waits for (STOREDs of other peers' chunks) */
+  private static final String OTHER_FILE_ID = "A1B2C3D4E5F60718293A4B5C6D7E8F90A1B2C3D4E5F60718293A4B5C6D7E8F90";
+
+  /** Ids of the peers sending the STOREDs */
+  private static final String[] SENDERS = {"2", "3", "4", "5"};
+
+  /** Desired replication degree of the PUTCHUNKs, above the number of senders */
+  private static final String REP_DEG = "9";
+
+  /** Number of PUTCHUNKs waiting for STOREDs (one backup window, several backups, a large backup) */
+  @Param({"32", "256", "4096"})
+  public int inflight;
+
+  /** STOREDs of the waiting PUTCHUNKs */
+  private Message[] stored;
+
+  /** STOREDs no PUTCHUNK waits for */
+  private Message[] otherStored;
+
+  /** STOREDCHUNKS confirming a backup window of the waiting PUTCHUNKs each */
+  private Message[] storedChunks;
+
+  /** Listener holding the waiting queue (never started) */
+  private ControlChannelListener listener;
+
+  /**
+  * Fills the waiting queue and parses the confirmations
+  */
+  @Setup
+  public void setup() {
+
+    Peer peer = new Peer("224.0.0.1:8001", "224.0.0.2:8002", "224.0.0.3:8003", Peer.ENHANCED_VERSION, "1", "localhost:9001");
+
+    listener = new ControlChannelListener(peer);
+
+    HashMap<String, PutChunkMessage> waitingConfirmation = listener.getWaitingConfirmation();
+
+    stored = new Message[inflight];
+    otherStored = new Message[inflight];
+
+    synchronized (waitingConfirmation) {
+
+      for (int i = 0; i < inflight; i++) {
+
+        String chunkNo = Integer.toString(i);
+
+        PutChunkMessage msg = new PutChunkMessage(FILE_ID, chunkNo, REP_DEG, new byte[0]);
+
+        waitingConfirmation.put(msg.getChunkName(), msg);
+
+        stored[i] = parse(new StoredMessage(FILE_ID, chunkNo), SENDERS[i % SENDERS.length]);
+        otherStored[i] = parse(new StoredMessage(OTHER_FILE_ID, chunkNo), SENDERS[i % SENDERS.length]);
+      }
+    }
+
+    storedChunks = new Message[Math.max(1, inflight / BackupSession.WINDOW)];
+
+    for (int i = 0; i < storedChunks.length; i++) {
+
+      BitSet chunks = new BitSet();
+
+      chunks.set(i * BackupSession.WINDOW, Math.min(inflight, (i + 1) * BackupSession.WINDOW));
+
+      storedChunks[i] = parse(new StoredChunksMessage(FILE_ID, chunks), SENDERS[i % SENDERS.length]);
+    }
+  }
+
+  /**
+  * Leaves the control channel
+  */
+  @TearDown
+  public void tearDown() {
+    listener.close();
+  }
+
+  /**
+  * Turns a message into the one received from a storage peer
+  *
+  * @param msg Message sent
+  * @param senderId {@link MessageHeader#senderId}
+  *
+  * @return Message parsed from the bytes sent
+  */
+  private static Message parse(Message msg, String senderId) {
+
+    msg.setSenderId(senderId);
+    msg.setVersion(Peer.ENHANCED_VERSION);
+
+    return Message.parser(msg.toBytes());
+  }
+
+  /**
+  * Position of the next message, per thread
+  */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    /** Next message */
+    int next = 0;
+  }
+
+  /**
+  * Handles a STORED confirming a waiting PUTCHUNK
+  *
+  * @param cursor {@link Cursor}
+  */
+  @Benchmark
+  public void stored(Cursor cursor) {
+    listener.handler(stored[cursor.next++ % stored.length]);
+  }
+
+  /**
+  * Handles a STORED of a chunk this peer isn't backing up
+  *
+  * @param cursor {@link Cursor}
+  */
+  @Benchmark
+  public void storedMiss(Cursor cursor) {
+    listener.handler(otherStored[cursor.next++ % otherStored.length]);
+  }
+
+  /**
+  * Handles a STORED confirming a waiting PUTCHUNK, while other threads do the same
+  * (like the channel listeners, messengers and timers sharing the lock)
+  *
+  * @param cursor {@link Cursor}
+  */
+  @Benchmark
+  @Threads(4)
+  public void storedContended(Cursor cursor) {
+    listener.handler(stored[cursor.next++ % stored.length]);
+  }
+
+  /**
+  * Handles a STOREDCHUNKS confirming a backup window of waiting PUTCHUNKs
+  *
+  * @param cursor {@link Cursor}
+  */
+  @Benchmark
+  public void storedChunks(Cursor cursor) {
+    listener.handler(storedChunks[cursor.next++ % storedChunks.length]);
+  }
+}
@@ -0,0 +1,76 @@
+package peer.file;
+
+import peer.message.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Compressing and decompressing chunk bodies
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+
+  /** Words making up the text chunks */
+  private static final String[] WORDS = {"chunk", "peer", "backup", "restore", "the", "of", "a", "file", "message", "stored"};
+
+  /** Contents of the chunk: "text" compresses well, "random" is given up on early */
+  @Param({"text", "random"})
+  public String content;
+
+  /** Chunk body */
+  private byte[] body;
+
+  /** Compressed text chunk */
+  private byte[] compressed;
+
+  /**
+  * Creates the chunk bodies
+  */
+  @Setup
+  public void setup() {
+
+    Random random = new Random(0);
+
+    StringBuilder text = new StringBuilder();
+
+    while (text.length() < Message.CHUNK_SIZE) {
+      text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+    }
+
+    byte[] textBody = Arrays.copyOf(text.toString().getBytes(), Message.CHUNK_SIZE);
+
+    compressed = ChunkCodec.compress(textBody);
+
+    if (content.equals("text")) {
+      body = textBody;
+    }
+    else {
+      body = new byte[Message.CHUNK_SIZE];
+      random.nextBytes(body);
+    }
+  }
+
+  /**
+  * Compresses a 64KB chunk
+  */
+  @Benchmark
+  public byte[] compress() {
+    return ChunkCodec.compress(body);
+  }
+
+  /**
+  * Decompresses a 64KB text chunk
+  */
+  @Benchmark
+  public byte[] decompress() {
+    return ChunkCodec.decompress(compressed);
+  }
+}
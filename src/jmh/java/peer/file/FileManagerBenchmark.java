@@ -0,0 +1,118 @@
+package peer.file;
+
+import peer.*;
+import peer.message.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Storing and reading chunks, and hashing file ids
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileManagerBenchmark {
+
+  /** Number of distinct chunks stored and read in turn */
+  private static final int NCHUNKS = 64;
+
+  /** {@link Peer#isDedup} */
+  @Param({"false", "true"})
+  public boolean dedup;
+
+  /** Directory holding the chunks and the file to hash, deleted after the run */
+  private Path directory;
+
+  /** PUTCHUNKs of the stored chunks */
+  private PutChunkMessage[] chunks = new PutChunkMessage[NCHUNKS];
+
+  /** Path of a file to get the id of */
+  private String filepath;
+
+  /** Next chunk to store or read */
+  private int next = 0;
+
+  /** File manager being measured */
+  private FileManager fileManager;
+
+  /**
+  * Stores the chunks in a temporary directory
+  */
+  @Setup
+  public void setup() throws IOException {
+
+    directory = Files.createTempDirectory("peer-bench");
+
+    // never started, only its storage is used
+    Peer peer = new Peer("224.0.0.1:8001", "224.0.0.2:8002", "224.0.0.3:8003", Peer.ENHANCED_VERSION, "1", "localhost:9001");
+
+    peer.setChunksPath(directory + File.separator);
+    peer.setDedup(dedup);
+
+    fileManager = new FileManager(peer);
+
+    Random random = new Random(0);
+
+    for (int i = 0; i < NCHUNKS; i++) {
+
+      byte[] body = new byte[Message.CHUNK_SIZE];
+      random.nextBytes(body);
+
+      chunks[i] = new PutChunkMessage("A1B2C3", Integer.toString(i), "1", body);
+
+      fileManager.store(chunks[i]);
+    }
+
+    byte[] content = new byte[1000000];
+    random.nextBytes(content);
+
+    filepath = Files.write(directory.resolve("file.bin"), content).toString();
+  }
+
+  /**
+  * Deletes the temporary directory
+  */
+  @TearDown
+  public void tearDown() throws IOException {
+
+    File[] files = directory.toFile().listFiles();
+
+    for (File file : files) {
+      file.delete();
+    }
+
+    Files.delete(directory);
+  }
+
+  /**
+  * Stores a 64KB chunk (again)
+  */
+  @Benchmark
+  public void store() {
+    fileManager.store(chunks[next++ % NCHUNKS]);
+  }
+
+  /**
+  * Reads a 64KB chunk
+  */
+  @Benchmark
+  public byte[] readChunk() {
+    return fileManager.readChunk("A1B2C3", chunks[next++ % NCHUNKS].getChunkNo());
+  }
+
+  /**
+  * Gets the id of a file
+  */
+  @Benchmark
+  public String getFileId() {
+    return fileManager.getFileId(filepath);
+  }
+}
@@ -0,0 +1,114 @@
+package peer.message;
+
+import peer.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Encoding and decoding of each message type
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+  /** File id of the messages (a SHA-256 in hex, as sent by peers) */
+  private static final String FILE_ID = "92200DA3F4C914B80262A17F18BDCAE3D3087AEAE10326472DED4DF53B1BFCA3";
+
+  /** {@link MessageHeader#type} of the message */
+  @Param({"PUTCHUNK", "STORED", "GETCHUNK", "GETCHUNKS", "CHUNK", "DELETE", "REMOVED", "STOREDCHUNKS"})
+  public String type;
+
+  /** Message to encode */
+  private Message message;
+
+  /** Encoded message, as received */
+  private byte[] datagram;
+
+  /** Parsed message */
+  private Message parsed;
+
+  /**
+  * Creates the message
+  */
+  @Setup
+  public void setup() {
+
+    // full chunks
+    byte[] body = new byte[Message.CHUNK_SIZE];
+    new Random(0).nextBytes(body);
+
+    // a range with a few gaps, as resent by restores
+    BitSet chunks = new BitSet();
+    chunks.set(0, 200);
+    chunks.clear(57);
+    chunks.clear(120, 125);
+
+    switch (type) {
+      case "PUTCHUNK":
+        message = new PutChunkMessage(FILE_ID, "17", "3", body);
+        break;
+      case "STORED":
+        message = new StoredMessage(FILE_ID, "17");
+        break;
+      case "GETCHUNK":
+        message = new GetChunkMessage(FILE_ID, "17");
+        break;
+      case "GETCHUNKS":
+        message = new GetChunksMessage(FILE_ID);
+        message.setChunks("0-56,58-119,125-199");
+        break;
+      case "CHUNK":
+        message = new ChunkMessage(FILE_ID, "17", body);
+        break;
+      case "DELETE":
+        message = new DeleteMessage(FILE_ID);
+        break;
+      case "REMOVED":
+        message = new RemovedMessage(FILE_ID, "17");
+        break;
+      case "STOREDCHUNKS":
+        message = new StoredChunksMessage(FILE_ID, chunks);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown message type " + type);
+    }
+
+    // stamped by the sending peer
+    message.setVersion(Peer.ENHANCED_VERSION);
+    message.setSenderId("1");
+
+    datagram = message.toBytes();
+    parsed = Message.parser(datagram);
+  }
+
+  /**
+  * Parses a received datagram
+  */
+  @Benchmark
+  public Message parser() {
+    return Message.parser(datagram);
+  }
+
+  /**
+  * Encodes a message to send
+  */
+  @Benchmark
+  public byte[] toBytes() {
+    return message.toBytes();
+  }
+
+  /**
+  * Gets the body length of a received message (done for every received message)
+  */
+  @Benchmark
+  public int getBodyLength() {
+    return parsed.getBodyLength();
+  }
+}
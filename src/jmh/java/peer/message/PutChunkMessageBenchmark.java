@@ -0,0 +1,59 @@
+package peer.message;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Registering the STOREDs of a PUTCHUNK
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutChunkMessageBenchmark {
+
+  /** Number of peers confirming the chunk */
+  @Param({"1", "3", "9"})
+  public int savers;
+
+  /** Ids of the confirming peers */
+  private String[] ids;
+
+  /**
+  * Creates the peer ids
+  */
+  @Setup
+  public void setup() {
+
+    ids = new String[savers];
+
+    for (int i = 0; i < savers; i++) {
+      ids[i] = Integer.toString(i + 2);
+    }
+  }
+
+  /**
+  * Registers each saver twice (every STORED is also seen again in STOREDCHUNKS or resends),
+  * on a new message each time
+  */
+  @Benchmark
+  public PutChunkMessage addSaver() {
+
+    PutChunkMessage msg = new PutChunkMessage("A1B2C3", "0", Integer.toString(savers), new byte[0]);
+
+    for (String id : ids) {
+      if (msg.addSaver(id)) {
+        msg.addActualRepDeg();
+      }
+    }
+
+    for (String id : ids) {
+      msg.addSaver(id);
+    }
+
+    return msg;
+  }
+}
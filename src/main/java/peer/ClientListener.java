@@ -1,5 +1,7 @@
 package peer;
 
+import peer.log.*;
+
 import java.io.*;
 import java.net.*;
 import java.util.*;
@@ -9,6 +11,8 @@ import java.util.*;
 */
 public class ClientListener implements Runnable {
 
+  /** Handles the requests */
+  private RequestHandler handler;
   private String address;
   private int port;
   protected int bufferSize;
@@ -17,8 +21,9 @@ public class ClientListener implements Runnable {
   protected InetAddress inetAddress;
     private static int BUFFER_SIZE = 256;
 
-  public ClientListener(String address, String port) {
+  public ClientListener(RequestHandler handler, String address, String port) {
 
+    this.handler = handler;
     this.address = address;
     this.port = Integer.parseInt(port);
 
@@ -45,39 +50,12 @@ public class ClientListener implements Runnable {
         // turn the request buffer into a readable string
         String requestString = new String(packet.getData(), 0, packet.getLength());
 
-        System.out.println("Request: " + requestString);
-
-        String[] args = requestString.split(" ");
-
-        String op = args[0];
-
-        switch (op) {
-
-          case "BACKUP":
-            Peer.backup(args[1], args[2]);
-            break;
-
-          case "DELETE":
-            Peer.deleteFile(args[1]);
-            break;
-
-          case "RESTORE":
-            Peer.restore(args[1]);
-            break;
-
-          case "RECLAIM":
-            // TODO
-            break;
-
-          default:
-            break;
-
-        }
+        Log.info("Request: " + requestString);
 
-        // figure out reply
-        String reply = "ok";
+        // jobs run in the background, so the reply is immediate
+        String reply = handler.handle(requestString);
 
-        System.out.println("Reply: " + reply);
+        Log.info("Reply: " + reply);
 
         // turn the reply string into bytes
         buffer = reply.getBytes();
@@ -0,0 +1,83 @@
+package peer;
+
+import peer.file.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Streams a restore, in file order, to a client of the {@link TcpAccessPoint}
+* as DATA frames, ended by an END frame.
+*
+* No more chunks are requested while the client has more than
+* {@link #MAX_PENDING} bytes still to take
+*/
+public class ConnectionSink extends OrderedSink {
+
+  /** Max number of bytes waiting to be written to the client before requests stop */
+  public static final long MAX_PENDING = 4 * TcpAccessPoint.LOW_WATER;
+
+  /** Connection of the client */
+  private TcpAccessPoint.Connection connection;
+
+  /** Id of the RESTORE request */
+  private int id;
+
+  /** Registered on the connection to go on (or stop) when it catches up (or closes) */
+  private Runnable drainListener = this::drained;
+
+  /**
+  * Constructor
+  *
+  * @param connection {@link #connection}
+  * @param id {@link #id}
+  */
+  public ConnectionSink(TcpAccessPoint.Connection connection, int id) {
+    this.connection = connection;
+    this.id = id;
+  }
+
+  @Override
+  public void open(RestoreSession session) throws IOException {
+
+    super.open(session);
+
+    connection.addDrainListener(drainListener);
+  }
+
+  @Override
+  protected void emit(byte[] body) throws IOException {
+
+    if (!connection.isOpen()) {
+      throw new IOException("client connection closed");
+    }
+
+    connection.send(id, TcpAccessPoint.DATA, body);
+  }
+
+  @Override
+  protected boolean isBackedUp() {
+    return connection.getPendingBytes() > MAX_PENDING;
+  }
+
+  @Override
+  public void close(boolean success) {
+
+    connection.removeDrainListener(drainListener);
+
+    connection.send(id, TcpAccessPoint.END, (success ? "ok" : "failed").getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+  * Called when the connection catches up or closes
+  */
+  private void drained() {
+
+    if (!connection.isOpen()) {
+      session.abort();
+    }
+    else {
+      session.resume();
+    }
+  }
+}
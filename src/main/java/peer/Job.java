@@ -0,0 +1,176 @@
+package peer;
+
+import peer.file.*;
+import peer.log.*;
+
+/**
+* A client request (BACKUP, RESTORE, DELETE, RECLAIM) running in the background.
+* Clients get its id right away and follow it with the STATUS sub protocol
+*/
+public class Job implements Runnable {
+
+  /** Waiting for a free slot in {@link JobManager} */
+  public static final String QUEUED = "QUEUED";
+  /** Running */
+  public static final String RUNNING = "RUNNING";
+  /** Ended successfully */
+  public static final String DONE = "DONE";
+  /** Ended with an error */
+  public static final String FAILED = "FAILED";
+
+  /**
+  * Work done by a job
+  */
+  public interface Task {
+
+    /**
+    * Does the work, reporting progress to the job
+    *
+    * @param job Job running the task
+    *
+    * @return TRUE if successful
+    *
+    * @throws Exception If the work can't be done
+    */
+    boolean run(Job job) throws Exception;
+  }
+
+  /** Id of the job, given by {@link JobManager} */
+  private int id;
+
+  /** Request that created the job */
+  private String description;
+
+  /** Work to do */
+  private Task task;
+
+  /** QUEUED, RUNNING, DONE or FAILED */
+  private volatile String status = QUEUED;
+
+  /** Progress of the work. null if not reported */
+  private volatile JobProgress progress;
+
+  /** Outcome of the work, if any */
+  private volatile String result = "";
+
+  /** Time (in milliseconds) the job started running */
+  private volatile long startTime = 0;
+
+  /** Time (in milliseconds) the job ended */
+  private volatile long endTime = 0;
+
+  /**
+  * Constructor
+  *
+  * @param id {@link #id}
+  * @param description {@link #description}
+  * @param task {@link #task}
+  */
+  public Job(int id, String description, Task task) {
+    this.id = id;
+    this.description = description;
+    this.task = task;
+  }
+
+  @Override
+  public void run() {
+
+    startTime = System.currentTimeMillis();
+    status = RUNNING;
+
+    boolean success = false;
+
+    try {
+      success = task.run(this);
+    }
+    catch (Exception e) {
+      Log.error("Job " + id + ": Error running " + description + ": " + e);
+      result = e.toString();
+    }
+
+    endTime = System.currentTimeMillis();
+    status = success ? DONE : FAILED;
+  }
+
+  /**
+  * Setter
+  *
+  * @param progress {@link #progress}
+  */
+  public void setProgress(JobProgress progress) {
+    this.progress = progress;
+  }
+
+  /**
+  * Setter
+  *
+  * @param result {@link #result}
+  */
+  public void setResult(String result) {
+    this.result = result;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #id}
+  */
+  public int getId() {
+    return id;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #status}
+  */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+  * Checks if the job ended
+  *
+  * @return TRUE if DONE or FAILED
+  */
+  public boolean isFinished() {
+    return status == DONE || status == FAILED;
+  }
+
+  /**
+  * Describes the job, for the STATUS sub protocol
+  *
+  * @return "id description status [chunks done/total bytes done/total rate KB/s eta s] [result]"
+  */
+  public String state() {
+
+    String state = id + " " + description + " " + status;
+
+    JobProgress current = progress;
+
+    if (current != null) {
+
+      long elapsed = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+
+      long bytesDone = current.getBytesDone();
+      long bytesTotal = current.getBytesTotal();
+
+      // bytes per millisecond = KB per second
+      double rate = elapsed > 0 ? bytesDone / (double)elapsed : 0;
+
+      state += " chunks " + current.getChunksDone() + "/" + (current.getChunksTotal() < 0 ? "?" : current.getChunksTotal())
+        + " bytes " + bytesDone + "/" + bytesTotal
+        + " " + String.format("%.0f", rate) + " KB/s";
+
+      if (!isFinished() && rate > 0) {
+        state += " eta " + String.format("%.1f", (bytesTotal - bytesDone) / rate / 1000) + "s";
+      }
+    }
+
+    if (!result.isEmpty()) {
+      state += " " + result;
+    }
+
+    return state;
+  }
+}
@@ -0,0 +1,120 @@
+package peer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Runs the jobs of a peer, at most {@link #limit} at the same time.
+* Finished jobs are kept (up to {@link #MAX_FINISHED}) so clients can still ask for their status
+*/
+public class JobManager {
+
+  /** Default {@link #limit} */
+  public static final int DEFAULT_LIMIT = 4;
+
+  /** Max number of finished jobs kept */
+  public static final int MAX_FINISHED = 256;
+
+  /** Max number of jobs running at the same time. Set with --jobs N */
+  private int limit = DEFAULT_LIMIT;
+
+  /** Runs the jobs. Created on first use */
+  private ExecutorService executor = null;
+
+  /** Id of the next job */
+  private AtomicInteger nextId = new AtomicInteger(1);
+
+  /** Jobs, by id */
+  private ConcurrentSkipListMap<Integer, Job> jobs = new ConcurrentSkipListMap<Integer, Job>();
+
+  /**
+  * Setter. Only takes effect before the first job
+  *
+  * @param limit {@link #limit}
+  */
+  public synchronized void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+  * Queues a new job
+  *
+  * @param description Request that created the job
+  * @param task Work to do
+  *
+  * @return Queued job
+  */
+  public synchronized Job submit(String description, Job.Task task) {
+
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(limit);
+    }
+
+    forgetFinished();
+
+    Job job = new Job(nextId.getAndIncrement(), description, task);
+
+    jobs.put(job.getId(), job);
+
+    executor.execute(job);
+
+    return job;
+  }
+
+  /**
+  * Returns a job
+  *
+  * @param id {@link Job#id}
+  *
+  * @return Job. null if unknown
+  */
+  public Job get(int id) {
+    return jobs.get(id);
+  }
+
+  /**
+  * Returns every known job
+  *
+  * @return Jobs, by id
+  */
+  public Collection<Job> getJobs() {
+    return jobs.values();
+  }
+
+  /**
+  * Forgets the oldest finished jobs, keeping at most {@link #MAX_FINISHED}
+  */
+  private void forgetFinished() {
+
+    int finished = 0;
+
+    for (Job job : jobs.values()) {
+      if (job.isFinished()) {
+        finished++;
+      }
+    }
+
+    for (Job job : jobs.values()) {
+
+      if (finished <= MAX_FINISHED) {
+        break;
+      }
+
+      if (job.isFinished()) {
+        jobs.remove(job.getId());
+        finished--;
+      }
+    }
+  }
+
+  /**
+  * Stops running jobs. Running jobs are interrupted and queued ones never start
+  */
+  public synchronized void shutdown() {
+
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
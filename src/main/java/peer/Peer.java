@@ -3,7 +3,12 @@ package peer;
 import peer.channel.*;
 import peer.message.*;
 import peer.file.*;
+import peer.metrics.*;
+import peer.log.*;
+import peer.transport.*;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import java.io.*;
 
@@ -16,32 +21,89 @@ public class Peer {
     public static final int BUFFER_SIZE = 65507;
 
     /** {@link channel.ChannelListener#channelAddress} */
-    public static String MC_ADDRESS;
+    private String mcAddress;
     /** {@link channel.ChannelListener#channelPort} */
-    public static int MC_PORT;
+    private int mcPort;
     /** {@link channel.ChannelListener#channelAddress} */
-    public static String MDB_ADDRESS;
+    private String mdbAddress;
     /** {@link channel.ChannelListener#channelPort} */
-    public static int MDB_PORT;
+    private int mdbPort;
     /** {@link channel.ChannelListener#channelAddress} */
-    public static String MDR_ADDRESS;
+    private String mdrAddress;
     /** {@link channel.ChannelListener#channelPort} */
-    public static int MDR_PORT;
+    private int mdrPort;
 
     /** Protocol version */
-    public static String VERSION;
+    private String version;
+
+    /** First protocol version with the enhancements (range GETCHUNKs, etc) */
+    public static final String ENHANCED_VERSION = "2.0";
 
     /** Server id */
-    public static String ID;
+    private String id;
 
     /** Access point */
-    public static String ACCESS_POINT_ADDRESS;
+    private String accessPointAddress;
 
     /** Access point */
-    public static String ACCESS_POINT_PORT;
+    private String accessPointPort;
 
     /** Path where chunks are stored */
-    public static String CHUNKS_PATH;
+    private String chunksPath;
+
+    /** Path where restored files are written */
+    private String restoredPath;
+
+    /** TRUE to store identical chunk bodies only once (see {@link file.ChunkStore}). Set with --dedup */
+    private boolean dedup = false;
+
+    /** TRUE to have restored chunks sent straight to this peer (see {@link channel.UnicastListener}). Set with --unicast */
+    private boolean unicast = false;
+
+    /** Address the other peers send chunks to, with --unicast. null to pick a routable address of this host. Set with --unicast-address */
+    private String unicastAddress = null;
+
+    /** Metrics of this peer */
+    private Metrics metrics = new Metrics();
+
+    /** Load of this peer */
+    private PeerLoad load = new PeerLoad();
+
+    /** Chunks stored when deduplicating */
+    private ChunkStore chunkStore = new ChunkStore(this);
+
+    /** Files backed up by this peer */
+    private BackupCatalog catalog = new BackupCatalog(this);
+
+    /** Jobs started by clients */
+    private JobManager jobs = new JobManager();
+
+    /** CHUNKs recently seen on MDR */
+    private ChunkSuppressor suppressor = new ChunkSuppressor(metrics);
+
+    /** Peers storing the chunks this peer decides on */
+    private ReplicationTracker replicationTracker = new ReplicationTracker();
+
+    /** STORED confirmations waiting to be sent (enhanced protocol) */
+    private StoredBatcher storedBatcher = new StoredBatcher(this);
+
+    /** Handles the requests of clients */
+    private RequestHandler requestHandler = new RequestHandler(this);
+
+    /** Listener of the control channel. null until {@link #start} */
+    private ControlChannelListener controlChannel;
+
+    /** Listener of the data backup channel. null until {@link #start} */
+    private BackupChannelListener backupChannel;
+
+    /** Listener of the data restore channel. null until {@link #start} */
+    private RestoreChannelListener restoreChannel;
+
+    /** Listener of the chunks sent straight to this peer. null if not listening */
+    private UnicastListener unicastListener;
+
+    /** Carries the messages of this peer (UDP multicast, unless set before {@link #start}) */
+    private Transport transport = new MulticastTransport();
 
     /**
     * Entry point of the program
@@ -50,95 +112,258 @@ public class Peer {
     */
     public static void main(String[] args) {
 
+        // options (arguments starting with "--") and their values
+        HashMap<String, String> options = new HashMap<String, String>();
+
+        args = parseOptions(args, options);
+
         if (args.length < 6) {
-          System.out.println("syntax: <MC_addr>:<MC_port> <MDB_addr>:<MDB_port> <MDR_addr>:<MDR_port> <PROTO_VERSION> <SERVER_ID> <ACCESS_POINT>");
+          System.out.println("syntax: <MC_addr>:<MC_port> <MDB_addr>:<MDB_port> <MDR_addr>:<MDR_port> <PROTO_VERSION> <SERVER_ID> <ACCESS_POINT> [--dedup] [--unicast] [--unicast-address ADDR] [--jobs N] [--log LEVEL]");
           return;
         }
 
-        System.out.println("Peer started!");
+        if (options.containsKey("--log")) {
+            Log.LEVEL = Log.Level.valueOf(options.get("--log").toUpperCase());
+        }
+
+        Peer peer = new Peer(args[0], args[1], args[2], args[3], args[4], args[5]);
+
+        peer.setDedup(options.containsKey("--dedup"));
+        peer.setUnicast(options.containsKey("--unicast"));
+        peer.setUnicastAddress(options.get("--unicast-address"));
+
+        if (options.containsKey("--jobs")) {
+            peer.getJobs().setLimit(Integer.parseInt(options.get("--jobs")));
+        }
+
+        Log.info("Peer started!");
+
+        peer.start();
+
+        if (args.length == 6) {
+            peer.startAccessPoints();
+        } //ignorar, isto e para testes
+        else if (args.length == 8) {
+
+            // needed to test repdeg
+            peer.sendMessage(args[6], args[7]);
+        }
+    }
+
+    /**
+    * Constructor.
+    * Chunks are stored under "chunks/peer&lt;id&gt;/" and files restored under "restored/peer&lt;id&gt;/"
+    * (see {@link #setChunksPath} and {@link #setRestoredPath})
+    *
+    * @param mc Control channel, "address:port"
+    * @param mdb Data backup channel, "address:port"
+    * @param mdr Data restore channel, "address:port"
+    * @param version {@link #version}
+    * @param id {@link #id}
+    * @param accessPoint Access point, "address:port"
+    */
+    public Peer(String mc, String mdb, String mdr, String version, String id, String accessPoint) {
 
         // control channel
-        String[] mc = args[0].split(":");
-        MC_ADDRESS = mc[0];
-        MC_PORT = Integer.parseInt(mc[1]);
+        String[] mcParts = mc.split(":");
+        mcAddress = mcParts[0];
+        mcPort = Integer.parseInt(mcParts[1]);
 
         // data backup channel
-        String[] mdb = args[1].split(":");
-        MDB_ADDRESS = mdb[0];
-        MDB_PORT = Integer.parseInt(mdb[1]);
+        String[] mdbParts = mdb.split(":");
+        mdbAddress = mdbParts[0];
+        mdbPort = Integer.parseInt(mdbParts[1]);
 
         // data restore channel
-        String[] mdr = args[2].split(":");
-        MDR_ADDRESS = mdr[0];
-        MDR_PORT = Integer.parseInt(mdr[1]);
+        String[] mdrParts = mdr.split(":");
+        mdrAddress = mdrParts[0];
+        mdrPort = Integer.parseInt(mdrParts[1]);
 
         // protocol version
-        VERSION = args[3];
+        this.version = version;
 
         // sender id
-        ID = args[4];
+        this.id = id;
 
         // access point
-        String[] accesspoint = args[5].split(":");
-        ACCESS_POINT_ADDRESS = accesspoint[0];
-        ACCESS_POINT_PORT = accesspoint[1];
+        String[] accesspoint = accessPoint.split(":");
+        accessPointAddress = accesspoint[0];
+        accessPointPort = accesspoint[1];
 
         // chunk path
-        CHUNKS_PATH = "chunks/peer" + ID + "/";
+        chunksPath = "chunks/peer" + id + "/";
+
+        // restored files path
+        restoredPath = "restored/peer" + id + "/";
+    }
+
+    /**
+    * Joins the channels and starts listening to them
+    * (and to chunks sent straight to this peer, with --unicast)
+    */
+    public void start() {
 
         // create needed folders
-        File dir = new File(Peer.CHUNKS_PATH);
+        File dir = new File(chunksPath);
         dir.mkdirs();
 
-        if (args.length == 6) {
-            new Thread(new ControlChannelListener()).start();
-            new Thread(new BackupChannelListener()).start();
-            new Thread(new RestoreChannelListener()).start();
-            new Thread(new ClientListener(ACCESS_POINT_ADDRESS, ACCESS_POINT_PORT)).start();
-        } //ignorar, isto e para testes
-        else if (args.length == 8) {
+        controlChannel = new ControlChannelListener(this);
+        backupChannel = new BackupChannelListener(this);
+        restoreChannel = new RestoreChannelListener(this);
 
-            // needed to test repdeg
-            new Thread(new ControlChannelListener()).start();
-            new Thread(new BackupChannelListener()).start();
-            new Thread(new RestoreChannelListener()).start();
+        // chunk replies straight to this peer need the enhanced protocol
+        if (unicast && isEnhanced()) {
+            unicastListener = new UnicastListener(this);
+        }
+
+        registerMetrics();
+
+        controlChannel.start();
+        backupChannel.start();
+        restoreChannel.start();
 
-            sendMessage(args[6], args[7]);
+        if (unicastListener != null) {
+            unicastListener.start();
         }
     }
 
+    /**
+    * Starts serving clients, over UDP and TCP
+    */
+    public void startAccessPoints() {
+        new Thread(new ClientListener(requestHandler, accessPointAddress, accessPointPort)).start();
+        new Thread(new TcpAccessPoint(requestHandler, accessPointAddress, accessPointPort)).start();
+    }
+
+    /**
+    * Leaves the channels and stops the timers and jobs of this peer.
+    * Requests still waiting for replies are dropped. The transport is left open, other peers may share it
+    */
+    public void stop() {
+
+        controlChannel.close();
+        backupChannel.close();
+        restoreChannel.close();
+
+        if (unicastListener != null) {
+            unicastListener.close();
+        }
+
+        storedBatcher.close();
+        jobs.shutdown();
+        metrics.unregister();
+    }
+
+    /**
+    * Checks if this peer runs the enhanced protocol
+    *
+    * @return TRUE if {@link #version} is at least {@link #ENHANCED_VERSION}. FALSE if it isn't "major.minor"
+    */
+    public boolean isEnhanced() {
+
+        long[] current = parseVersion(version);
+
+        if (current == null) {
+            return false;
+        }
+
+        long[] enhanced = parseVersion(ENHANCED_VERSION);
+
+        return current[0] != enhanced[0] ? current[0] > enhanced[0] : current[1] >= enhanced[1];
+    }
+
+    /**
+    * Reads a protocol version as numbers, so "10.0" comes after "2.0"
+    *
+    * @param version Version ("major.minor", e.g. "1.0")
+    *
+    * @return Major and minor numbers. null if the version isn't "major.minor"
+    */
+    private static long[] parseVersion(String version) {
+
+        if (version == null || !version.matches("\\d{1,9}\\.\\d{1,9}")) {
+            return null;
+        }
+
+        String[] parts = version.split("\\.");
+
+        return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+    }
+
+    /**
+    * Reads the options (arguments starting with "--")
+    *
+    * @param args Arguments passed in the terminal
+    * @param options Filled with the options read and their values ("" if they take none)
+    *
+    * @return Remaining arguments
+    */
+    private static String[] parseOptions(String[] args, HashMap<String, String> options) {
+
+        ArrayList<String> remaining = new ArrayList<String>();
+
+        // option waiting for its value (--jobs, --log or --unicast-address)
+        String option = null;
+
+        for (String arg : args) {
+            switch (arg) {
+                case "--dedup":
+                case "--unicast":
+                    options.put(arg, "");
+                    break;
+                case "--jobs":
+                case "--log":
+                case "--unicast-address":
+                    // value is the next argument
+                    option = arg;
+                    break;
+                default:
+                    if (option != null) {
+                        options.put(option, arg);
+                        option = null;
+                    }
+                    else {
+                        remaining.add(arg);
+                    }
+                    break;
+            }
+        }
+
+        return remaining.toArray(new String[remaining.size()]);
+    }
+
     /**
     * Send a message to the given channel
     *
     * @param ch Channel to send the message to
     * @param msg Message to send
     */
-    public static void sendMessage(String ch, String msg) {
+    public void sendMessage(String ch, String msg) {
 
         switch (ch) {
             case "MC":
-              // ControlChannelListener.sendMessage(msg, 0);
+              // controlChannel.sendMessage(msg, 0);
               if (msg.equals("DELETE")) {
                   DeleteMessage message = new DeleteMessage("A1B2C3");
-                  ControlChannelListener.sendMessage(message, 0);
+                  controlChannel.sendMessage(message, 0);
               }
               if (msg.equals("REMOVED")) {
                   RemovedMessage message = new RemovedMessage("A1B2C3", "24");
-                  ControlChannelListener.sendMessage(message, 0);
+                  controlChannel.sendMessage(message, 0);
               }
               if (msg.equals("GETCHUNK")){
                   GetChunkMessage message = new GetChunkMessage("A1B2C3", "2");
-                  ControlChannelListener.sendMessage(message, 0);
+                  controlChannel.sendMessage(message, 0);
               }
               if (msg.equals("TEST_INFO_UPDATE")) {
                 //  new FileManager().addChunkInfoToFile(ID, "Affw2C3", "24", "5", "1");
-                new FileManager().writeMaps();
-                 // ControlChannelListener.sendMessage(message, 0);
+                new FileManager(this).writeMaps();
+                 // controlChannel.sendMessage(message, 0);
               }
             break;
             case "MDB":
             if (msg.equals("PUTCHUNK")) {
-                backup("testing/longfile.txt", "" + 1);
+                backup("testing/longfile.txt", "" + 1, false, false, false);
             } else if (msg.equals("RESTORE")) {
               restore("testing/longfile.txt");
             }
@@ -146,7 +371,7 @@ public class Peer {
             case "MDR":
             if (msg.equals("CHUNK")){
               ChunkMessage message = new ChunkMessage("A1B2C3", "0", "faky".getBytes());
-              RestoreChannelListener.sendMessage(message);
+              restoreChannel.sendMessage(message);
             }
 
             break;
@@ -158,18 +383,28 @@ public class Peer {
     /**
     * @see file.FileManager#backup
     */
-    public static void backup(String filepath, String repDeg) {
-        new FileManager().backup(filepath, repDeg);
+    public BackupSession backup(String filepath, String repDeg, boolean incremental, boolean contentDefined, boolean compress) {
+        return new FileManager(this).backup(filepath, repDeg, incremental, contentDefined, compress);
     }
 
 
-    public static void deleteFile(String filepath) {
+    public void deleteFile(String filepath) {
 
-        String fileID = new FileManager().getFileId(filepath);
+        // a file backed up by this peer may have chunks in previous versions too
+        FileRecord record = catalog.remove(filepath);
+
+        if (record != null) {
+            for (String fileID : record.getReferencedFileIds()) {
+                controlChannel.sendMessage(new DeleteMessage(fileID), 0);
+            }
+            return;
+        }
+
+        String fileID = new FileManager(this).getFileId(filepath);
 
         DeleteMessage message = new DeleteMessage(fileID);
 
-        ControlChannelListener.sendMessage(message, 0);
+        controlChannel.sendMessage(message, 0);
 
         //nao e preciso mandar uma mensagem para cada chunk, porque ao receber delete ja elimina todos os chunks do ficheiro
         // mas em caso de o delete nao chegar la podemos mandar varias vezes?
@@ -184,7 +419,366 @@ public class Peer {
   /**
   * @see {@link file.FileManager#restore}
   */
-  public static void restore(String filepath) {
-    new FileManager().restore(filepath);
+  public RestoreSession restore(String filepath) {
+    return new FileManager(this).restore(filepath);
+  }
+
+  /**
+  * @see {@link file.FileManager#reclaim}
+  */
+  public long reclaim(long maxSpace) {
+    return new FileManager(this).reclaim(maxSpace);
+  }
+
+  /**
+  * Adds the gauges of this peer (load, queues, storage, timeouts) to {@link #metrics}
+  * and makes them visible over JMX
+  */
+  private void registerMetrics() {
+
+    metrics.gauge("tasks.queued", load::getQueueDepth);
+    metrics.gauge("load", load::getLoad);
+    metrics.gauge("disk.busy", load::getDiskBusy);
+    metrics.gauge("sent.bytes.per.s", load::getSentRate);
+
+    metrics.gauge("putchunks.waiting", () -> {
+      synchronized (controlChannel.getWaitingConfirmation()) {
+        return controlChannel.getWaitingConfirmation().size();
+      }
+    });
+
+    metrics.gauge("getchunks.waiting", () -> {
+      synchronized (restoreChannel.getWaitingConfirmation()) {
+        return restoreChannel.getWaitingConfirmation().size();
+      }
+    });
+
+    metrics.gauge("disk.bytes", () -> new FileManager(this).getUsedSpace());
+    metrics.gauge("dedup.ratio", chunkStore::getDedupRatio);
+
+    metrics.gauge("putchunk.rto.ms", backupChannel.getRto()::getRto);
+    metrics.gauge("getchunk.rto.ms", restoreChannel.getRto()::getRto);
+
+    metrics.gauge("log.dropped", LogAppender::getDropped);
+
+    metrics.register(id);
+  }
+
+  /**
+  * Describes the storage, load and timeouts of this peer
+  *
+  * @return Storage, load and timeouts state
+  */
+  public String state() {
+    return "dedup " + (dedup ? "on" : "off")
+      + ", stored chunks " + chunkStore.getNumberOfChunks()
+      + ", stored bytes " + chunkStore.getLogicalBytes()
+      + ", disk bytes " + chunkStore.getPhysicalBytes()
+      + ", dedup ratio " + String.format("%.2f", chunkStore.getDedupRatio())
+      + ", " + load.state()
+      + ", " + backupChannel.getRto().state()
+      + ", " + restoreChannel.getRto().state();
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #id}
+  */
+  public String getId() {
+    return id;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #version}
+  */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mcAddress}
+  */
+  public String getMcAddress() {
+    return mcAddress;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mcPort}
+  */
+  public int getMcPort() {
+    return mcPort;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mdbAddress}
+  */
+  public String getMdbAddress() {
+    return mdbAddress;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mdbPort}
+  */
+  public int getMdbPort() {
+    return mdbPort;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mdrAddress}
+  */
+  public String getMdrAddress() {
+    return mdrAddress;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #mdrPort}
+  */
+  public int getMdrPort() {
+    return mdrPort;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #accessPointAddress}
+  */
+  public String getAccessPointAddress() {
+    return accessPointAddress;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #unicastAddress}
+  */
+  public String getUnicastAddress() {
+    return unicastAddress;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #chunksPath}
+  */
+  public String getChunksPath() {
+    return chunksPath;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #restoredPath}
+  */
+  public String getRestoredPath() {
+    return restoredPath;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #dedup}
+  */
+  public boolean isDedup() {
+    return dedup;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #metrics}
+  */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #load}
+  */
+  public PeerLoad getLoad() {
+    return load;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #chunkStore}
+  */
+  public ChunkStore getChunkStore() {
+    return chunkStore;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #catalog}
+  */
+  public BackupCatalog getCatalog() {
+    return catalog;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #jobs}
+  */
+  public JobManager getJobs() {
+    return jobs;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #suppressor}
+  */
+  public ChunkSuppressor getSuppressor() {
+    return suppressor;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #replicationTracker}
+  */
+  public ReplicationTracker getReplicationTracker() {
+    return replicationTracker;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #storedBatcher}
+  */
+  public StoredBatcher getStoredBatcher() {
+    return storedBatcher;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #requestHandler}
+  */
+  public RequestHandler getRequestHandler() {
+    return requestHandler;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #controlChannel}
+  */
+  public ControlChannelListener getControlChannel() {
+    return controlChannel;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #backupChannel}
+  */
+  public BackupChannelListener getBackupChannel() {
+    return backupChannel;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #restoreChannel}
+  */
+  public RestoreChannelListener getRestoreChannel() {
+    return restoreChannel;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #unicastListener}
+  */
+  public UnicastListener getUnicastListener() {
+    return unicastListener;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #transport}
+  */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /**
+  * Setter.
+  * Must end with a separator. Only before {@link #start}
+  *
+  * @param chunksPath {@link #chunksPath}
+  */
+  public void setChunksPath(String chunksPath) {
+    this.chunksPath = chunksPath;
+  }
+
+  /**
+  * Setter.
+  * Must end with a separator
+  *
+  * @param restoredPath {@link #restoredPath}
+  */
+  public void setRestoredPath(String restoredPath) {
+    this.restoredPath = restoredPath;
+  }
+
+  /**
+  * Setter
+  *
+  * @param dedup {@link #dedup}
+  */
+  public void setDedup(boolean dedup) {
+    this.dedup = dedup;
+  }
+
+  /**
+  * Setter.
+  * Only before {@link #start}
+  *
+  * @param unicast {@link #unicast}
+  */
+  public void setUnicast(boolean unicast) {
+    this.unicast = unicast;
+  }
+
+  /**
+  * Setter.
+  * Only before {@link #start}
+  *
+  * @param unicastAddress {@link #unicastAddress}
+  */
+  public void setUnicastAddress(String unicastAddress) {
+    this.unicastAddress = unicastAddress;
+  }
+
+  /**
+  * Setter.
+  * Only before {@link #start}
+  *
+  * @param transport {@link #transport}
+  */
+  public void setTransport(Transport transport) {
+    this.transport = transport;
   }
 }
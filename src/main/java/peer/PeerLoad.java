@@ -0,0 +1,159 @@
+package peer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Current load of this peer, used to delay its CHUNK replies,
+* so lightly loaded peers answer restores first.
+*
+* Load is made of the number of queued tasks (replies and stores waiting to run),
+* the fraction of time spent reading/writing chunks and the rate of bytes sent.
+* Disk time and bytes sent are exponentially decaying sums over about {@link #DECAY} milliseconds
+*/
+public class PeerLoad {
+
+  /** Time constant (in milliseconds) of the decaying sums */
+  public static final int DECAY = 1000;
+
+  /** Number of queued tasks considered full load */
+  public static final int QUEUE_FULL = 32;
+
+  /** Bytes sent per second considered full load (100 Mbit/s) */
+  public static final double SENT_FULL = 12500000;
+
+  /** Part of the reply delay (in milliseconds) that depends on the load */
+  public static final int LOAD_DELAY = 300;
+
+  /** Part of the reply delay (in milliseconds) that is random */
+  public static final int JITTER = 100;
+
+  /** Number of queued tasks */
+  private AtomicInteger queue = new AtomicInteger();
+
+  /** Decaying sum of nanoseconds spent reading/writing chunks */
+  private double diskNanos = 0;
+
+  /** Decaying sum of bytes sent */
+  private double sentBytes = 0;
+
+  /** Last time (in milliseconds) the sums were decayed */
+  private long lastDecay = System.currentTimeMillis();
+
+  /**
+  * Called when a task is queued
+  */
+  public void queued() {
+    queue.incrementAndGet();
+  }
+
+  /**
+  * Called when a queued task is done
+  */
+  public void done() {
+    queue.decrementAndGet();
+  }
+
+  /**
+  * Called after reading/writing a chunk
+  *
+  * @param nanos Time spent
+  */
+  public synchronized void diskTime(long nanos) {
+    decay();
+    diskNanos += nanos;
+  }
+
+  /**
+  * Called after sending a message
+  *
+  * @param bytes Size of the message
+  */
+  public synchronized void sent(long bytes) {
+    decay();
+    sentBytes += bytes;
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of queued tasks
+  */
+  public int getQueueDepth() {
+    return queue.get();
+  }
+
+  /**
+  * Returns the fraction of time recently spent reading/writing chunks
+  *
+  * @return Disk busy fraction (can exceed 1 with concurrent accesses)
+  */
+  public synchronized double getDiskBusy() {
+    decay();
+    return diskNanos / (DECAY * 1000000.0);
+  }
+
+  /**
+  * Returns the recent rate of bytes sent
+  *
+  * @return Bytes per second
+  */
+  public synchronized double getSentRate() {
+    decay();
+    return sentBytes * 1000 / DECAY;
+  }
+
+  /**
+  * Returns the load of this peer
+  *
+  * @return Average of the queue, disk and network loads, each between 0 and 1
+  */
+  public double getLoad() {
+
+    double queueLoad = Math.min(1, getQueueDepth() / (double)QUEUE_FULL);
+    double diskLoad = Math.min(1, getDiskBusy());
+    double sentLoad = Math.min(1, getSentRate() / SENT_FULL);
+
+    return (queueLoad + diskLoad + sentLoad) / 3;
+  }
+
+  /**
+  * Returns how long to wait before replying with a chunk
+  *
+  * @return Delay (in milliseconds) between 1 and {@link #LOAD_DELAY} + {@link #JITTER}
+  */
+  public int getReplyDelay() {
+    return (int)(getLoad() * LOAD_DELAY) + ThreadLocalRandom.current().nextInt(1, JITTER + 1);
+  }
+
+  /**
+  * Returns the load inputs, for the STATE sub protocol
+  *
+  * @return Load description
+  */
+  public String state() {
+    return "load " + String.format("%.2f", getLoad())
+      + ", queued tasks " + getQueueDepth()
+      + ", disk busy " + String.format("%.2f", getDiskBusy())
+      + ", sent bytes/s " + String.format("%.0f", getSentRate());
+  }
+
+  /**
+  * Decays the sums for the time passed since the last call
+  */
+  private void decay() {
+
+    long now = System.currentTimeMillis();
+
+    if (now == lastDecay) {
+      return;
+    }
+
+    double factor = Math.exp(-(now - lastDecay) / (double)DECAY);
+
+    diskNanos *= factor;
+    sentBytes *= factor;
+
+    lastDecay = now;
+  }
+}
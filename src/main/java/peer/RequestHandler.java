@@ -0,0 +1,186 @@
+package peer;
+
+import peer.file.*;
+import peer.metrics.*;
+import peer.log.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Handles the requests of clients of a peer, whatever the access point they came through.
+*
+* BACKUP, RESTORE, DELETE and RECLAIM start a {@link Job} and reply with its id.
+* STATUS and STATE (STATE METRICS for every {@link Metrics}) reply right away
+*/
+public class RequestHandler {
+
+  /** Peer serving the requests */
+  private Peer peer;
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  */
+  public RequestHandler(Peer peer) {
+    this.peer = peer;
+  }
+
+  /**
+  * Handles a request
+  *
+  * @param request Request, e.g. "BACKUP testing/a.bin 2"
+  *
+  * @return Reply
+  */
+  public String handle(String request) {
+    return handle(request, null, 0);
+  }
+
+  /**
+  * Handles a request from a TCP client, which can have restores streamed to it
+  *
+  * @param request Request, e.g. "RESTORE testing/a.bin STREAM"
+  * @param connection Connection of the client. null if not a TCP client
+  * @param id Id of the request on the connection
+  *
+  * @return Reply
+  */
+  public String handle(String request, TcpAccessPoint.Connection connection, int id) {
+
+    String[] args = request.trim().split(" ");
+
+    try {
+
+      switch (args[0]) {
+
+        case "BACKUP": {
+          // BACKUP <file> <repDeg> [INCREMENTAL] [CDC] [COMPRESS]
+          String filepath = args[1];
+          String repDeg = args[2];
+          List<String> options = Arrays.asList(args);
+          boolean incremental = options.contains("INCREMENTAL");
+          boolean contentDefined = options.contains("CDC");
+          boolean compress = options.contains("COMPRESS");
+
+          return submit(request, job -> {
+
+            BackupSession session = new BackupSession(filepath, new File(filepath).length());
+
+            job.setProgress(session);
+
+            if (!new FileManager(peer).backup(session, repDeg, incremental, contentDefined, compress)) {
+              return false;
+            }
+
+            // wait for the last chunks to be stored
+            return session.getCompletion().get();
+          });
+        }
+
+        case "RESTORE": {
+          // RESTORE <file> [<offset> <length>] [STREAM | PIPE <path>]
+          String filepath = args[1];
+          List<String> options = Arrays.asList(args);
+
+          // part of the file
+          boolean part = args.length > 3 && args[2].matches("\\d+") && args[3].matches("\\d+");
+          long offset = part ? Long.parseLong(args[2]) : 0;
+          long length = part ? Long.parseLong(args[3]) : -1;
+
+          RestoreSink sink = null;
+
+          if (options.contains("STREAM")) {
+
+            // data goes back on the connection of the request
+            if (connection == null) {
+              return "error STREAM needs the TCP access point";
+            }
+
+            sink = new ConnectionSink(connection, id);
+          }
+          else if (options.contains("PIPE")) {
+            sink = new PipeSink(args[options.indexOf("PIPE") + 1]);
+          }
+
+          RestoreSink output = sink;
+
+          return submit(request, job -> {
+
+            RestoreSession session = new FileManager(peer).restore(filepath, offset, length, output);
+
+            job.setProgress(session);
+
+            return session.getCompletion().get();
+          });
+        }
+
+        case "DELETE": {
+          // DELETE <file>
+          String filepath = args[1];
+
+          return submit(request, job -> {
+            peer.deleteFile(filepath);
+            return true;
+          });
+        }
+
+        case "RECLAIM": {
+          // RECLAIM <max disk space in KB>
+          long maxSpace = Long.parseLong(args[1]) * 1000;
+
+          return submit(request, job -> {
+            job.setResult("freed " + new FileManager(peer).reclaim(maxSpace) + " bytes");
+            return true;
+          });
+        }
+
+        case "STATUS": {
+          // STATUS [<job id>]
+          if (args.length > 1) {
+
+            Job job = peer.getJobs().get(Integer.parseInt(args[1]));
+
+            return job != null ? job.state() : "error unknown job " + args[1];
+          }
+
+          String reply = "";
+
+          for (Job job : peer.getJobs().getJobs()) {
+            reply += job.getId() + " " + job.getStatus() + "\n";
+          }
+
+          return reply.isEmpty() ? "no jobs" : reply.trim();
+        }
+
+        case "STATE":
+          // STATE [METRICS]
+          if (args.length > 1 && args[1].equals("METRICS")) {
+            return peer.getMetrics().state();
+          }
+
+          return peer.state();
+
+        default:
+          return "error unknown request " + args[0];
+      }
+    }
+    catch (Exception e) {
+      Log.error("RequestHandler: Error handling " + request + ": " + e);
+      return "error " + e;
+    }
+  }
+
+  /**
+  * Starts a job
+  *
+  * @param description Request that created the job
+  * @param task Work to do
+  *
+  * @return Reply with the job id
+  */
+  private String submit(String description, Job.Task task) {
+    return "job " + peer.getJobs().submit(description, task).getId();
+  }
+}
@@ -0,0 +1,391 @@
+package peer;
+
+import peer.log.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Peer thread serving clients over TCP (non-blocking).
+*
+* Every message is a frame: [int length][int id][byte kind][payload],
+* where length counts the bytes after itself. Clients may send many requests
+* on a connection without waiting for the replies (pipelining); each reply
+* carries the id of its request, so replies can be matched in any order.
+* A streamed restore sends its data as DATA frames with the id of the request,
+* ended by an END frame
+*/
+public class TcpAccessPoint implements Runnable {
+
+  /** Frame kind: request from the client (payload is the request string) */
+  public static final byte REQUEST = 1;
+  /** Frame kind: reply to a request (payload is the reply string) */
+  public static final byte REPLY = 2;
+  /** Frame kind: data streamed for a request */
+  public static final byte DATA = 3;
+  /** Frame kind: end of the data streamed for a request (payload is "ok" or "failed") */
+  public static final byte END = 4;
+
+  /** A connection notifies its drain listeners when less than this many bytes wait to be written */
+  public static final int LOW_WATER = 1 << 20;
+
+  /** Size of the frame header after the length: id + kind */
+  public static final int HEADER_SIZE = 5;
+
+  /** Max length of a frame */
+  public static final int MAX_FRAME = 1 << 20;
+
+  /** Size of the read buffer of a connection (grown for bigger frames, then shrunk back) */
+  public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /** Handles the requests */
+  private RequestHandler handler;
+
+  /** Address the access point listens on */
+  private String address;
+
+  /** Port the access point listens on */
+  private int port;
+
+  /** Selector of the server and connection channels */
+  private Selector selector;
+
+  /** Connections with frames to write, registered for writing by the selector thread */
+  private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+  /**
+  * A client connection
+  */
+  public class Connection {
+
+    /** Channel of the connection */
+    private SocketChannel channel;
+
+    /** Bytes read and not yet parsed */
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** Frames waiting to be written */
+    private ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+    /** Number of bytes waiting to be written */
+    private long outBytes = 0;
+
+    /** Called when the connection catches up with the frames to write, or closes */
+    private CopyOnWriteArrayList<Runnable> drainListeners = new CopyOnWriteArrayList<Runnable>();
+
+    /**
+    * Constructor
+    *
+    * @param channel {@link #channel}
+    */
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+    * Queues a frame to the client. May be called from any thread
+    *
+    * @param id Id of the request
+    * @param kind Kind of frame
+    * @param payload Payload of the frame
+    */
+    public void send(int id, byte kind, byte[] payload) {
+
+      ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + payload.length);
+
+      frame.putInt(HEADER_SIZE + payload.length);
+      frame.putInt(id);
+      frame.put(kind);
+      frame.put(payload);
+      frame.flip();
+
+      synchronized (this) {
+        out.add(frame);
+        outBytes += frame.remaining();
+      }
+
+      // the selector thread registers the connection for writing
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+
+    /**
+    * Getter
+    *
+    * @return Number of bytes waiting to be written
+    */
+    public synchronized long getPendingBytes() {
+      return outBytes;
+    }
+
+    /**
+    * Adds a drain listener
+    *
+    * @param listener Called (from the selector thread) when the connection catches up or closes
+    */
+    public void addDrainListener(Runnable listener) {
+      drainListeners.add(listener);
+    }
+
+    /**
+    * Removes a drain listener
+    *
+    * @param listener Listener to remove
+    */
+    public void removeDrainListener(Runnable listener) {
+      drainListeners.remove(listener);
+    }
+
+    /**
+    * Calls the drain listeners
+    */
+    private void drained() {
+      for (Runnable listener : drainListeners) {
+        listener.run();
+      }
+    }
+
+    /**
+    * Checks if the connection is still open
+    *
+    * @return TRUE if open
+    */
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    /**
+    * Reads from the channel and handles every complete frame
+    *
+    * @throws IOException If the connection is closed or broken
+    */
+    private void read() throws IOException {
+
+      if (channel.read(in) < 0) {
+        throw new EOFException();
+      }
+
+      in.flip();
+
+      while (in.remaining() >= 4) {
+
+        int length = in.getInt(in.position());
+
+        if (length < HEADER_SIZE || length > MAX_FRAME) {
+          throw new IOException("bad frame length " + length);
+        }
+
+        // wait for the rest of the frame
+        if (in.remaining() < 4 + length) {
+
+          // make room for big frames
+          if (in.capacity() < 4 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+            bigger.put(in);
+            in = bigger;
+            return;
+          }
+          break;
+        }
+
+        in.getInt();
+        int id = in.getInt();
+        byte kind = in.get();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.get(payload);
+
+        handle(this, id, kind, payload);
+      }
+
+      in.compact();
+
+      // grown for a big frame and now drained, don't keep it
+      if (in.capacity() > READ_BUFFER_SIZE && in.position() == 0) {
+        in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      }
+    }
+
+    /**
+    * Writes as many queued frames as the channel takes
+    *
+    * @return TRUE if every frame was written
+    *
+    * @throws IOException If the connection is broken
+    */
+    private synchronized boolean write() throws IOException {
+
+      while (!out.isEmpty()) {
+
+        ByteBuffer frame = out.peek();
+
+        outBytes -= channel.write(frame);
+
+        if (frame.hasRemaining()) {
+          return false;
+        }
+
+        out.poll();
+      }
+
+      return true;
+    }
+  }
+
+  /**
+  * Constructor
+  *
+  * @param handler {@link #handler}
+  * @param address {@link #address}
+  * @param port {@link #port}
+  */
+  public TcpAccessPoint(RequestHandler handler, String address, String port) {
+    this.handler = handler;
+    this.address = address;
+    this.port = Integer.parseInt(port);
+  }
+
+  /**
+  * Handles a frame from a client
+  *
+  * @param connection Connection the frame came from
+  * @param id Id of the request
+  * @param kind Kind of frame
+  * @param payload Payload of the frame
+  */
+  protected void handle(Connection connection, int id, byte kind, byte[] payload) {
+
+    if (kind != REQUEST) {
+      return;
+    }
+
+    // jobs run in the background, so the reply is immediate
+    String reply = handler.handle(new String(payload, StandardCharsets.UTF_8), connection, id);
+
+    connection.send(id, REPLY, reply.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void run() {
+
+    try {
+      selector = Selector.open();
+
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(address, port));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    catch (IOException e) {
+      Log.error("TcpAccessPoint: Error opening " + address + ":" + port + ": " + e);
+      return;
+    }
+
+    while (true) {
+
+      try {
+        selector.select();
+      }
+      catch (IOException e) {
+        Log.error("TcpAccessPoint: Error selecting: " + e);
+        return;
+      }
+
+      // connections with new frames to write
+      Connection pending;
+
+      while ((pending = pendingWrites.poll()) != null) {
+
+        SelectionKey key = pending.channel.keyFor(selector);
+
+        if (key != null && key.isValid()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+      while (keys.hasNext()) {
+
+        SelectionKey key = keys.next();
+        keys.remove();
+
+        try {
+          if (key.isAcceptable()) {
+            accept((ServerSocketChannel)key.channel());
+            continue;
+          }
+
+          Connection connection = (Connection)key.attachment();
+
+          if (key.isReadable()) {
+            connection.read();
+          }
+
+          if (key.isValid() && key.isWritable()) {
+
+            if (connection.write()) {
+              key.interestOps(SelectionKey.OP_READ);
+            }
+
+            // producers held back by this connection can go on
+            if (connection.getPendingBytes() < LOW_WATER) {
+              connection.drained();
+            }
+          }
+        }
+        catch (IOException | CancelledKeyException e) {
+          close(key);
+        }
+      }
+    }
+  }
+
+  /**
+  * Accepts a client connection
+  *
+  * @param server Server channel
+  *
+  * @throws IOException If the connection can't be set up
+  */
+  private void accept(ServerSocketChannel server) throws IOException {
+
+    SocketChannel channel = server.accept();
+
+    if (channel == null) {
+      return;
+    }
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+  }
+
+  /**
+  * Closes a client connection
+  *
+  * @param key Key of the connection
+  */
+  private void close(SelectionKey key) {
+
+    key.cancel();
+
+    try {
+      key.channel().close();
+    }
+    catch (IOException e) {
+      Log.error("TcpAccessPoint: Error closing connection: " + e);
+    }
+
+    // producers writing to this connection stop
+    Connection connection = (Connection)key.attachment();
+
+    if (connection != null) {
+      connection.drained();
+    }
+  }
+}
@@ -3,11 +3,13 @@ package peer.channel;
 import peer.*;
 import peer.message.*;
 import peer.file.*;
+import peer.metrics.*;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.Collections;
 
 
@@ -21,18 +23,38 @@ public class BackupChannelListener extends ChannelListener {
   public static final String CHANNEL_NAME = "(MDB) Data Backup Channel";
   /** {@link ChannelMessenger#messengerName} */
   public static final String MESSENGER_NAME = CHANNEL_NAME + " Messenger";
-  /** {@link ChannelListener#channelPort} */
-  public static final int CHANNEL_PORT = Peer.MDB_PORT;
-  /** {@link ChannelListener#channelAddress} */
-  public static final String CHANNEL_ADDRESS = Peer.MDB_ADDRESS;
   /** {@link ChannelListener#bufferSize} */
   public static final int BUFFER_SIZE = Peer.BUFFER_SIZE;
 
+  /** Timeout of PUTCHUNKs, from the time taken to get their STOREDs */
+  private RtoEstimator rto = new RtoEstimator("PUTCHUNK", PutChunkMessage.WAITING_WINDOW);
+
+  /** Timer deciding whether to store chunks, after their random delay (enhanced protocol) */
+  private Timer timer = new Timer(true);
+
+  /** Number of PUTCHUNKs not stored because other peers already replicate them enough */
+  private LongAdder skipped;
+
   /**
   * Constructor
+  *
+  * @param peer {@link ChannelListener#peer}
+  */
+  public BackupChannelListener(Peer peer) {
+    super(peer, CHANNEL_NAME, peer.getMdbPort(), peer.getMdbAddress(), BUFFER_SIZE);
+
+    skipped = peer.getMetrics().counter("stores.skipped");
+
+    sent = new ChannelMessenger.Counters(peer.getMetrics(), MESSENGER_NAME);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #rto}
   */
-  public BackupChannelListener() {
-    super(CHANNEL_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE);
+  public RtoEstimator getRto() {
+    return rto;
   }
 
   @Override
@@ -42,16 +64,22 @@ public class BackupChannelListener extends ChannelListener {
     switch (received.getType()) {
 
       case "PUTCHUNK":{
+
+        if (peer.isEnhanced()) {
+          storeIfNeeded(received);
+          break;
+        }
+
         StoredMessage outmsg = new StoredMessage(received.getFileId(), received.getChunkNo());
 
         // generate a random delay [1-400]ms
         int delay = ThreadLocalRandom.current().nextInt(1, 401);
 
         // ask a messenger to deliver the message
-        ControlChannelListener.sendMessage(outmsg, delay);
+        peer.getControlChannel().sendMessage(outmsg, delay);
 
         // store this chunk
-        new FileManager().store(received);
+        new FileManager(peer).store(received);
 
         break;
         }
@@ -60,13 +88,89 @@ public class BackupChannelListener extends ChannelListener {
     }
   }
 
+  /**
+  * Stores a chunk only if its desired replication degree isn't met yet (enhanced protocol).
+  *
+  * Waits a random delay while counting the STOREDs of other peers,
+  * then stores and confirms the chunk unless enough peers already did.
+  * Chunks already stored by this peer are always confirmed
+  *
+  * @param received PUTCHUNK message
+  */
+  private void storeIfNeeded(Message received) {
+
+    String chunkName = received.getChunkName();
+
+    // count STOREDs from now on
+    peer.getReplicationTracker().track(chunkName);
+
+    // generate a random delay [1-400]ms
+    int delay = ThreadLocalRandom.current().nextInt(1, 401);
+
+    peer.getLoad().queued();
+
+    timer.schedule(
+      new TimerTask() {
+        @Override
+        public void run() {
+          try {
+            storeIfStillNeeded(received);
+          }
+          finally {
+            peer.getLoad().done();
+          }
+        }
+      }, delay
+    );
+  }
+
+  /**
+  * Stores and confirms a chunk, after the random delay of {@link #storeIfNeeded}
+  *
+  * @param received PUTCHUNK message
+  */
+  private void storeIfStillNeeded(Message received) {
+
+    String chunkName = received.getChunkName();
+
+    FileManager fileManager = new FileManager(peer);
+
+    boolean stored = fileManager.hasChunk(received.getFileId(), received.getChunkNo());
+
+    // other peers already replicate it enough
+    if (!stored && peer.getReplicationTracker().getRepDeg(chunkName) >= Integer.parseInt(received.getRepDeg())) {
+      skipped.increment();
+      peer.getReplicationTracker().untrack(chunkName);
+      return;
+    }
+
+    if (!stored) {
+      // store this chunk
+      fileManager.store(received);
+    }
+
+    peer.getReplicationTracker().addSaver(chunkName, peer.getId());
+
+    // confirm together with other chunks of the same file
+    // (the random delay above already spreads confirmations of different peers)
+    peer.getStoredBatcher().add(received.getFileId(), received.getChunkNo());
+  }
+
   /**
   * Create a Messenger to send a message to this channel
   *
   * @param msg {@link ChannelMessenger#message}
   */
-  public static void sendMessage(Message msg) {
-    new Thread(new ChannelMessenger(MESSENGER_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE, msg, 0)).start();
+  public void sendMessage(Message msg) {
+    new Thread(new ChannelMessenger(peer, MESSENGER_NAME, sent, channelPort, channelAddress, BUFFER_SIZE, msg, 0)).start();
+  }
+
+  @Override
+  public void close() {
+
+    super.close();
+
+    timer.cancel();
   }
 
   }
@@ -1,17 +1,21 @@
 package peer.channel;
 
 import peer.message.*;
+import peer.metrics.*;
 import peer.*;
+import peer.log.*;
+import peer.transport.*;
 
 import java.io.*;
-import java.net.*;
-import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
-* Peer thread to listen to a multicast channel
+* Peer listener of a multicast channel, joined through the transport of the peer
 */
-public abstract class ChannelListener implements Runnable {
+public abstract class ChannelListener {
 
+  /** Peer the listener belongs to */
+  protected Peer peer;
   /** Name of the listened channel */
   protected String channelName;
   /** Port number of listened channel */
@@ -20,54 +24,47 @@ public abstract class ChannelListener implements Runnable {
   protected String channelAddress;
   /** Size of packet buffer */
   protected int bufferSize;
-  /** TRUE while listener is active */
-  protected boolean open;
-  /** Multicast Socket */
-  protected MulticastSocket socket;
-  /** Inet address of listened channel */
-  protected InetAddress channelInetAddress;
+  /** Channel joined. null until {@link #start} */
+  protected Transport.Membership membership;
+  /** Number of packets received */
+  protected LongAdder packetsIn;
+  /** Number of bytes received */
+  protected LongAdder bytesIn;
+  /** Number of packets dropped because they aren't valid messages */
+  protected LongAdder dropped;
+  /** Time (in nanoseconds) spent parsing each packet */
+  protected Histogram parseTime;
+  /** Time (in nanoseconds) spent handling each message */
+  protected Histogram handlerTime;
+  /** Counters of the messages sent to this channel (set by subclasses, for their messenger) */
+  protected ChannelMessenger.Counters sent;
 
   /**
   * Constructor (called by subclasses)
   *
+  * @param peer {@link #peer}
   * @param channelName {@link #channelName}
   * @param channelPort {@link #channelPort}
   * @param channelAddress {@link #channelAddress}
   * @param bufferSize {@link #bufferSize}
   */
-  public ChannelListener(String channelName, int channelPort, String channelAddress, int bufferSize) {
+  public ChannelListener(Peer peer, String channelName, int channelPort, String channelAddress, int bufferSize) {
 
+    this.peer = peer;
     this.channelName = channelName;
     this.channelPort = channelPort;
     this.channelAddress = channelAddress;
     this.bufferSize = bufferSize;
 
-    // allow communication
-    open = true;
+    Metrics metrics = peer.getMetrics();
 
-    try {
-      // get a multicast socket
-      socket = new MulticastSocket(channelPort);
-    }
-    catch (IOException e) {
-      System.out.println(channelName + ": Error creating multicast socket: " + e);
-    }
+    String key = Metrics.channelKey(channelName);
 
-    try {
-      // get channel address
-      channelInetAddress = InetAddress.getByName(channelAddress);
-    }
-    catch (UnknownHostException e) {
-      System.out.println(channelName + ": Error getting Inet Address: " + e);
-    }
-
-    try {
-      // join multicast group
-      socket.joinGroup(channelInetAddress);
-    }
-    catch (IOException e) {
-      System.out.println(channelName + ": Error joining multicast group: " + e);
-    }
+    packetsIn = metrics.counter(key + ".packets.in");
+    bytesIn = metrics.counter(key + ".bytes.in");
+    dropped = metrics.counter(key + ".dropped");
+    parseTime = metrics.histogram(key + ".parse.ns");
+    handlerTime = metrics.histogram(key + ".handler.ns");
   }
 
   /**
@@ -87,54 +84,61 @@ public abstract class ChannelListener implements Runnable {
   */
   private final void superHandler(byte[] received) {
 
+      packetsIn.increment();
+      bytesIn.add(received.length);
+
+      long start = System.nanoTime();
+
       // parse message
       Message inmsg = Message.parser(received);
 
+      parseTime.record(System.nanoTime() - start);
+
+      // ignore unknown messages
+      if (inmsg == null) {
+        dropped.increment();
+        return;
+      }
+
       // ignore if message belongs to this peer
-      if (!inmsg.getSenderId().equals(Peer.ID)) {
+      if (!inmsg.getSenderId().equals(peer.getId())) {
 
         // display message
-        System.out.println(channelName + ": " + inmsg.getHeader().print() + " -> " + inmsg.getBodyLength() + " bytes");
+        Log.debug(() -> channelName + ": " + inmsg.getHeader().print() + " -> " + inmsg.getBodyLength() + " bytes");
+
+        start = System.nanoTime();
 
         // give message to subclasses
         handler(inmsg);
-      }
-  }
-
-  @Override
-  public void run() {
-
-    while (open) {
 
-      byte[] buf = new byte[bufferSize];
-      DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
-      try {
-        // listen to the channel
-        socket.receive(packet);
-      }
-      catch (IOException e){
-        System.out.println(channelName + ": Error receiving packet from socket: " + e);
+        handlerTime.record(System.nanoTime() - start);
       }
+  }
 
-      // get received data
-      byte[] packetData = packet.getData();
-
-      // handle message
-      superHandler(packetData);
-    }
+  /**
+  * Joins the channel.
+  * Messages are handed to {@link #handler} from then on
+  */
+  public void start() {
 
-    // end communications
     try {
-      socket.leaveGroup(channelInetAddress);
+      membership = peer.getTransport().join(channelAddress, channelPort, bufferSize, this::superHandler);
     }
     catch (IOException e) {
-      System.out.println(channelName + ": Error leaving multicast group: " + e);
+      Log.error(channelName + ": Error joining multicast group: " + e);
     }
+  }
 
-    socket.close();
+  /**
+  * Leaves the channel
+  */
+  public void close() {
+
+    if (membership != null) {
+      membership.leave();
+    }
 
-    System.out.println(channelName + ": " + "Communication closed");
+    Log.info(channelName + ": " + "Communication closed");
   }
 
 }
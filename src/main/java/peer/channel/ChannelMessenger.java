@@ -1,18 +1,53 @@
 package peer.channel;
 
+import peer.*;
 import peer.message.*;
+import peer.metrics.*;
+import peer.log.*;
 
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
-* Peer thread to send messages to a multicast channel
+* Peer thread to send messages to a multicast channel, through the transport of the peer
 */
 public class ChannelMessenger implements Runnable {
 
+  /**
+  * Counters of the messages sent by a messenger, resolved once by the listener owning it
+  */
+  public static class Counters {
+
+    /** Number of packets sent */
+    private LongAdder packetsOut;
+    /** Number of bytes sent */
+    private LongAdder bytesOut;
+    /** Number of packets that couldn't be sent */
+    private LongAdder sendErrors;
+
+    /**
+    * Constructor
+    *
+    * @param metrics Metrics of the peer
+    * @param messengerName {@link ChannelMessenger#messengerName}
+    */
+    public Counters(Metrics metrics, String messengerName) {
+
+      String key = Metrics.channelKey(messengerName);
+
+      packetsOut = metrics.counter(key + ".packets.out");
+      bytesOut = metrics.counter(key + ".bytes.out");
+      sendErrors = metrics.counter(key + ".send.errors");
+    }
+  }
+
+  /** Peer sending the message */
+  protected Peer peer;
   /** Name of the messenger (usually contains the name of the destination channel) */
   protected String messengerName;
+  /** Counters of the messages sent by messengers of the same name */
+  protected Counters counters;
   /** Port number of destination channel */
   protected int channelPort;
   /** IP multicast address of destination channel */
@@ -21,47 +56,40 @@ public class ChannelMessenger implements Runnable {
   protected int bufferSize;
   /** Message to send to the destination channel */
   protected Message message;
-  /** Datagram Socket */
-  protected MulticastSocket socket;
-  /** Inet address of destination channel */
-  protected InetAddress channelInetAddress;
   /** Number of milliseconds to wait before sending the message */
   protected int delay;
 
   /**
-  * Constructor (called by subclasses)
+  * Constructor.
+  * Messages created by this peer are stamped with its id and protocol version
   *
+  * @param peer {@link #peer}
   * @param messengerName {@link #messengerName}
+  * @param counters {@link #counters}
   * @param channelPort {@link #channelPort}
   * @param channelAddress {@link #channelAddress}
   * @param bufferSize {@link #bufferSize}
   * @param message {@link #message}
   * @param delay {@link #delay}
   */
-  public ChannelMessenger(String messengerName, int channelPort, String channelAddress, int bufferSize, Message message, int delay) {
+  public ChannelMessenger(Peer peer, String messengerName, Counters counters, int channelPort, String channelAddress, int bufferSize, Message message, int delay) {
 
+    this.peer = peer;
     this.messengerName = messengerName;
+    this.counters = counters;
     this.channelPort = channelPort;
     this.channelAddress = channelAddress;
     this.bufferSize = bufferSize;
     this.message = message;
     this.delay = delay;
 
-
-    try {
-      // get a multicast socket (no need to bind it to a port)
-      socket = new MulticastSocket();
-    }
-    catch (IOException e) {
-      System.out.println(messengerName + ": Error creating datagram socket: " + e);
+    // sent on behalf of another peer otherwise
+    if (message.getSenderId() == null) {
+      message.setSenderId(peer.getId());
     }
 
-    try {
-      // get channel address
-      channelInetAddress = InetAddress.getByName(channelAddress);
-    }
-    catch (UnknownHostException e) {
-      System.out.println(messengerName + ": Error getting Inet Address: " + e);
+    if (message.getVersion() == null) {
+      message.setVersion(peer.getVersion());
     }
   }
 
@@ -74,9 +102,6 @@ public class ChannelMessenger implements Runnable {
     // turn the message into bytes
     buffer = message.toBytes();
 
-    // fill packet with message
-    DatagramPacket packet = new DatagramPacket(buffer, buffer.length, channelInetAddress, channelPort);
-
     try {
       if (delay > 0) {
         // wait for delay
@@ -84,13 +109,16 @@ public class ChannelMessenger implements Runnable {
       }
 
       // send message
-      socket.send(packet);
+      peer.getTransport().send(channelAddress, channelPort, buffer);
+
+      peer.getLoad().sent(buffer.length);
+
+      counters.packetsOut.increment();
+      counters.bytesOut.add(buffer.length);
     }
     catch (Exception e) {
-      System.out.println(messengerName + ": Error sending the message: " + e);
+      counters.sendErrors.increment();
+      Log.error(messengerName + ": Error sending the message: " + e);
     }
-
-    // end communication
-    socket.close();
   }
 }
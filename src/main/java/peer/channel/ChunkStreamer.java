@@ -0,0 +1,115 @@
+package peer.channel;
+
+import peer.*;
+import peer.message.*;
+import peer.file.*;
+import peer.trace.*;
+
+import java.util.*;
+
+/**
+* Peer thread to answer a range request (GETCHUNKS) with a paced stream of CHUNKs
+* to the data restore channel (MDR).
+*
+* Chunks sent by other peers since the request arrived are skipped,
+* so peers storing the same chunks end up splitting the range between them
+*/
+public class ChunkStreamer implements Runnable {
+
+  /** Number of milliseconds between two CHUNKs, so receivers' buffers aren't flooded */
+  public static final int PACING = 2;
+
+  /** Peer answering the request */
+  protected Peer peer;
+
+  /** Request to answer */
+  protected GetChunksMessage request;
+
+  /** Time (in milliseconds) the request arrived */
+  protected long requested = System.currentTimeMillis();
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  * @param request {@link #request}
+  */
+  public ChunkStreamer(Peer peer, GetChunksMessage request) {
+    this.peer = peer;
+    this.request = request;
+
+    peer.getLoad().queued();
+  }
+
+  @Override
+  public void run() {
+
+    try {
+      stream();
+    }
+    finally {
+      peer.getLoad().done();
+    }
+  }
+
+  /**
+  * Sends the requested chunks stored by this peer
+  */
+  private void stream() {
+
+    BitSet chunks = request.getChunkSet();
+
+    FileManager fileManager = new FileManager(peer);
+
+    try {
+      // lightly loaded peers lead
+      Thread.sleep(peer.getLoad().getReplyDelay());
+    }
+    catch (InterruptedException e) {
+      return;
+    }
+
+    for (int chunkNo = chunks.nextSetBit(0); chunkNo >= 0; chunkNo = chunks.nextSetBit(chunkNo + 1)) {
+
+      // another peer already sent it, skip reading and sending
+      if (peer.getSuppressor().answeredSince(request.getFileId() + "-" + chunkNo, request.getReplyTo(), requested)) {
+        continue;
+      }
+
+      ChunkServedEvent event = new ChunkServedEvent();
+
+      event.begin();
+
+      // only chunks stored by this peer
+      byte[] body = fileManager.readChunk(request.getFileId(), Integer.toString(chunkNo));
+
+      if (body == null) {
+        continue;
+      }
+
+      ChunkMessage outmsg = new ChunkMessage(request.getFileId(), Integer.toString(chunkNo), body);
+
+      // send it from this thread, one at a time
+      peer.getRestoreChannel().reply(request, outmsg, true);
+
+      event.end();
+
+      if (event.shouldCommit()) {
+        event.peerId = peer.getId();
+        event.fileId = request.getFileId();
+        event.chunkNo = Integer.toString(chunkNo);
+        event.bytes = body.length;
+        event.unicast = request.getReplyTo() != null && peer.isEnhanced();
+        event.waited = System.currentTimeMillis() - requested;
+        event.commit();
+      }
+
+      try {
+        Thread.sleep(PACING);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+}
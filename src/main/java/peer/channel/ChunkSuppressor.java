@@ -0,0 +1,105 @@
+package peer.channel;
+
+import peer.metrics.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Remembers the CHUNKs seen on the data restore channel (MDR),
+* so a peer doesn't send a chunk another peer already sent
+*/
+public class ChunkSuppressor {
+
+  /** Number of milliseconds a seen chunk is remembered for */
+  public static final int MEMORY = 10000;
+
+  /** Number of chunks remembered before forgetting the old ones (chunks seen in the last {@link #MEMORY} are kept) */
+  private static final int MAX_SEEN = 4096;
+
+  /** Last time each chunk was seen, by {@link peer.message.Message#getChunkName} */
+  private ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<String, Long>();
+
+  /** Last time (in milliseconds) old chunks were forgotten */
+  private AtomicLong pruned = new AtomicLong();
+
+  /** Number of replies skipped because another peer answered first */
+  private LongAdder suppressed;
+
+  /**
+  * Constructor
+  *
+  * @param metrics Metrics of the peer, counting the suppressed replies
+  */
+  public ChunkSuppressor(Metrics metrics) {
+    suppressed = metrics.counter("replies.suppressed");
+  }
+
+  /**
+  * Registers a CHUNK seen on MDR
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  */
+  public void seen(String chunkName) {
+
+    long now = System.currentTimeMillis();
+
+    seen.put(chunkName, now);
+
+    // forget old chunks, at most every MEMORY / 2 (and by one thread), so busy restores don't scan the map for every packet
+    long last = pruned.get();
+
+    if (seen.size() > MAX_SEEN && now - last >= MEMORY / 2 && pruned.compareAndSet(last, now)) {
+      seen.values().removeIf(time -> time < now - MEMORY);
+    }
+  }
+
+  /**
+  * Returns the name under which a chunk sent straight to a peer is remembered
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  * @param replyTo {@link peer.message.MessageHeader#replyTo}
+  *
+  * @return "fileId-chunkNo@host:port"
+  */
+  public static String servedName(String chunkName, String replyTo) {
+    return chunkName + "@" + replyTo;
+  }
+
+  /**
+  * Checks if a request was already answered by another peer:
+  * the chunk was seen on MDR, or was served to the same {@link peer.message.MessageHeader#replyTo}
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  * @param replyTo {@link peer.message.MessageHeader#replyTo}. null if the reply goes to MDR
+  * @param since Time (in milliseconds) after which to look
+  *
+  * @return TRUE if the request was answered after since
+  */
+  public boolean answeredSince(String chunkName, String replyTo, long since) {
+
+    boolean answered = seenSince(chunkName, since) || (replyTo != null && seenSince(servedName(chunkName, replyTo), since));
+
+    if (answered) {
+      suppressed.increment();
+    }
+
+    return answered;
+  }
+
+  /**
+  * Checks if a chunk was seen on MDR
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  * @param since Time (in milliseconds) after which to look
+  *
+  * @return TRUE if the chunk was seen after since
+  */
+  public boolean seenSince(String chunkName, long since) {
+
+    Long time = seen.get(chunkName);
+
+    return time != null && time >= since;
+  }
+}
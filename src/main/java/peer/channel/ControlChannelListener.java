@@ -2,6 +2,9 @@ package peer.channel;
 
 import peer.*;
 import peer.message.*;
+import peer.file.*;
+import peer.log.*;
+import peer.trace.*;
 
 import java.io.*;
 import java.net.*;
@@ -19,116 +22,198 @@ public class ControlChannelListener extends ChannelListener {
   public static final String CHANNEL_NAME = "(MC) Control Channel";
   /** {@link ChannelMessenger#messengerName} */
   public static final String MESSENGER_NAME = CHANNEL_NAME + " Messenger";
-  /** {@link ChannelListener#channelPort} */
-  public static final int CHANNEL_PORT = Peer.MC_PORT;
-  /** {@link ChannelListener#channelAddress} */
-  public static final String CHANNEL_ADDRESS = Peer.MC_ADDRESS;
   /** {@link ChannelListener#bufferSize} */
   public static final int BUFFER_SIZE = Peer.BUFFER_SIZE;
-  /** A synchronized arraylist holding messages waiting for STORED confirmation */
-  public static ArrayList<PutChunkMessage> waitingConfirmation = new ArrayList<PutChunkMessage>(Collections.synchronizedList(new ArrayList<PutChunkMessage>()));
+  /** Timer delaying CHUNK replies */
+  private Timer timer = new Timer(true);
+  /** Messages waiting for STORED confirmation, by {@link Message#getChunkName} */
+  private HashMap<String, PutChunkMessage> waitingConfirmation = new HashMap<String, PutChunkMessage>();
 
   /**
   * Constructor
+  *
+  * @param peer {@link ChannelListener#peer}
   */
-  public ControlChannelListener() {
-    super(CHANNEL_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE);
-  }
+  public ControlChannelListener(Peer peer) {
+    super(peer, CHANNEL_NAME, peer.getMcPort(), peer.getMcAddress(), BUFFER_SIZE);
 
+    sent = new ChannelMessenger.Counters(peer.getMetrics(), MESSENGER_NAME);
+  }
 
   /**
-  * Searches {@link #waitingConfirmation} to see if the received STORED message is a match
+  * Getter.
+  * Must be used while holding its lock
   *
-  * @param received Message to search
+  * @return {@link #waitingConfirmation}
+  */
+  public HashMap<String, PutChunkMessage> getWaitingConfirmation() {
+    return waitingConfirmation;
+  }
+
+
+  /**
+  * Registers a STORED confirmation of a message waiting in {@link #waitingConfirmation}.
+  * Must be called while holding its lock
   *
-  * @return Index of found match. -1 otherwise
+  * @param msg Message that was confirmed
+  * @param senderId Id of the peer who stored the chunk
+  * @param lockWait Time (in nanoseconds) spent waiting for the lock
   */
-  private int searchWaitingConfirmation(Message received) {
+  private void stored(PutChunkMessage msg, String senderId, long lockWait) {
 
-    for (int i = 0; i < waitingConfirmation.size(); i++) {
+    // add sender to history
+    if (msg.addSaver(senderId)) {
 
-      PutChunkMessage msg = waitingConfirmation.get(i);
+      // add one to rep deg
+      msg.addActualRepDeg();
+    }
 
-      if (msg.getFileId().equals(received.getFileId()) && msg.getChunkNo().equals(received.getChunkNo())) {
-        return i;
-      }
+    StoredReceivedEvent event = new StoredReceivedEvent();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = msg.getFileId();
+      event.chunkNo = msg.getChunkNo();
+      event.senderId = senderId;
+      event.attempt = msg.getAttempt();
+      event.replication = msg.getActualRepDeg();
+      event.sinceSent = System.currentTimeMillis() - msg.getSentAt();
+      event.lockWait = lockWait;
+      event.commit();
     }
 
-    return -1;
+    // done as soon as the desired rep deg is reached
+    if (msg.getActualRepDeg() >= Integer.parseInt(msg.getRepDeg())) {
+      msg.complete();
+    }
+    // if time window for stored is over
+    else if (!msg.getWaiting()) {
+      // check if repDeg was achieved and act accordingly
+      msg.checkRepDeg();
+    }
   }
 
   @Override
   protected void handler(Message received) {
-System.out.println("RECEIVED: " + received.getType());
+    Log.trace(() -> "RECEIVED: " + received.getType());
 
     switch (received.getType()) {
 
      case "STORED":{
+
+        // count replicas of chunks this peer cares about
+        peer.getReplicationTracker().addSaver(received.getChunkName(), received.getSenderId());
+
+        long waitStart = System.nanoTime();
+
         synchronized (waitingConfirmation) {
 
-          int i;
+          long lockWait = System.nanoTime() - waitStart;
+
+          PutChunkMessage msg = waitingConfirmation.get(received.getChunkName());
 
           // check if this peer is interested in this store
-          if ((i = searchWaitingConfirmation(received)) >= 0) {
+          if (msg != null) {
+            stored(msg, received.getSenderId(), lockWait);
+          }
+        }
+        break;
+        }
 
-            PutChunkMessage msg = waitingConfirmation.get(i);
+     case "STOREDCHUNKS":{ // batch of STORED (enhanced protocol)
 
+        BitSet chunks = ((StoredChunksMessage)received).getChunkSet();
 
-            // add sender to history
-            if (msg.addSaver(received.getSenderId())) {
+        // count replicas of chunks this peer cares about
+        for (int chunkNo = chunks.nextSetBit(0); chunkNo >= 0; chunkNo = chunks.nextSetBit(chunkNo + 1)) {
+          peer.getReplicationTracker().addSaver(received.getFileId() + "-" + chunkNo, received.getSenderId());
+        }
 
-              // add one to rep deg
-              msg.addActualRepDeg();
-            }
+        long waitStart = System.nanoTime();
+
+        // apply the whole batch in one pass
+        synchronized (waitingConfirmation) {
+
+          long lockWait = System.nanoTime() - waitStart;
+
+          for (int chunkNo = chunks.nextSetBit(0); chunkNo >= 0; chunkNo = chunks.nextSetBit(chunkNo + 1)) {
+
+            PutChunkMessage msg = waitingConfirmation.get(received.getFileId() + "-" + chunkNo);
 
-            // if time window for stored is over
-            if (!msg.getWaiting()) {
-              // check if repDeg was achieved and act accordingly
-              msg.checkRepDeg();
+            // check if this peer is interested in this store
+            if (msg != null) {
+              stored(msg, received.getSenderId(), lockWait);
             }
-        }
+          }
         }
         break;
         }
 
      case "GETCHUNK":{ // iniciator peer manda msg getchunk para MC
 
-          int delay = 0;
+          // peer nao tem o body
+          if (!new FileManager(peer).hasChunk(received.getFileId(), received.getChunkNo())) {
+            break;
+          }
 
-          try{
-            String fileName = received.getFileId() + "-" + received.getChunkNo();
-            int chunkIndex = getChunkIndex(fileName);
+          long requested = System.currentTimeMillis();
 
-            if(chunkIndex > -1){
-              //chunk presente no peer. ir buscar body:
+          // lightly loaded peers reply first
+          int delay = peer.getLoad().getReplyDelay();
+
+          peer.getLoad().queued();
+
+          timer.schedule(
+            new TimerTask() {
+              @Override
+              public void run() {
+
+                try {
+                  // another peer already replied, skip reading and sending
+                  if (peer.getSuppressor().answeredSince(received.getChunkName(), received.getReplyTo(), requested)) {
+                    return;
+                  }
 
-              String filePath = received.getChunkPath();
-              File chunk = new File(filePath);
+                  ChunkServedEvent event = new ChunkServedEvent();
 
-              System.out.println(filePath);
+                  event.begin();
 
-              if(chunk.exists()){ //so para ter a certeza
+                  // chunk may be a plain file or in the dedup store
+                  byte[] body = new FileManager(peer).readChunk(received.getFileId(), received.getChunkNo());
 
-                byte[] body = Files.readAllBytes(Paths.get(filePath));
+                  if (body != null) {
 
-                ChunkMessage outmsg = new ChunkMessage(received.getFileId(), received.getChunkNo(), body);
+                    ChunkMessage outmsg = new ChunkMessage(received.getFileId(), received.getChunkNo(), body);
 
+                    // ask a messenger to deliver the message
+                    peer.getRestoreChannel().reply(received, outmsg, false);
 
-                // generate a random delay [1-400]ms
-                delay = ThreadLocalRandom.current().nextInt(1, 401);
-                // ask a messenger to deliver the message
-                RestoreChannelListener.sendMessage(outmsg);
+                    event.end();
+
+                    if (event.shouldCommit()) {
+                      event.peerId = peer.getId();
+                      event.fileId = received.getFileId();
+                      event.chunkNo = received.getChunkNo();
+                      event.bytes = body.length;
+                      event.unicast = received.getReplyTo() != null && peer.isEnhanced();
+                      event.waited = System.currentTimeMillis() - requested;
+                      event.commit();
+                    }
+                  }
+                }
+                finally {
+                  peer.getLoad().done();
+                }
               }
+            }, delay
+          );
+          break;
+        }
 
-            }
-            else{ //peer nao tem o body
-              break;
-            }
+     case "GETCHUNKS":{ // range request (enhanced protocol)
 
-          }
-          catch(Exception e){
-            System.out.println("RestoreChannelListener for CHUNK: " +e);
-          }
+          // stream the chunks this peer has from another thread
+          new Thread(new ChunkStreamer(peer, (GetChunksMessage)received)).start();
           break;
         }
 
@@ -136,7 +221,7 @@ System.out.println("RECEIVED: " + received.getType());
 
           try{
 
-              File dir = new File(Peer.CHUNKS_PATH);
+              File dir = new File(peer.getChunksPath());
 
               File[] matches = dir.listFiles(new FilenameFilter()
               {
@@ -153,11 +238,14 @@ System.out.println("RECEIVED: " + received.getType());
 
                       removeFromPeerChunks(matches);
 
-                 removeFromPeerChunks(matches);
+                 // chunks kept in the dedup store
+                 peer.getChunkStore().removeFile(received.getFileId());
+
+                 peer.getReplicationTracker().untrackFile(received.getFileId());
 
           }
           catch(Exception e){
-              System.out.println("ControlChannelListener for CHUNK: " +e);
+              Log.error("ControlChannelListener for CHUNK: " +e);
           }
           break;
 
@@ -165,6 +253,9 @@ System.out.println("RECEIVED: " + received.getType());
 
      case "REMOVED":{
 
+             // the sender no longer counts as a replica
+             peer.getReplicationTracker().removeSaver(received.getChunkName(), received.getSenderId());
+
              updateLocalChunkCount(received.getFileId());
 
          }
@@ -180,8 +271,16 @@ System.out.println("RECEIVED: " + received.getType());
   * @param msg {@link ChannelMessenger#message}
   * @param delay {@link ChannelMessenger#delay}
   */
-  public static void sendMessage(Message msg, int delay) {
-    new Thread(new ChannelMessenger(MESSENGER_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE, msg, delay)).start();
+  public void sendMessage(Message msg, int delay) {
+    new Thread(new ChannelMessenger(peer, MESSENGER_NAME, sent, channelPort, channelAddress, BUFFER_SIZE, msg, delay)).start();
+  }
+
+  @Override
+  public void close() {
+
+    super.close();
+
+    timer.cancel();
   }
 
   public void removeFromPeerChunks(File[] chunkFiles){ // eliminar todas as ocurrencias de chunks com um certo fileid do ficheiro com info dos chunks guardados
@@ -196,7 +295,7 @@ System.out.println("RECEIVED: " + received.getType());
 
           //ler chunkIds do peer
 
-          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(Peer.CHUNKS_PATH + "/currentInfo.info"));
+          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(peer.getChunksPath() + "/currentInfo.info"));
           String[] chunksNosInThisPeer = (String[])inputStream.readObject();
 
           //procurar chunkNo nos chunkNos deste peer
@@ -212,14 +311,14 @@ System.out.println("RECEIVED: " + received.getType());
 
           // Integer[] newChunks = chunkList.toArray(new Arrays[chunkList.size()]);
 
-          ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(Peer.CHUNKS_PATH +"/currentInfo.info"));
+          ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(peer.getChunksPath() +"/currentInfo.info"));
           String[] newChunks = chunkList.stream().toArray(String[]::new);
 
           outputStream.writeObject(newChunks);
 
       }
       catch(Exception e){
-          System.out.println("BackupChannelListener for DELETE: " +e);
+          Log.error("BackupChannelListener for DELETE: " +e);
       }
 
   }
@@ -237,7 +336,7 @@ System.out.println("RECEIVED: " + received.getType());
           */
 
           //ler chunkIds do peer
-          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(Peer.CHUNKS_PATH + "/currentInfo.info"));
+          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(peer.getChunksPath() + "/currentInfo.info"));
           String[] currentInfo = (String[])inputStream.readObject();
 
           List<String> infoList = new LinkedList<String>(Arrays.asList(currentInfo));
@@ -270,7 +369,7 @@ System.out.println("RECEIVED: " + received.getType());
                     byte[] body = getChunkBody(fileID, infoChunkNo);
 
                       //send PUTCHUNK
-                      PutChunkMessage outmsg = new PutChunkMessage(tmpInfo[1], tmpInfo[2], tmpInfo[3], body);
+                      PutChunkMessage outmsg = new PutChunkMessage(peer, tmpInfo[1], tmpInfo[2], tmpInfo[3], body);
 
                       // change id to match original sender, not this peer
                       outmsg.setSenderId(tmpInfo[0]);
@@ -285,7 +384,7 @@ System.out.println("RECEIVED: " + received.getType());
               }
           }
 
-          ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(Peer.CHUNKS_PATH +"/currentInfo.info"));
+          ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(peer.getChunksPath() +"/currentInfo.info"));
 
           String[] newInfo = infoList.stream().toArray(String[]::new);
 
@@ -296,7 +395,7 @@ System.out.println("RECEIVED: " + received.getType());
 
       }
       catch(Exception e){
-          System.out.println("ControlChannelListener for REMOVED > updateLocalChunkCount: " +e);
+          Log.error("ControlChannelListener for REMOVED > updateLocalChunkCount: " +e);
       }
 
 
@@ -305,39 +404,13 @@ System.out.println("RECEIVED: " + received.getType());
 
   public void deleteChunkFile(String fileId, String chunkNo){ //delete um ficheiro .chk
 
-      try{
-          String fileName = fileId + "-" + chunkNo;
-          String filePath = "chunks/" + fileName + ".chk";
-          File chunk = new File(filePath);
-
-          if(chunk.exists()){
-              chunk.delete();
-          }
-
-      }
-      catch(Exception e){
-          System.out.println("ControlChannelListener > deleteChunkFile: " +e);
-      }
+      new FileManager(peer).deleteChunk(fileId, chunkNo);
 
   }
 
   public byte[] getChunkBody(String fileId, String chunkNo){
-      byte[] ret = null;
 
-      try{
-          String fileName = fileId + "-" + chunkNo;
-          String filePath = "chunks/" + fileName + ".chk";
-          File chunk = new File(filePath);
-
-          if(chunk.exists()){
-              ret = Files.readAllBytes(Paths.get(filePath));
-          }
-
-      }
-      catch(Exception e){
-          System.out.println("ControlChannelListener > deleteChunkFile: " +e);
-      }
-      return ret;
+      return new FileManager(peer).readChunk(fileId, chunkNo);
   }
 
   /**
@@ -360,10 +433,10 @@ System.out.println("RECEIVED: " + received.getType());
         */
 
           //ler chunkIds do peer
-          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(Peer.CHUNKS_PATH + "/currentInfo.info"));
+          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(peer.getChunksPath() + "/currentInfo.info"));
 
           String[] chunksNosInThisPeer = (String[])inputStream.readObject();
-System.out.println("chunk index string []: " + Arrays.toString(chunksNosInThisPeer));
+          Log.trace(() -> "chunk index string []: " + Arrays.toString(chunksNosInThisPeer));
 
           //procurar chunkNo nos chunkNos deste peer
           List<String> chunkList = Arrays.asList(chunksNosInThisPeer);
@@ -387,9 +460,12 @@ System.out.println("chunk index string []: " + Arrays.toString(chunksNosInThisPe
 
       }
       catch(Exception e){
-          System.out.println("ControlChannelListener > getChunkIndex: " + e);
+          Log.error("ControlChannelListener > getChunkIndex: " + e);
       }
-System.out.println("chunk index: " + chunkIndex);
+
+      int found = chunkIndex;
+      Log.trace(() -> "chunk index: " + found);
+
       return chunkIndex;
   }
 
@@ -0,0 +1,89 @@
+package peer.channel;
+
+import java.util.*;
+
+/**
+* Keeps the peers known to store each chunk, as seen in STORED messages on the MC channel.
+*
+* Only chunks that are tracked (waiting for a decision to store them, or stored by this peer)
+* are kept, so chunks stored by other peers don't pile up
+*/
+public class ReplicationTracker {
+
+  /** Peers known to store each tracked chunk, by {@link peer.message.Message#getChunkName} */
+  private HashMap<String, HashSet<String>> savers = new HashMap<String, HashSet<String>>();
+
+  /**
+  * Starts tracking a chunk
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  */
+  public synchronized void track(String chunkName) {
+
+    if (!savers.containsKey(chunkName)) {
+      savers.put(chunkName, new HashSet<String>());
+    }
+  }
+
+  /**
+  * Stops tracking a chunk
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  */
+  public synchronized void untrack(String chunkName) {
+    savers.remove(chunkName);
+  }
+
+  /**
+  * Stops tracking every chunk of a file
+  *
+  * @param fileId {@link peer.message.MessageHeader#fileId}
+  */
+  public synchronized void untrackFile(String fileId) {
+    savers.keySet().removeIf(chunkName -> chunkName.startsWith(fileId + "-"));
+  }
+
+  /**
+  * Adds a peer storing a chunk, if the chunk is tracked
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  * @param senderId Id of the peer storing the chunk
+  */
+  public synchronized void addSaver(String chunkName, String senderId) {
+
+    HashSet<String> chunkSavers = savers.get(chunkName);
+
+    if (chunkSavers != null) {
+      chunkSavers.add(senderId);
+    }
+  }
+
+  /**
+  * Removes a peer that no longer stores a chunk (REMOVED, or deleted by this peer)
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  * @param senderId Id of the peer that removed the chunk
+  */
+  public synchronized void removeSaver(String chunkName, String senderId) {
+
+    HashSet<String> chunkSavers = savers.get(chunkName);
+
+    if (chunkSavers != null) {
+      chunkSavers.remove(senderId);
+    }
+  }
+
+  /**
+  * Returns the number of peers known to store a chunk
+  *
+  * @param chunkName {@link peer.message.Message#getChunkName}
+  *
+  * @return Known replication degree of the chunk. 0 if not tracked
+  */
+  public synchronized int getRepDeg(String chunkName) {
+
+    HashSet<String> chunkSavers = savers.get(chunkName);
+
+    return chunkSavers == null ? 0 : chunkSavers.size();
+  }
+}
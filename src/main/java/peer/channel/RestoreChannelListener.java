@@ -20,133 +20,208 @@ public class RestoreChannelListener extends ChannelListener {
     public static final String CHANNEL_NAME = "(MDR) Data Restore Channel";
     /** {@link ChannelMessenger#messengerName} */
     public static final String MESSENGER_NAME = CHANNEL_NAME + " Messenger";
-    /** {@link ChannelListener#channelPort} */
-    public static final int CHANNEL_PORT = Peer.MDR_PORT;
-    /** {@link ChannelListener#channelAddress} */
-    public static final String CHANNEL_ADDRESS = Peer.MDR_ADDRESS;
     /** {@link ChannelListener#bufferSize} */
     public static final int BUFFER_SIZE = Peer.BUFFER_SIZE;
 
-    /** A synchronized arraylist holding messages waiting for CHUNK reply */
-    public static ArrayList<GetChunkMessage> waitingConfirmation = new ArrayList<GetChunkMessage>(Collections.synchronizedList(new ArrayList<GetChunkMessage>()));
+    /** Timeout of GETCHUNKs (and GETCHUNKS), from the time taken to get their CHUNKs */
+    private RtoEstimator rto = new RtoEstimator("GETCHUNK", GetChunkMessage.WAITING_WINDOW);
 
-    /** last chunk that was written to the file */
-    private int currentChunk = -1;
+    /** Messages waiting for CHUNK reply, by {@link Message#getChunkName}. Several restores may wait for the same chunk */
+    private HashMap<String, ArrayList<GetChunkMessage>> waitingConfirmation = new HashMap<String, ArrayList<GetChunkMessage>>();
 
-    /** list of chunks to write to file. */
-    private ArrayList<Message> receivedChunks = new ArrayList<Message>();
+    /** Counters of the CHUNKs sent straight to the peers restoring them */
+    private ChannelMessenger.Counters unicastSent;
 
     /**
     * Constructor
+    *
+    * @param peer {@link ChannelListener#peer}
     */
-    public RestoreChannelListener() {
-        super(CHANNEL_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE);
+    public RestoreChannelListener(Peer peer) {
+        super(peer, CHANNEL_NAME, peer.getMdrPort(), peer.getMdrAddress(), BUFFER_SIZE);
+
+        sent = new ChannelMessenger.Counters(peer.getMetrics(), MESSENGER_NAME);
+        unicastSent = new ChannelMessenger.Counters(peer.getMetrics(), UnicastListener.MESSENGER_NAME);
     }
 
+    /**
+    * Getter
+    *
+    * @return {@link #rto}
+    */
+    public RtoEstimator getRto() {
+      return rto;
+    }
 
     /**
-    * Searches {@link #waitingConfirmation} to see if the received CHUNK message is a match
+    * Getter.
+    * Must be used while holding its lock
     *
-    * @param received Message to search
+    * @return {@link #waitingConfirmation}
+    */
+    public HashMap<String, ArrayList<GetChunkMessage>> getWaitingConfirmation() {
+      return waitingConfirmation;
+    }
+
+
+    /**
+    * Adds a message to {@link #waitingConfirmation}
     *
-    * @return Index of found match. -1 otherwise
+    * @param msg Message waiting for CHUNK reply
     */
-    private int searchWaitingConfirmation(Message received) {
+    public void addWaitingConfirmation(GetChunkMessage msg) {
 
-      for (int i = 0; i < waitingConfirmation.size(); i++) {
+      synchronized (waitingConfirmation) {
 
-        GetChunkMessage msg = waitingConfirmation.get(i);
+        ArrayList<GetChunkMessage> waiting = waitingConfirmation.get(msg.getChunkName());
 
-        if (msg.getFileId().equals(received.getFileId()) && msg.getChunkNo().equals(received.getChunkNo())) {
-          return i;
+        if (waiting == null) {
+          waiting = new ArrayList<GetChunkMessage>();
+          waitingConfirmation.put(msg.getChunkName(), waiting);
         }
-      }
 
-      return -1;
+        waiting.add(msg);
+      }
     }
 
 
     /**
-    * Looks for the next chunk to append to file
+    * Removes a message from {@link #waitingConfirmation}
+    *
+    * @param msg Message no longer waiting for CHUNK reply
     */
-    private Message searchReceivedChunks() {
-      for (Message msg : receivedChunks) {
-        if (Integer.parseInt(msg.getChunkNo()) == currentChunk - 1) {
-          return msg;
+    public void removeWaitingConfirmation(GetChunkMessage msg) {
+
+      synchronized (waitingConfirmation) {
+
+        ArrayList<GetChunkMessage> waiting = waitingConfirmation.get(msg.getChunkName());
+
+        if (waiting != null) {
+
+          waiting.remove(msg);
+
+          if (waiting.isEmpty()) {
+            waitingConfirmation.remove(msg.getChunkName());
+          }
         }
       }
-      return null;
     }
 
 
-    @Override //TODO aqui
+    @Override
     protected void handler(Message received) {
 
-        int delay = 0;
-
         // figure out what to do based on message type
         switch (received.getType()) {
             case "CHUNK": //outros peers veem se tem um chunk e mandam para MDR
             {
-              synchronized (waitingConfirmation) {
+              // other peers waiting to send this chunk will skip it
+              peer.getSuppressor().seen(received.getChunkName());
+
+              deliver(received);
+              break;
+            }
+            case "SERVED": // chunk sent straight to the initiator
+            {
+              // other peers waiting to send this chunk to the same initiator will skip it
+              peer.getSuppressor().seen(ChunkSuppressor.servedName(received.getChunkName(), received.getReplyTo()));
+              break;
+            }
+            default:
+            break;
+        }
+    }
 
-                int i;
+    /**
+    * Hands a received chunk to the requests waiting for it
+    * (received on MDR or, with the enhanced protocol, on {@link UnicastListener})
+    *
+    * @param received CHUNK message
+    */
+    public void deliver(Message received) {
 
-                // check if this peer is interested in this chunk
-                if ((i = searchWaitingConfirmation(received)) >= 0) {
+      // requests answered by this chunk
+      ArrayList<GetChunkMessage> replied = new ArrayList<GetChunkMessage>();
 
-                  GetChunkMessage msg = waitingConfirmation.get(i);
+      synchronized (waitingConfirmation) {
 
-                  // replied received
-                  msg.setReplied(true);
+        ArrayList<GetChunkMessage> waiting = waitingConfirmation.get(received.getChunkName());
 
-                  // if time window for CHUNK is over
-                  if (!msg.getWaiting()) {
-                    // update queue
-                    msg.update();
-                  }
+        // check if this peer is interested in this chunk
+        if (waiting == null) {
+          return;
+        }
 
-                  // if this is the next chunk
-                  if (Integer.parseInt(received.getChunkNo()) == currentChunk + 1) {
+        for (GetChunkMessage msg : new ArrayList<GetChunkMessage>(waiting)) {
 
-                    // if this is the last chunk
-                    if (received.getBodyLength() < Message.CHUNK_SIZE) {
-                      currentChunk = -1;
-                      receivedChunks.clear();
-                    }
+          // ignore duplicate replies
+          if (msg.getReplied()) {
+            continue;
+          }
 
-                    // append to file
-                    new FileManager().build(received);
-                  }
-                  else {
+          // replied received
+          msg.setReplied(true);
 
-                    // check if next chunk is already stored waiting
-                    Message nextChunk = searchReceivedChunks();
+          // measure how long the reply took
+          msg.sample();
 
-                    if (nextChunk != null) {
+          // if time window for CHUNK is over
+          if (!msg.getWaiting()) {
+            // update queue
+            msg.update();
+          }
 
-                      // if this is the last chunk
-                      if (nextChunk.getBodyLength() < Message.CHUNK_SIZE) {
-                        currentChunk = -1;
-                        receivedChunks.clear();
-                      }
+          replied.add(msg);
+        }
+      }
 
-                      // append to file
-                      new FileManager().build(nextChunk);
-                    }
-                    else {
+      // write the chunk where it belongs, in each restore waiting for it
+      // (the request knows where, since the chunk may belong to a previous version of the file)
+      for (GetChunkMessage msg : replied) {
+        if (msg.getSession() != null) {
+          msg.getSession().received(msg.getIndex(), received);
+        }
+      }
+    }
 
-                      // store chunk
-                      receivedChunks.add(received);
-                    }
-                  }
-              }
-              }
-              break;
-            }
-            default:
-            break;
+    /**
+    * Sends a chunk to the peer that requested it.
+    * If the request carries a {@link MessageHeader#replyTo} endpoint (enhanced protocol),
+    * the body goes straight to it and MDR only gets a {@link ServedMessage} notice
+    *
+    * @param request GETCHUNK or GETCHUNKS being answered
+    * @param msg CHUNK message
+    * @param wait TRUE to send from the calling thread
+    */
+    public void reply(Message request, ChunkMessage msg, boolean wait) {
+
+      ArrayList<ChannelMessenger> messengers = new ArrayList<ChannelMessenger>();
+
+      String replyTo = request.getReplyTo();
+
+      if (replyTo != null && peer.isEnhanced()) {
+
+        String[] endpoint = replyTo.split(":");
+
+        messengers.add(new ChannelMessenger(peer, UnicastListener.MESSENGER_NAME, unicastSent, Integer.parseInt(endpoint[1]), endpoint[0], BUFFER_SIZE, msg, 0));
+
+        ServedMessage served = new ServedMessage(msg.getFileId(), msg.getChunkNo());
+        served.setReplyTo(replyTo);
+
+        messengers.add(new ChannelMessenger(peer, MESSENGER_NAME, sent, channelPort, channelAddress, BUFFER_SIZE, served, 0));
+      }
+      else {
+        messengers.add(new ChannelMessenger(peer, MESSENGER_NAME, sent, channelPort, channelAddress, BUFFER_SIZE, msg, 0));
+      }
+
+      for (ChannelMessenger messenger : messengers) {
+        if (wait) {
+          messenger.run();
+        }
+        else {
+          new Thread(messenger).start();
         }
+      }
     }
 
     /**
@@ -154,8 +229,8 @@ public class RestoreChannelListener extends ChannelListener {
     *
     * @param msg {@link ChannelMessenger#message}
     */
-    public static void sendMessage(Message msg) {
-        new Thread(new ChannelMessenger(MESSENGER_NAME, CHANNEL_PORT, CHANNEL_ADDRESS, BUFFER_SIZE, msg, 0)).start();
+    public void sendMessage(Message msg) {
+        new Thread(new ChannelMessenger(peer, MESSENGER_NAME, sent, channelPort, channelAddress, BUFFER_SIZE, msg, 0)).start();
     }
 
 
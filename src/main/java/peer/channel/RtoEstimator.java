@@ -0,0 +1,121 @@
+package peer.channel;
+
+import peer.log.*;
+
+/**
+* Estimates how long to wait for the reply to a request before resending it (retransmission timeout).
+*
+* Keeps a smoothed round trip time and its variation, as TCP does (RFC 6298):
+* RTO = SRTT + 4 * RTTVAR, bounded by {@link #MIN_RTO} and {@link #MAX_RTO}.
+* Only requests that weren't resent give samples (Karn's rule), since a late reply
+* can't be matched to the right send
+*/
+public class RtoEstimator {
+
+  /** Weight of a new sample in the smoothed round trip time */
+  private static final double ALPHA = 1 / 8.0;
+
+  /** Weight of a new sample in the round trip time variation */
+  private static final double BETA = 1 / 4.0;
+
+  /** Min timeout (in milliseconds) */
+  public static final int MIN_RTO = 100;
+
+  /** Max timeout (in milliseconds) */
+  public static final int MAX_RTO = 60000;
+
+  /** Name of the estimator (usually the name of the request) */
+  private String name;
+
+  /** Smoothed round trip time (in milliseconds). Negative until the first sample */
+  private double srtt = -1;
+
+  /** Round trip time variation (in milliseconds) */
+  private double rttvar = 0;
+
+  /** Current timeout (in milliseconds) */
+  private int rto;
+
+  /** Last time (in milliseconds) the timeout was backed off */
+  private long lastBackoff = 0;
+
+  /**
+  * Constructor
+  *
+  * @param name {@link #name}
+  * @param initialRto Timeout (in milliseconds) to use until the first sample
+  */
+  public RtoEstimator(String name, int initialRto) {
+    this.name = name;
+    this.rto = initialRto;
+  }
+
+  /**
+  * Adds a round trip time sample
+  *
+  * @param rtt Time (in milliseconds) between sending a request (not resent) and getting its reply
+  */
+  public synchronized void sample(long rtt) {
+
+    if (srtt < 0) {
+      // first sample
+      srtt = rtt;
+      rttvar = rtt / 2.0;
+    }
+    else {
+      rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+      srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+    }
+
+    rto = bound(srtt + 4 * rttvar);
+  }
+
+  /**
+  * Called when a request (not resent) times out.
+  * Doubles the timeout, at most once per timeout period, so many requests
+  * timing out together only back off once
+  */
+  public synchronized void backoff() {
+
+    long now = System.currentTimeMillis();
+
+    if (now - lastBackoff < rto) {
+      return;
+    }
+
+    lastBackoff = now;
+
+    rto = bound(rto * 2.0);
+
+    Log.debug(() -> name + ": Timeout backed off to " + rto + "ms");
+  }
+
+  /**
+  * Getter
+  *
+  * @return Current timeout (in milliseconds)
+  */
+  public synchronized int getRto() {
+    return rto;
+  }
+
+  /**
+  * Returns the estimator state, for the STATE sub protocol
+  *
+  * @return Estimator description
+  */
+  public synchronized String state() {
+    return name + " srtt " + Math.round(Math.max(srtt, 0)) + "ms, rttvar " + Math.round(rttvar) + "ms, rto " + rto + "ms";
+  }
+
+  /**
+  * Keeps a timeout within {@link #MIN_RTO} and {@link #MAX_RTO}
+  *
+  * @param rto Timeout (in milliseconds)
+  *
+  * @return Bounded timeout
+  */
+  private static int bound(double rto) {
+    return (int)Math.max(MIN_RTO, Math.min(MAX_RTO, Math.ceil(rto)));
+  }
+}
@@ -0,0 +1,93 @@
+package peer.channel;
+
+import peer.*;
+import peer.message.*;
+
+import java.util.*;
+
+/**
+* Coalesces the STORED confirmations of a file (enhanced protocol).
+*
+* The first chunk stored of a file opens a batch, which is sent as a single
+* STOREDCHUNKS message after {@link #WINDOW}.
+* Chunks are only stored after a random delay (see {@link BackupChannelListener}),
+* so batches of different peers are still spread in time.
+* The window is short so other peers see the confirmations before deciding to store
+*/
+public class StoredBatcher {
+
+  /** Number of milliseconds during which confirmations of a file are coalesced */
+  public static final int WINDOW = 50;
+
+  /** Peer sending the confirmations */
+  private Peer peer;
+
+  /** Chunks stored and not yet confirmed, by file id */
+  private HashMap<String, BitSet> pending = new HashMap<String, BitSet>();
+
+  /** Timer sending the batches */
+  private Timer timer = new Timer(true);
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  */
+  public StoredBatcher(Peer peer) {
+    this.peer = peer;
+  }
+
+  /**
+  * Adds a chunk to the batch of its file
+  *
+  * @param fileId {@link MessageHeader#fileId}
+  * @param chunkNo {@link MessageHeader#chunkNo}
+  */
+  public synchronized void add(String fileId, String chunkNo) {
+
+    BitSet chunks = pending.get(fileId);
+
+    // open a new batch
+    if (chunks == null) {
+
+      chunks = new BitSet();
+      pending.put(fileId, chunks);
+
+      timer.schedule(
+        new TimerTask() {
+          @Override
+          public void run() {
+            flush(fileId);
+          }
+        }, WINDOW
+      );
+    }
+
+    chunks.set(Integer.parseInt(chunkNo));
+  }
+
+  /**
+  * Sends the batch of a file to the MC channel
+  *
+  * @param fileId {@link MessageHeader#fileId}
+  */
+  private void flush(String fileId) {
+
+    BitSet chunks;
+
+    synchronized (this) {
+      chunks = pending.remove(fileId);
+    }
+
+    if (chunks != null && !chunks.isEmpty()) {
+      peer.getControlChannel().sendMessage(new StoredChunksMessage(fileId, chunks), 0);
+    }
+  }
+
+  /**
+  * Stops sending batches. Pending confirmations are dropped
+  */
+  public void close() {
+    timer.cancel();
+  }
+}
@@ -0,0 +1,177 @@
+package peer.channel;
+
+import peer.message.*;
+import peer.metrics.*;
+import peer.*;
+import peer.log.*;
+import peer.transport.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Peer thread to receive the CHUNKs sent straight to this peer (enhanced protocol).
+*
+* The requests of this peer carry its endpoint in the {@link MessageHeader#REPLYTO_LINE} header line,
+* so storage peers send the chunk bodies here instead of to the MDR channel
+*/
+public class UnicastListener {
+
+  /** Name of the listener */
+  public static final String CHANNEL_NAME = "(UDP) Unicast Restore";
+  /** {@link ChannelMessenger#messengerName} */
+  public static final String MESSENGER_NAME = CHANNEL_NAME + " Messenger";
+
+  /** Peer the listener belongs to */
+  private Peer peer;
+
+  /** Endpoint ("host:port") this peer receives chunks on. null if not listening */
+  private volatile String endpoint = null;
+
+  /** Endpoint bound. null until {@link #start} */
+  private Transport.Membership membership;
+
+  /** Number of packets received */
+  private LongAdder packetsIn;
+
+  /** Number of bytes received */
+  private LongAdder bytesIn;
+
+  /** Number of packets dropped because they aren't CHUNKs */
+  private LongAdder dropped;
+
+  /** Time (in nanoseconds) spent parsing each packet */
+  private Histogram parseTime;
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  */
+  public UnicastListener(Peer peer) {
+
+    this.peer = peer;
+
+    String key = Metrics.channelKey(CHANNEL_NAME);
+
+    packetsIn = peer.getMetrics().counter(key + ".packets.in");
+    bytesIn = peer.getMetrics().counter(key + ".bytes.in");
+    dropped = peer.getMetrics().counter(key + ".dropped");
+    parseTime = peer.getMetrics().histogram(key + ".parse.ns");
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #endpoint}
+  */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+  * Binds an endpoint on any free port (a datagram socket on every local address, over UDP)
+  * and advertises it at an address the other peers can reach (see {@link #getAdvertisedAddress})
+  */
+  public void start() {
+
+    String address = getAdvertisedAddress();
+
+    try {
+      membership = peer.getTransport().bind(address, Peer.BUFFER_SIZE, this::receive);
+
+      endpoint = address + ":" + membership.getPort();
+    }
+    catch (IOException e) {
+      Log.error(CHANNEL_NAME + ": Error creating datagram socket: " + e);
+    }
+  }
+
+  /**
+  * Returns the address advertised in {@link MessageHeader#REPLYTO_LINE}:
+  * {@link Peer#getUnicastAddress} if set, else the access point address unless it is a loopback one,
+  * else the first address of an interface up that isn't a loopback one
+  *
+  * @return Address of this peer for the other peers. The access point address if none is found
+  */
+  private String getAdvertisedAddress() {
+
+    if (peer.getUnicastAddress() != null) {
+      return peer.getUnicastAddress();
+    }
+
+    String address = peer.getAccessPointAddress();
+
+    try {
+
+      if (!InetAddress.getByName(address).isLoopbackAddress()) {
+        return address;
+      }
+
+      for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+
+        if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+          continue;
+        }
+
+        for (InetAddress local : Collections.list(networkInterface.getInetAddresses())) {
+
+          // link local addresses need a scope, skip them
+          if (local instanceof Inet4Address && !local.isLinkLocalAddress()) {
+            return local.getHostAddress();
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      Log.error(CHANNEL_NAME + ": Error finding a routable address: " + e);
+    }
+
+    Log.warn(CHANNEL_NAME + ": no routable address found, other hosts can't reach " + address + " (see --unicast-address)");
+
+    return address;
+  }
+
+  /**
+  * Called when a packet arrives.
+  * Hands CHUNKs to the restore channel
+  *
+  * @param packet Contents of the packet
+  */
+  private void receive(byte[] packet) {
+
+    packetsIn.increment();
+    bytesIn.add(packet.length);
+
+    long start = System.nanoTime();
+
+    // parse message
+    Message received = Message.parser(packet);
+
+    parseTime.record(System.nanoTime() - start);
+
+    // only chunks are sent here
+    if (received == null || !received.getType().equals("CHUNK")) {
+      dropped.increment();
+      return;
+    }
+
+    Log.debug(() -> CHANNEL_NAME + ": " + received.getHeader().print() + " -> " + received.getBodyLength() + " bytes");
+
+    peer.getRestoreChannel().deliver(received);
+  }
+
+  /**
+  * Stops listening
+  */
+  public void close() {
+
+    endpoint = null;
+
+    if (membership != null) {
+      membership.leave();
+    }
+  }
+}
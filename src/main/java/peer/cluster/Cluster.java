@@ -0,0 +1,193 @@
+package peer.cluster;
+
+import peer.*;
+import peer.transport.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+* Several peers running in the same JVM, sharing a transport.
+*
+* Each peer has its own id and keeps its chunks and restored files under a directory of the cluster,
+* so the peers behave as if they ran in different JVMs of the same host
+* (or, with a {@link MemoryTransport}, of a network with no other traffic)
+*/
+public class Cluster {
+
+  /** Control channel of the peers */
+  public static final String MC = "230.0.0.1:8081";
+
+  /** Data backup channel of the peers */
+  public static final String MDB = "230.0.0.2:8082";
+
+  /** Data restore channel of the peers */
+  public static final String MDR = "230.0.0.3:8083";
+
+  /** Access point address of the peers (only used as the unicast endpoint, advertised as is since every peer runs on this host) */
+  public static final String HOST = "localhost";
+
+  /** Access point port of the first peer, the next ones follow */
+  public static final int FIRST_PORT = 8091;
+
+  /** Directory holding the chunks and restored files of the peers */
+  private String directory;
+
+  /** Carries the messages of every peer */
+  private Transport transport;
+
+  /** Peers, by position (peer i has id i + 1) */
+  private ArrayList<Peer> peers = new ArrayList<Peer>();
+
+  /**
+  * Constructor.
+  * Creates the peers, over UDP multicast, without starting them
+  *
+  * @param size Number of peers
+  * @param version Protocol version of the peers
+  * @param directory {@link #directory}
+  */
+  public Cluster(int size, String version, String directory) {
+    this(size, version, directory, new MulticastTransport());
+  }
+
+  /**
+  * Constructor.
+  * Creates the peers, without starting them
+  *
+  * @param size Number of peers
+  * @param version Protocol version of the peers
+  * @param directory {@link #directory}
+  * @param transport {@link #transport}
+  */
+  public Cluster(int size, String version, String directory, Transport transport) {
+
+    this.directory = directory;
+    this.transport = transport;
+
+    for (int i = 0; i < size; i++) {
+
+      String id = Integer.toString(i + 1);
+
+      Peer peer = new Peer(MC, MDB, MDR, version, id, HOST + ":" + (FIRST_PORT + i));
+
+      peer.setChunksPath(Paths.get(directory, "chunks", "peer" + id) + File.separator);
+      peer.setRestoredPath(Paths.get(directory, "restored", "peer" + id) + File.separator);
+      peer.setTransport(transport);
+      peer.setUnicastAddress(HOST);
+
+      peers.add(peer);
+    }
+  }
+
+  /**
+  * Starts every peer, forgetting what previous runs left in {@link #directory}
+  *
+  * @throws IOException If the directory can't be cleaned
+  */
+  public void start() throws IOException {
+
+    clean();
+
+    for (Peer peer : peers) {
+      peer.start();
+    }
+  }
+
+  /**
+  * Stops every peer, then the transport
+  */
+  public void stop() {
+
+    for (Peer peer : peers) {
+      peer.stop();
+    }
+
+    transport.close();
+  }
+
+  /**
+  * Getter
+  *
+  * @param i Position of the peer
+  *
+  * @return Peer with id i + 1
+  */
+  public Peer getPeer(int i) {
+    return peers.get(i);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #peers}
+  */
+  public List<Peer> getPeers() {
+    return peers;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #transport}
+  */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #directory}
+  */
+  public String getDirectory() {
+    return directory;
+  }
+
+  /**
+  * Returns a counter summed over every peer
+  *
+  * @param name Name of the counter (see {@link peer.metrics.Metrics#counter})
+  *
+  * @return Sum of the counter
+  */
+  public long sum(String name) {
+
+    long sum = 0;
+
+    for (Peer peer : peers) {
+      sum += peer.getMetrics().counter(name).sum();
+    }
+
+    return sum;
+  }
+
+  /**
+  * Deletes {@link #directory} and everything in it
+  *
+  * @throws IOException If a file can't be deleted
+  */
+  private void clean() throws IOException {
+
+    Path root = Paths.get(directory);
+
+    if (!Files.exists(root)) {
+      return;
+    }
+
+    // children first
+    ArrayList<Path> paths = new ArrayList<Path>();
+
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.forEach(paths::add);
+    }
+
+    Collections.reverse(paths);
+
+    for (Path path : paths) {
+      Files.delete(path);
+    }
+  }
+}
@@ -0,0 +1,563 @@
+package peer.cluster;
+
+import peer.*;
+import peer.file.*;
+import peer.log.*;
+import peer.metrics.*;
+import peer.transport.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Runs backup, restore, reclaim and delete workloads on a {@link Cluster}
+* and reports, for each of them, the throughput, latency percentiles and retransmissions.
+*
+* Files are backed up (and later restored and deleted) by the peers in turn,
+* {@link #parallel} at a time. Restored files are compared with the originals
+*/
+public class ClusterBenchmark {
+
+  /** Counters reported after each workload, summed over every peer */
+  public static final String[] COUNTERS = {"putchunk.resends", "putchunk.failed", "getchunk.resends", "getchunks.resends", "getchunk.failed", "stores.skipped", "replies.suppressed"};
+
+  /** Max number of milliseconds to wait for every chunk of a deleted file to be gone */
+  public static final int DELETE_TIMEOUT = 10000;
+
+  /** Number of milliseconds between two checks for the chunks of a deleted file */
+  public static final int DELETE_POLL = 10;
+
+  /**
+  * One operation of a workload
+  */
+  private interface Operation {
+
+    /**
+    * Runs the operation
+    *
+    * @param i Position of the file (or peer) the operation is about
+    *
+    * @return Number of bytes handled. Negative if the operation failed
+    *
+    * @throws Exception If the operation couldn't run
+    */
+    long run(int i) throws Exception;
+  }
+
+  /** Number of peers. Set with --peers N */
+  private int npeers = 4;
+
+  /** Number of files. Set with --files N */
+  private int nfiles = 8;
+
+  /** Size (in bytes) of each file. Set with --size BYTES */
+  private int size = 1000000;
+
+  /** Desired replication degree of the files. Set with --repdeg N */
+  private String repDeg = "2";
+
+  /** Max number of operations running at the same time. Set with --parallel N */
+  private int parallel = 4;
+
+  /** Protocol version of the peers. Set with --version V */
+  private String version = Peer.ENHANCED_VERSION;
+
+  /** Percentage of the used space each peer frees in the reclaim workload, 0 to skip it. Set with --reclaim PERCENT */
+  private int reclaim = 50;
+
+  /** Transport of the peers: "memory" (in this JVM, no network) or "multicast" (UDP). Set with --transport NAME */
+  private String transport = "memory";
+
+  /** Impairment of every channel, null for none. Set with --impair SPEC (see {@link Impairment}) */
+  private Impairment impairment = null;
+
+  /** Impairments of single channels, by "address:port". Set with --impair-mc, --impair-mdb and --impair-mdr SPEC */
+  private HashMap<String, Impairment> channelImpairments = new HashMap<String, Impairment>();
+
+  /** Seed of the impairments. Set with --seed N */
+  private long seed = 1;
+
+  /** Bus carrying the messages, null over multicast */
+  private MemoryTransport memoryTransport = null;
+
+  /** Transport impairing the messages, null if none is impaired */
+  private ImpairedTransport impairedTransport = null;
+
+  /** Directory of the cluster. Set with --dir PATH */
+  private String directory = "cluster";
+
+  /** TRUE to deduplicate chunks. Set with --dedup */
+  private boolean dedup = false;
+
+  /** TRUE to have restored chunks sent straight to the peers. Set with --unicast */
+  private boolean unicast = false;
+
+  /** TRUE to cut chunks based on their contents. Set with --cdc */
+  private boolean contentDefined = false;
+
+  /** TRUE to compress chunks. Set with --compress */
+  private boolean compress = false;
+
+  /** Peers being measured */
+  private Cluster cluster;
+
+  /** Paths of the files */
+  private ArrayList<String> files = new ArrayList<String>();
+
+  /**
+  * Entry point of the program
+  *
+  * @param args Options
+  *
+  * @throws Exception If the cluster can't be started
+  */
+  public static void main(String[] args) throws Exception {
+
+    // peers only report problems, so they don't mix with the report
+    Log.LEVEL = Log.Level.WARN;
+
+    ClusterBenchmark benchmark = new ClusterBenchmark();
+
+    if (!benchmark.parseOptions(args)) {
+      System.out.println("syntax: [--peers N] [--files N] [--size BYTES] [--repdeg N] [--parallel N] [--version V] [--reclaim PERCENT] [--transport memory|multicast] [--impair SPEC] [--impair-mc SPEC] [--impair-mdb SPEC] [--impair-mdr SPEC] [--seed N] [--dir PATH] [--dedup] [--unicast] [--cdc] [--compress] [--log LEVEL]");
+      return;
+    }
+
+    benchmark.run();
+  }
+
+  /**
+  * Reads the options
+  *
+  * @param args Options
+  *
+  * @return FALSE if an option is unknown, lacks its value or has an invalid one
+  */
+  private boolean parseOptions(String[] args) {
+    try {
+      return readOptions(args);
+    }
+    catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+  * Reads the options
+  *
+  * @param args Options
+  *
+  * @return FALSE if an option is unknown or lacks its value
+  *
+  * @throws IllegalArgumentException If a value is invalid
+  */
+  private boolean readOptions(String[] args) {
+
+    for (int i = 0; i < args.length; i++) {
+
+      // value of the option, if any
+      String value = i + 1 < args.length ? args[i + 1] : null;
+
+      switch (args[i]) {
+        case "--dedup":
+          dedup = true;
+          continue;
+        case "--unicast":
+          unicast = true;
+          continue;
+        case "--cdc":
+          contentDefined = true;
+          continue;
+        case "--compress":
+          compress = true;
+          continue;
+        default:
+          break;
+      }
+
+      if (value == null) {
+        return false;
+      }
+
+      switch (args[i]) {
+        case "--peers":
+          npeers = Integer.parseInt(value);
+          break;
+        case "--files":
+          nfiles = Integer.parseInt(value);
+          break;
+        case "--size":
+          size = Integer.parseInt(value);
+          break;
+        case "--repdeg":
+          repDeg = value;
+          break;
+        case "--parallel":
+          parallel = Integer.parseInt(value);
+          break;
+        case "--version":
+          version = value;
+          break;
+        case "--reclaim":
+          reclaim = Integer.parseInt(value);
+          break;
+        case "--transport":
+          if (!value.equals("memory") && !value.equals("multicast")) {
+            return false;
+          }
+          transport = value;
+          break;
+        case "--impair":
+          impairment = Impairment.parse(value);
+          break;
+        case "--impair-mc":
+          channelImpairments.put(Cluster.MC, Impairment.parse(value));
+          break;
+        case "--impair-mdb":
+          channelImpairments.put(Cluster.MDB, Impairment.parse(value));
+          break;
+        case "--impair-mdr":
+          channelImpairments.put(Cluster.MDR, Impairment.parse(value));
+          break;
+        case "--seed":
+          seed = Long.parseLong(value);
+          break;
+        case "--dir":
+          directory = value;
+          break;
+        case "--log":
+          Log.LEVEL = Log.Level.valueOf(value.toUpperCase());
+          break;
+        default:
+          return false;
+      }
+
+      // skip the value
+      i++;
+    }
+
+    return true;
+  }
+
+  /**
+  * Starts the cluster, runs the workloads and stops the cluster
+  *
+  * @throws Exception If the cluster can't be started
+  */
+  private void run() throws Exception {
+
+    cluster = new Cluster(npeers, version, directory, createTransport());
+
+    for (Peer peer : cluster.getPeers()) {
+      peer.setDedup(dedup);
+      peer.setUnicast(unicast);
+    }
+
+    cluster.start();
+
+    createFiles();
+
+    System.out.println(npeers + " peers over " + transport + ", version " + version + ", " + nfiles + " files of " + size + " bytes, rep deg " + repDeg + ", " + parallel + " at a time"
+      + (dedup ? ", dedup" : "") + (unicast ? ", unicast" : "") + (contentDefined ? ", cdc" : "") + (compress ? ", compress" : ""));
+
+    if (impairedTransport != null) {
+
+      System.out.println("impaired (seed " + seed + "): " + (impairment != null ? impairment : Impairment.NONE));
+
+      for (Map.Entry<String, Impairment> channel : channelImpairments.entrySet()) {
+        System.out.println("  " + channel.getKey() + ": " + channel.getValue());
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallel);
+
+    try {
+      runWorkload(executor, "backup", nfiles, this::backup);
+      runWorkload(executor, "restore", nfiles, this::restore);
+
+      if (reclaim > 0) {
+        runWorkload(executor, "reclaim", npeers, this::reclaim);
+      }
+
+      runWorkload(executor, "delete", nfiles, this::delete);
+
+      if (memoryTransport != null) {
+        System.out.println("transport " + memoryTransport.getDelivered() + " packets delivered, " + memoryTransport.getDropped() + " dropped (queues full)");
+      }
+
+      if (impairedTransport != null) {
+        System.out.println("impaired " + impairedTransport.getLost() + " packets lost, " + impairedTransport.getDuplicated() + " duplicated, "
+          + impairedTransport.getDelayed() + " delayed, " + impairedTransport.getOverflowed() + " dropped (no bandwidth left)");
+      }
+    }
+    finally {
+      executor.shutdownNow();
+      cluster.stop();
+    }
+  }
+
+  /**
+  * Creates the transport of the peers, impaired if asked to
+  *
+  * @return Transport
+  */
+  private Transport createTransport() {
+
+    Transport base;
+
+    if (transport.equals("memory")) {
+      memoryTransport = new MemoryTransport();
+      base = memoryTransport;
+    }
+    else {
+      base = new MulticastTransport();
+    }
+
+    if (impairment == null && channelImpairments.isEmpty()) {
+      return base;
+    }
+
+    impairedTransport = new ImpairedTransport(base, impairment != null ? impairment : Impairment.NONE, seed);
+
+    for (Map.Entry<String, Impairment> channel : channelImpairments.entrySet()) {
+
+      String[] parts = channel.getKey().split(":");
+
+      impairedTransport.setImpairment(parts[0], Integer.parseInt(parts[1]), channel.getValue());
+    }
+
+    return impairedTransport;
+  }
+
+  /**
+  * Writes the files to back up, with random contents
+  *
+  * @throws IOException If a file can't be written
+  */
+  private void createFiles() throws IOException {
+
+    Path parent = Paths.get(directory, "files");
+
+    Files.createDirectories(parent);
+
+    // same contents on every run
+    Random random = new Random(0);
+
+    for (int i = 0; i < nfiles; i++) {
+
+      byte[] contents = new byte[size];
+      random.nextBytes(contents);
+
+      files.add(Files.write(parent.resolve("file" + i + ".bin"), contents).toString());
+    }
+  }
+
+  /**
+  * Returns the peer initiating the operations on a file
+  *
+  * @param i Position of the file
+  *
+  * @return Peer backing up, restoring and deleting the file
+  */
+  private Peer getInitiator(int i) {
+    return cluster.getPeer(i % npeers);
+  }
+
+  /**
+  * Backs up a file, until every chunk reaches its replication degree (or is given up on)
+  *
+  * @param i Position of the file
+  *
+  * @return Size of the file. -1 if a chunk couldn't be stored
+  *
+  * @throws Exception If interrupted
+  */
+  private long backup(int i) throws Exception {
+
+    BackupSession session = getInitiator(i).backup(files.get(i), repDeg, false, contentDefined, compress);
+
+    return session != null && session.getCompletion().get() ? size : -1;
+  }
+
+  /**
+  * Restores a file and compares it with the original
+  *
+  * @param i Position of the file
+  *
+  * @return Size of the file. -1 if the restore failed or differs from the original
+  *
+  * @throws Exception If a file can't be read
+  */
+  private long restore(int i) throws Exception {
+
+    RestoreSession session = getInitiator(i).restore(files.get(i));
+
+    if (!session.getCompletion().get()) {
+      return -1;
+    }
+
+    byte[] original = Files.readAllBytes(Paths.get(files.get(i)));
+    byte[] restored = Files.readAllBytes(Paths.get(session.getOutputPath()));
+
+    return Arrays.equals(original, restored) ? size : -1;
+  }
+
+  /**
+  * Has a peer free {@link #reclaim} percent of the space its chunks use
+  *
+  * @param i Position of the peer
+  *
+  * @return Number of bytes freed
+  */
+  private long reclaim(int i) {
+
+    Peer peer = cluster.getPeer(i);
+
+    long used = new FileManager(peer).getUsedSpace();
+
+    return peer.reclaim(used * (100 - reclaim) / 100);
+  }
+
+  /**
+  * Deletes a file, until no peer stores any of its chunks
+  *
+  * @param i Position of the file
+  *
+  * @return Size of the file. -1 if chunks are still stored after {@link #DELETE_TIMEOUT}
+  *
+  * @throws Exception If interrupted
+  */
+  private long delete(int i) throws Exception {
+
+    Peer initiator = getInitiator(i);
+
+    FileRecord record = initiator.getCatalog().get(files.get(i));
+
+    initiator.deleteFile(files.get(i));
+
+    if (record == null) {
+      return -1;
+    }
+
+    long deadline = System.currentTimeMillis() + DELETE_TIMEOUT;
+
+    while (isStored(record)) {
+
+      if (System.currentTimeMillis() > deadline) {
+        return -1;
+      }
+
+      Thread.sleep(DELETE_POLL);
+    }
+
+    return size;
+  }
+
+  /**
+  * Checks if a peer still stores a chunk of a file
+  *
+  * @param record File
+  *
+  * @return TRUE if a chunk is stored
+  */
+  private boolean isStored(FileRecord record) {
+
+    for (Peer peer : cluster.getPeers()) {
+
+      FileManager fileManager = new FileManager(peer);
+
+      for (ChunkRecord chunk : record.getChunks()) {
+        if (fileManager.hasChunk(chunk.getFileId(), chunk.getChunkNo())) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+  * Runs the operations of a workload, {@link #parallel} at a time, and prints its report
+  *
+  * @param executor Runs the operations
+  * @param name Name of the workload
+  * @param count Number of operations
+  * @param operation Operation to run, on each file (or peer)
+  *
+  * @throws InterruptedException If interrupted
+  */
+  private void runWorkload(ExecutorService executor, String name, int count, Operation operation) throws InterruptedException {
+
+    // counters before the workload
+    long[] before = new long[COUNTERS.length];
+
+    for (int c = 0; c < COUNTERS.length; c++) {
+      before[c] = cluster.sum(COUNTERS[c]);
+    }
+
+    // time (in milliseconds) taken by each operation
+    Histogram latency = new Histogram();
+
+    ArrayList<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+
+    for (int i = 0; i < count; i++) {
+
+      int position = i;
+
+      tasks.add(() -> {
+
+        long start = System.currentTimeMillis();
+
+        long bytes = operation.run(position);
+
+        latency.record(System.currentTimeMillis() - start);
+
+        return bytes;
+      });
+    }
+
+    long start = System.nanoTime();
+
+    List<Future<Long>> results = executor.invokeAll(tasks);
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    long bytes = 0;
+    int failed = 0;
+
+    for (Future<Long> result : results) {
+      try {
+        long handled = result.get();
+
+        if (handled < 0) {
+          failed++;
+        }
+        else {
+          bytes += handled;
+        }
+      }
+      catch (ExecutionException e) {
+        Log.error("ClusterBenchmark: Error running " + name + ": " + e.getCause());
+        failed++;
+      }
+    }
+
+    StringBuilder counters = new StringBuilder();
+
+    for (int c = 0; c < COUNTERS.length; c++) {
+      counters.append(c > 0 ? ", " : "").append(COUNTERS[c]).append(' ').append(cluster.sum(COUNTERS[c]) - before[c]);
+    }
+
+    // print what the peers reported first
+    LogAppender.flush();
+
+    System.out.println(String.format("%-8s %d ops, %d failed, %.2f s, %.2f MB/s, latency ms p50 %d p90 %d p99 %d max %d",
+      name, count, failed, seconds, bytes / 1e6 / seconds,
+      latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99), latency.getMax()));
+
+    System.out.println("         " + counters);
+  }
+}
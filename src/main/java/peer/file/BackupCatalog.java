@@ -0,0 +1,113 @@
+package peer.file;
+
+import peer.*;
+import peer.log.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Keeps the last backed up version of each file initiated by a peer.
+* Saved to disk so it survives restarts
+*/
+public class BackupCatalog {
+
+  /** Name of the file (inside {@link Peer#getChunksPath}) holding the catalog */
+  private static final String CATALOG_FILE = "catalog.info";
+
+  /** Peer that backed up the files */
+  private Peer peer;
+
+  /** Last version of each file, by filepath. Loaded on first use */
+  private HashMap<String, FileRecord> records = null;
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  */
+  public BackupCatalog(Peer peer) {
+    this.peer = peer;
+  }
+
+  /**
+  * Returns the last backed up version of a file
+  *
+  * @param filepath Path of the file
+  *
+  * @return Last version of the file. null if it was never backed up
+  */
+  public synchronized FileRecord get(String filepath) {
+    return getRecords().get(filepath);
+  }
+
+  /**
+  * Saves a new version of a file, replacing the previous one
+  *
+  * @param record Version to save
+  *
+  * @return Version that was replaced. null if there was none
+  */
+  public synchronized FileRecord put(FileRecord record) {
+    FileRecord previous = getRecords().put(record.getFilepath(), record);
+    save();
+    return previous;
+  }
+
+  /**
+  * Forgets about a file
+  *
+  * @param filepath Path of the file
+  *
+  * @return Version that was removed. null if there was none
+  */
+  public synchronized FileRecord remove(String filepath) {
+    FileRecord record = getRecords().remove(filepath);
+    save();
+    return record;
+  }
+
+  /**
+  * Returns {@link #records}, loading them from disk if needed
+  *
+  * @return {@link #records}
+  */
+  @SuppressWarnings("unchecked")
+  private HashMap<String, FileRecord> getRecords() {
+
+    if (records == null) {
+
+      records = new HashMap<String, FileRecord>();
+
+      File file = new File(peer.getChunksPath() + CATALOG_FILE);
+
+      if (file.exists()) {
+        try {
+          ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file));
+          records = (HashMap<String, FileRecord>)inputStream.readObject();
+          inputStream.close();
+        }
+        catch (Exception e) {
+          Log.error("BackupCatalog: Error loading catalog: " + e);
+        }
+      }
+    }
+
+    return records;
+  }
+
+  /**
+  * Writes {@link #records} to disk
+  */
+  private void save() {
+
+    try {
+      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(peer.getChunksPath() + CATALOG_FILE));
+      outputStream.writeObject(records);
+      outputStream.close();
+    }
+    catch (Exception e) {
+      Log.error("BackupCatalog: Error saving catalog: " + e);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package peer.file;
+
+import peer.log.*;
+
+import java.util.concurrent.*;
+
+/**
+* Backup of a file in progress.
+*
+* At most {@link #WINDOW} chunks wait for their STOREDs at the same time:
+* sending a chunk takes a slot, which is released as soon as the chunk
+* reaches its desired replication degree (or is given up on)
+*/
+public class BackupSession implements JobProgress {
+
+  /** Max number of chunks waiting for STOREDs at the same time */
+  public static final int WINDOW = 32;
+
+  /** Path of the file being backed up */
+  private String filepath;
+
+  /** Size of the file */
+  private long size;
+
+  /** Free slots of the window */
+  private Semaphore slots = new Semaphore(WINDOW);
+
+  /** Number of chunks sent */
+  private int nsent = 0;
+
+  /** Number of sent chunks that reached their desired replication degree */
+  private int nstored = 0;
+
+  /** Number of sent chunks that didn't reach their desired replication degree */
+  private int nfailed = 0;
+
+  /** Number of chunks reused from the previous version (not sent) */
+  private int nreused = 0;
+
+  /** Number of chunks of the file. -1 until every chunk was sent */
+  private int nchunks = -1;
+
+  /** Number of bytes of the chunks done (stored, failed or reused), before compression */
+  private long bytesDone = 0;
+
+  /** TRUE once every chunk of the file was sent */
+  private boolean submitted = false;
+
+  /** Time (in milliseconds) the backup started */
+  private long startTime = System.currentTimeMillis();
+
+  /** Completed with TRUE when every chunk is stored, FALSE if some didn't reach their replication degree */
+  private CompletableFuture<Boolean> completion = new CompletableFuture<Boolean>();
+
+  /**
+  * Constructor
+  *
+  * @param filepath {@link #filepath}
+  * @param size {@link #size}
+  */
+  public BackupSession(String filepath, long size) {
+    this.filepath = filepath;
+    this.size = size;
+  }
+
+  /**
+  * Takes a slot of the window to send a chunk, waiting for one if needed
+  *
+  * @throws InterruptedException If interrupted while waiting
+  */
+  public void acquire() throws InterruptedException {
+
+    slots.acquire();
+
+    synchronized (this) {
+      nsent++;
+    }
+  }
+
+  /**
+  * Called when a sent chunk is done (reached its replication degree or was given up on).
+  * Releases its slot
+  *
+  * @param stored TRUE if the chunk reached its desired replication degree
+  * @param length Number of bytes of the chunk, before compression
+  */
+  public void chunkDone(boolean stored, int length) {
+
+    synchronized (this) {
+
+      if (stored) {
+        nstored++;
+      }
+      else {
+        nfailed++;
+      }
+
+      bytesDone += length;
+
+      finishIfDone();
+    }
+
+    slots.release();
+  }
+
+  /**
+  * Called when a chunk is reused from the previous version of the file, instead of sent
+  *
+  * @param length Number of bytes of the chunk
+  */
+  public synchronized void reused(int length) {
+    nreused++;
+    bytesDone += length;
+  }
+
+  /**
+  * Called once every chunk of the file was sent
+  *
+  * @param nchunks {@link #nchunks}
+  */
+  public synchronized void submitted(int nchunks) {
+
+    this.nchunks = nchunks;
+
+    submitted = true;
+
+    finishIfDone();
+  }
+
+  /**
+  * Ends the backup if every chunk was sent and is done
+  */
+  private void finishIfDone() {
+
+    if (!submitted || nstored + nfailed < nsent || completion.isDone()) {
+      return;
+    }
+
+    Log.info("BackupSession: " + filepath + ": " + nstored + " of " + nsent + " chunks stored in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    completion.complete(nfailed == 0);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #filepath}
+  */
+  public String getFilepath() {
+    return filepath;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #nsent}
+  */
+  public synchronized int getNumberOfChunksSent() {
+    return nsent;
+  }
+
+  @Override
+  public synchronized int getChunksDone() {
+    return nstored + nfailed + nreused;
+  }
+
+  @Override
+  public synchronized int getChunksTotal() {
+    return nchunks;
+  }
+
+  @Override
+  public synchronized long getBytesDone() {
+    return bytesDone;
+  }
+
+  @Override
+  public long getBytesTotal() {
+    return size;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #completion}
+  */
+  public CompletableFuture<Boolean> getCompletion() {
+    return completion;
+  }
+}
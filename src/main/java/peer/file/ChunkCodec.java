@@ -0,0 +1,115 @@
+package peer.file;
+
+import peer.message.*;
+import peer.log.*;
+
+import java.util.Arrays;
+import java.util.zip.*;
+
+/**
+* Compresses chunk bodies before they are sent to the MDB channel.
+*
+* Uses raw DEFLATE at its fastest level. Chunks that wouldn't shrink
+* enough (already compressed data, media, etc) are left as they are
+*/
+public class ChunkCodec {
+
+  /** Name of the codec, sent in the {@link MessageHeader#CODEC_LINE} header line */
+  public static final String DEFLATE = "DEFLATE";
+
+  /** Number of bytes compressed first to detect incompressible chunks */
+  private static final int SAMPLE_SIZE = 4096;
+
+  /** A chunk is only sent compressed if it shrinks to this fraction of its size (or less) */
+  private static final double MAX_RATIO = 0.9;
+
+  /**
+  * Compresses a chunk body
+  *
+  * @param body Body to compress
+  *
+  * @return Compressed body. null if the body is not worth compressing
+  */
+  public static byte[] compress(byte[] body) {
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    try {
+
+      // give up early on incompressible data
+      if (body.length > SAMPLE_SIZE && deflate(deflater, body, SAMPLE_SIZE).length > SAMPLE_SIZE * MAX_RATIO) {
+        return null;
+      }
+
+      deflater.reset();
+
+      byte[] compressed = deflate(deflater, body, body.length);
+
+      if (compressed.length > body.length * MAX_RATIO) {
+        return null;
+      }
+
+      return compressed;
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /**
+  * Decompresses a chunk body
+  *
+  * @param compressed Body returned by {@link #compress}
+  *
+  * @return Original body. null if the body is corrupted
+  */
+  public static byte[] decompress(byte[] compressed) {
+
+    Inflater inflater = new Inflater(true);
+
+    try {
+
+      // chunks are never bigger than CHUNK_SIZE
+      byte[] body = new byte[Message.CHUNK_SIZE];
+
+      inflater.setInput(compressed);
+
+      int length = inflater.inflate(body);
+
+      return Arrays.copyOf(body, length);
+    }
+    catch (DataFormatException e) {
+      Log.error("ChunkCodec: Error decompressing chunk: " + e);
+      return null;
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  /**
+  * Compresses the start of an array
+  *
+  * @param deflater Deflater to use
+  * @param input Array to compress
+  * @param length Number of bytes to compress
+  *
+  * @return Compressed bytes
+  */
+  private static byte[] deflate(Deflater deflater, byte[] input, int length) {
+
+    deflater.setInput(input, 0, length);
+    deflater.finish();
+
+    // compressed data is never much bigger than the input
+    byte[] output = new byte[length + length / 10 + 64];
+
+    int size = 0;
+
+    while (!deflater.finished() && size < output.length) {
+      size += deflater.deflate(output, size, output.length - size);
+    }
+
+    return Arrays.copyOf(output, size);
+  }
+}
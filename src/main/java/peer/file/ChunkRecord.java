@@ -0,0 +1,113 @@
+package peer.file;
+
+import java.io.*;
+
+/**
+* Entry of a {@link FileRecord}: where one chunk of a backed up file can be found
+*/
+public class ChunkRecord implements Serializable {
+
+  /**
+  * Version of the serialized form, kept across changes so saved catalogs still load (the value the current fields had before it was fixed).
+  * Only add fields whose default (null, 0) is right for records saved without them
+  */
+  private static final long serialVersionUID = 56442298551346609L;
+
+  /** Id of the file whose backup holds this chunk (may belong to a previous version) */
+  private String fileId;
+  /** Number of the chunk inside {@link #fileId} */
+  private String chunkNo;
+  /** SHA-256 of the chunk contents */
+  private String hash;
+  /** Position of the chunk inside the file */
+  private long offset;
+  /** Size of the chunk */
+  private int length;
+  /** Codec the chunk was stored with. null if stored as is */
+  private String codec;
+
+  /**
+  * Constructor
+  *
+  * @param fileId {@link #fileId}
+  * @param chunkNo {@link #chunkNo}
+  * @param hash {@link #hash}
+  * @param offset {@link #offset}
+  * @param length {@link #length}
+  * @param codec {@link #codec}
+  */
+  public ChunkRecord(String fileId, String chunkNo, String hash, long offset, int length, String codec) {
+
+    this.fileId = fileId;
+    this.chunkNo = chunkNo;
+    this.hash = hash;
+    this.offset = offset;
+    this.length = length;
+    this.codec = codec;
+  }
+
+  /**
+  * Returns a record for the same stored chunk, placed somewhere else in a file
+  *
+  * @param offset {@link #offset}
+  *
+  * @return Moved record
+  */
+  public ChunkRecord moveTo(long offset) {
+    return new ChunkRecord(fileId, chunkNo, hash, offset, length, codec);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #fileId}
+  */
+  public String getFileId() {
+    return fileId;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #chunkNo}
+  */
+  public String getChunkNo() {
+    return chunkNo;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #hash}
+  */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #offset}
+  */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #length}
+  */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #codec}
+  */
+  public String getCodec() {
+    return codec;
+  }
+}
@@ -0,0 +1,331 @@
+package peer.file;
+
+import peer.*;
+import peer.log.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* Content addressed storage of chunks of a peer, used when {@link Peer#isDedup} is on.
+*
+* Each distinct chunk body is stored once, as {@code <hash>.obj}.
+* Each stored (fileId, chunkNo) is a small {@code <fileId>-<chunkNo>.ref} file
+* holding the hash of its body. Bodies are deleted when no reference is left
+*/
+public class ChunkStore {
+
+  /** Extension of files holding chunk bodies */
+  public static final String OBJECT_EXTENSION = ".obj";
+
+  /** Extension of files referencing a chunk body */
+  public static final String REFERENCE_EXTENSION = ".ref";
+
+  /** Peer storing the chunks */
+  private Peer peer;
+
+  /** Hash of the body of each stored chunk, by "fileId-chunkNo". Loaded on first use */
+  private HashMap<String, String> references = null;
+
+  /** Number of references to each body, by hash */
+  private HashMap<String, Integer> refcounts = new HashMap<String, Integer>();
+
+  /** Size of each body, by hash */
+  private HashMap<String, Integer> sizes = new HashMap<String, Integer>();
+
+  /** Sum of the sizes of all stored chunks */
+  private long logicalBytes = 0;
+
+  /** Sum of the sizes of all stored bodies */
+  private long physicalBytes = 0;
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  */
+  public ChunkStore(Peer peer) {
+    this.peer = peer;
+  }
+
+  /**
+  * Stores a chunk, writing its body only if no other chunk has the same contents
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  * @param content Body of the chunk
+  */
+  public synchronized void store(String fileId, String chunkNo, byte[] content) {
+
+    load();
+
+    String name = fileId + "-" + chunkNo;
+
+    String hash = new FileManager(peer).hashBytes(content);
+
+    // same chunk stored again
+    if (hash.equals(references.get(name))) {
+      return;
+    }
+
+    // chunk changed, drop the old body
+    if (references.containsKey(name)) {
+      remove(fileId, chunkNo);
+    }
+
+    try {
+
+      // first chunk with this contents
+      if (!refcounts.containsKey(hash)) {
+        Files.write(Paths.get(peer.getChunksPath() + hash + OBJECT_EXTENSION), content);
+      }
+
+      Files.write(Paths.get(peer.getChunksPath() + name + REFERENCE_EXTENSION), hash.getBytes());
+
+      addReference(name, hash, content.length);
+    }
+    catch (Exception e) {
+      Log.error("ChunkStore: Error storing chunk " + name + ": " + e);
+    }
+  }
+
+  /**
+  * Checks if a chunk is stored
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return TRUE if the chunk is stored
+  */
+  public synchronized boolean contains(String fileId, String chunkNo) {
+
+    load();
+
+    return references.containsKey(fileId + "-" + chunkNo);
+  }
+
+  /**
+  * Reads the body of a stored chunk
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return Body of the chunk. null if it isn't stored
+  */
+  public synchronized byte[] read(String fileId, String chunkNo) {
+
+    load();
+
+    String hash = references.get(fileId + "-" + chunkNo);
+
+    if (hash == null) {
+      return null;
+    }
+
+    try {
+      return Files.readAllBytes(Paths.get(peer.getChunksPath() + hash + OBJECT_EXTENSION));
+    }
+    catch (Exception e) {
+      Log.error("ChunkStore: Error reading chunk " + fileId + "-" + chunkNo + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+  * Removes a stored chunk, deleting its body if no other chunk references it
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return Number of bytes freed on disk
+  */
+  public synchronized long remove(String fileId, String chunkNo) {
+
+    load();
+
+    String name = fileId + "-" + chunkNo;
+
+    String hash = references.remove(name);
+
+    if (hash == null) {
+      return 0;
+    }
+
+    new File(peer.getChunksPath() + name + REFERENCE_EXTENSION).delete();
+
+    int size = sizes.get(hash);
+    int refcount = refcounts.get(hash) - 1;
+
+    logicalBytes -= size;
+
+    if (refcount > 0) {
+      refcounts.put(hash, refcount);
+      return 0;
+    }
+
+    // last reference, delete the body
+    refcounts.remove(hash);
+    sizes.remove(hash);
+    physicalBytes -= size;
+
+    new File(peer.getChunksPath() + hash + OBJECT_EXTENSION).delete();
+
+    return size;
+  }
+
+  /**
+  * Removes every stored chunk of a file
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  *
+  * @return Number of bytes freed on disk
+  */
+  public synchronized long removeFile(String fileId) {
+
+    load();
+
+    long freed = 0;
+
+    for (String name : new ArrayList<String>(references.keySet())) {
+
+      String[] fields = name.split("-");
+
+      if (fields[0].equals(fileId)) {
+        freed += remove(fields[0], fields[1]);
+      }
+    }
+
+    return freed;
+  }
+
+  /**
+  * Returns the names of the stored chunks, grouped by body.
+  * Bodies referenced by fewer chunks come first: removing their chunks frees bytes sooner
+  *
+  * @return "fileId-chunkNo" of the chunks referencing each body
+  */
+  public synchronized ArrayList<ArrayList<String>> getChunkNamesByBody() {
+
+    load();
+
+    HashMap<String, ArrayList<String>> groups = new HashMap<String, ArrayList<String>>();
+
+    for (Map.Entry<String, String> reference : references.entrySet()) {
+      groups.computeIfAbsent(reference.getValue(), k -> new ArrayList<String>()).add(reference.getKey());
+    }
+
+    ArrayList<ArrayList<String>> names = new ArrayList<ArrayList<String>>(groups.values());
+
+    names.sort(Comparator.comparingInt(ArrayList::size));
+
+    return names;
+  }
+
+  /**
+  * Returns how many times smaller the store is than it would be without deduplication
+  *
+  * @return Stored bytes / bytes on disk. 1 if empty
+  */
+  public synchronized double getDedupRatio() {
+
+    load();
+
+    return physicalBytes == 0 ? 1 : logicalBytes / (double)physicalBytes;
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of stored chunks
+  */
+  public synchronized int getNumberOfChunks() {
+
+    load();
+
+    return references.size();
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #logicalBytes}
+  */
+  public synchronized long getLogicalBytes() {
+
+    load();
+
+    return logicalBytes;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #physicalBytes}
+  */
+  public synchronized long getPhysicalBytes() {
+
+    load();
+
+    return physicalBytes;
+  }
+
+  /**
+  * Adds a reference to the in-memory index
+  *
+  * @param name "fileId-chunkNo" of the chunk
+  * @param hash Hash of the body
+  * @param size Size of the body
+  */
+  private void addReference(String name, String hash, int size) {
+
+    references.put(name, hash);
+
+    Integer refcount = refcounts.get(hash);
+
+    if (refcount == null) {
+      refcount = 0;
+      sizes.put(hash, size);
+      physicalBytes += size;
+    }
+
+    refcounts.put(hash, refcount + 1);
+    logicalBytes += size;
+  }
+
+  /**
+  * Rebuilds the in-memory index from the reference files on disk, if not done yet
+  */
+  private void load() {
+
+    if (references != null) {
+      return;
+    }
+
+    references = new HashMap<String, String>();
+
+    File[] matches = new File(peer.getChunksPath()).listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(REFERENCE_EXTENSION);
+      }
+    });
+
+    if (matches == null) {
+      return;
+    }
+
+    for (File match : matches) {
+      try {
+        String name = match.getName().replace(REFERENCE_EXTENSION, "");
+        String hash = new String(Files.readAllBytes(match.toPath()));
+
+        File body = new File(peer.getChunksPath() + hash + OBJECT_EXTENSION);
+
+        addReference(name, hash, (int)body.length());
+      }
+      catch (Exception e) {
+        Log.error("ChunkStore: Error loading reference " + match.getName() + ": " + e);
+      }
+    }
+  }
+}
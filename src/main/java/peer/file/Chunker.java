@@ -0,0 +1,52 @@
+package peer.file;
+
+import java.io.*;
+
+/**
+* Splits a stream into chunks to be backed up
+*/
+public abstract class Chunker {
+
+  /** Stream being split */
+  protected InputStream input;
+
+  /**
+  * Constructor (called by subclasses)
+  *
+  * @param input {@link #input}
+  */
+  public Chunker(InputStream input) {
+    this.input = input;
+  }
+
+  /**
+  * Returns the next chunk of the stream.
+  * Subclasses should override this
+  *
+  * @return Next chunk. null if the stream is over
+  *
+  * @throws IOException If the stream can't be read
+  */
+  public abstract byte[] next() throws IOException;
+
+  /**
+  * Reads from {@link #input} until the buffer is full or the stream is over
+  *
+  * @param buffer Buffer to fill
+  * @param offset Position of the buffer to start filling at
+  *
+  * @return Position of the buffer after the last byte read
+  *
+  * @throws IOException If the stream can't be read
+  */
+  protected int fill(byte[] buffer, int offset) throws IOException {
+
+    int nread;
+
+    while (offset < buffer.length && (nread = input.read(buffer, offset, buffer.length - offset)) > 0) {
+      offset += nread;
+    }
+
+    return offset;
+  }
+}
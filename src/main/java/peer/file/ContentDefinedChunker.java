@@ -0,0 +1,95 @@
+package peer.file;
+
+import peer.message.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Splits a stream into variable size chunks, cutting where a Gear rolling hash
+* of the last bytes matches a pattern.
+* Since boundaries depend on contents instead of offsets, an insertion
+* only changes the chunks around it, and the remaining ones can be reused
+*/
+public class ContentDefinedChunker extends Chunker {
+
+  /** Min size of a chunk */
+  public static final int MIN_SIZE = 16000;
+
+  /** Max size of a chunk, bounded by what fits in a message */
+  public static final int MAX_SIZE = Message.CHUNK_SIZE;
+
+  /** A boundary is found when these bits of the hash are zero. 14 bits make chunks average MIN_SIZE + 16Kb */
+  private static final long MASK = 0xFFFC000000000000L;
+
+  /** Seed of {@link #GEAR}. Must never change, or boundaries of new backups won't match old ones */
+  private static final long GEAR_SEED = 0x5D15L;
+
+  /** Random value of each byte, added to the hash */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(GEAR_SEED);
+
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  /** Bytes read but not yet returned */
+  private byte[] buffer = new byte[MAX_SIZE];
+
+  /** Number of bytes in {@link #buffer} */
+  private int length = 0;
+
+  /**
+  * Constructor
+  *
+  * @see Chunker#Chunker
+  */
+  public ContentDefinedChunker(InputStream input) {
+    super(input);
+  }
+
+  @Override
+  public byte[] next() throws IOException {
+
+    length = fill(buffer, length);
+
+    if (length == 0) {
+      return null;
+    }
+
+    int cut = findBoundary();
+
+    byte[] chunk = Arrays.copyOf(buffer, cut);
+
+    // keep the remaining bytes for the next chunk
+    System.arraycopy(buffer, cut, buffer, 0, length - cut);
+    length -= cut;
+
+    return chunk;
+  }
+
+  /**
+  * Finds where the next chunk ends
+  *
+  * @return Size of the next chunk
+  */
+  private int findBoundary() {
+
+    long hash = 0;
+
+    for (int i = MIN_SIZE; i < length; i++) {
+
+      hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+      if ((hash & MASK) == 0) {
+        return i + 1;
+      }
+    }
+
+    // no boundary before max size or end of stream
+    return length;
+  }
+}
@@ -2,7 +2,10 @@ package peer.file;
 
 import peer.channel.*;
 import peer.message.*;
+import peer.metrics.*;
 import peer.*;
+import peer.log.*;
+import peer.trace.*;
 
 import java.io.*;
 import java.nio.file.*;
@@ -16,11 +19,26 @@ import java.util.*;
 */
 public class FileManager {
 
+  /** Peer whose files and chunks are handled */
+  private Peer peer;
+
+  /** Time (in microseconds) spent storing each chunk */
+  private Histogram storeTime;
+
+  /** Time (in microseconds) spent reading each chunk */
+  private Histogram readTime;
+
   /**
   * Constructor
+  *
+  * @param peer {@link #peer}
   */
-  public FileManager() {
+  public FileManager(Peer peer) {
 
+    this.peer = peer;
+
+    storeTime = peer.getMetrics().histogram("store.us");
+    readTime = peer.getMetrics().histogram("read.us");
   }
 
 
@@ -52,7 +70,7 @@ public class FileManager {
       return hashedId;
     }
     catch (Exception e) {
-      System.out.println("FileManager: Error creating file id: " + e);
+      Log.error("FileManager: Error creating file id: " + e);
       return null;
     }
 
@@ -105,7 +123,32 @@ public class FileManager {
     }
     catch (Exception e) {
 
-      System.out.println("FileManager: Error hashing string: " + e);
+      Log.error("FileManager: Error hashing string: " + e);
+      return null;
+    }
+  }
+
+
+  /**
+  * Hashes a byte array by applying SHA256
+  *
+  * @param bytes Bytes to hash
+  *
+  * @return Hashed bytes as an hex string
+  */
+  public String hashBytes(byte[] bytes) {
+
+    try {
+
+      // create message digest sha256
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+      // return hashed string
+      return DatatypeConverter.printHexBinary(md.digest(bytes));
+    }
+    catch (Exception e) {
+
+      Log.error("FileManager: Error hashing bytes: " + e);
       return null;
     }
   }
@@ -120,115 +163,386 @@ public class FileManager {
   * @param repDeg {@link message.MessageHeader#repDeg}
   */
   public void backup(String filepath, String repDeg) {
+    backup(filepath, repDeg, false);
+  }
 
-    File file = new File(filepath);
 
-    long filesize = file.length();
+  /**
+  * Backs up the given file
+  * by splitting it into 64Kb chunks
+  * and asking other peers to store them.
+  *
+  * In incremental mode, chunks whose contents didn't change since
+  * the last backed up version of the file are not sent again;
+  * the new version references them instead
+  *
+  * @param filepath Path to the file to backup
+  * @param repDeg {@link message.MessageHeader#repDeg}
+  * @param incremental TRUE to only send changed or new chunks
+  */
+  public void backup(String filepath, String repDeg, boolean incremental) {
+    backup(filepath, repDeg, incremental, false, false);
+  }
+
+
+  /**
+  * Backs up the given file
+  * by splitting it into chunks
+  * and asking other peers to store them.
+  *
+  * In incremental mode, chunks whose contents didn't change since
+  * the last backed up version of the file are not sent again;
+  * the new version references them instead.
+  *
+  * In content defined mode, chunks have variable size
+  * (see {@link ContentDefinedChunker}), so data shifted by an insertion
+  * can still be found in the previous version.
+  *
+  * In compressed mode, chunks are compressed with {@link ChunkCodec}
+  * and kept compressed by the storage peers
+  *
+  * @param filepath Path to the file to backup
+  * @param repDeg {@link message.MessageHeader#repDeg}
+  * @param incremental TRUE to only send changed or new chunks
+  * @param contentDefined TRUE to cut chunks based on their contents
+  * @param compress TRUE to compress chunks
+  *
+  * @return Progress of the backup. null if the file couldn't be read
+  */
+  public BackupSession backup(String filepath, String repDeg, boolean incremental, boolean contentDefined, boolean compress) {
 
-    // init array
-    byte[] chunk = new byte[Message.CHUNK_SIZE];
+    BackupSession session = new BackupSession(filepath, new File(filepath).length());
+
+    return backup(session, repDeg, incremental, contentDefined, compress) ? session : null;
+  }
+
+
+  /**
+  * Backs up a file, reporting progress to a given session
+  *
+  * @see #backup(String, String, boolean, boolean, boolean)
+  *
+  * @param session Progress of the backup, holding the path to the file to backup
+  * @param repDeg {@link message.MessageHeader#repDeg}
+  * @param incremental TRUE to only send changed or new chunks
+  * @param contentDefined TRUE to cut chunks based on their contents
+  * @param compress TRUE to compress chunks
+  *
+  * @return TRUE if every chunk was sent. FALSE if the file couldn't be read
+  */
+  public boolean backup(BackupSession session, String repDeg, boolean incremental, boolean contentDefined, boolean compress) {
+
+    String filepath = session.getFilepath();
 
     try {
 
-      FileInputStream fis = new FileInputStream(file);
+      FileInputStream fis = new FileInputStream(filepath);
+
+      Chunker chunker = contentDefined ? new ContentDefinedChunker(fis) : new FixedChunker(fis);
 
       String fileId = getFileId(filepath);
 
-      int chunkNo = 0;
-      int nread = 0;
+      // chunks of the previous version, by contents
+      HashMap<String, ChunkRecord> previousChunks = new HashMap<String, ChunkRecord>();
 
-      // read file into chunks
-      while ((nread = fis.read(chunk)) > 0) {
+      FileRecord previous = peer.getCatalog().get(filepath);
+
+      if (incremental && previous != null) {
+        for (ChunkRecord record : previous.getChunks()) {
+          previousChunks.put(record.getHash(), record);
+        }
+      }
+
+      // new version of this file
+      FileRecord record = new FileRecord(filepath, fileId, repDeg);
+
+      int chunkNo = 0;
+      int nsent = 0;
+      long offset = 0;
+      byte[] body;
 
-        // ignore trailing garbage left by read
-        byte[] body = new byte[nread];
+      // compression stats, to weigh cpu spent against bytes saved
+      long rawBytes = 0;
+      long sentBytes = 0;
+      long compressNanos = 0;
 
-        // TODO make sure this is correct. read was leaving last bytes with garbage?
-        System.arraycopy(chunk, 0, body, 0, nread);
+      // read file into chunks
+      while ((body = readNext(chunker, fileId, chunkNo)) != null) {
 
-        PutChunkMessage msg = new PutChunkMessage(fileId, Integer.toString(chunkNo), repDeg, body);
+        byte[] compressed = null;
 
-        // add this message to waiting "queue"
-        synchronized (ControlChannelListener.waitingConfirmation) {
-          ControlChannelListener.waitingConfirmation.add(msg);
+        if (compress) {
+          long start = System.nanoTime();
+          compressed = ChunkCodec.compress(body);
+          compressNanos += System.nanoTime() - start;
         }
 
-        // send message to MDB channel
-        msg.send();
+        if (backupChunk(session, record, previousChunks, Integer.toString(chunkNo), offset, body, compressed)) {
+          nsent++;
+          rawBytes += body.length;
+          sentBytes += compressed != null ? compressed.length : body.length;
+        }
 
         // prepare next ite
         chunkNo++;
+        offset += body.length;
       }
 
-      // If the file size is a multiple of the chunk size,
-      // the last chunk has size 0
-      if (filesize % Message.CHUNK_SIZE == 0) {
+      fis.close();
+
+      // done once the chunks still in the window are stored
+      session.submitted(chunkNo);
+
+      // remember this version for restores and future incremental backups
+      FileRecord replaced = peer.getCatalog().put(record);
+
+      // backups of previous versions this one no longer uses would be left on the storage peers otherwise
+      if (replaced != null) {
+
+        Set<String> unused = replaced.getReferencedFileIds();
 
-        // get message to send to multicast channel
-        PutChunkMessage lastmsg = new PutChunkMessage(fileId, Integer.toString(chunkNo), repDeg, new byte[0]);
+        unused.removeAll(record.getReferencedFileIds());
 
-        // send message
-        lastmsg.send();
+        for (String unusedId : unused) {
+          peer.getControlChannel().sendMessage(new DeleteMessage(unusedId), 0);
+        }
       }
 
-      fis.close();
+      Log.info("FileManager: " + filepath + ": sent " + nsent + " of " + record.getChunks().size() + " chunks");
 
+      if (compress) {
+        Log.info("FileManager: " + filepath + ": compressed " + rawBytes + " to " + sentBytes + " bytes in " + compressNanos / 1000000 + "ms");
+      }
     }
     catch (Exception e) {
-      System.out.println("FileManager: Error opening/reading file " + filepath + ": " + e);
+      Log.error("FileManager: Error opening/reading file " + filepath + ": " + e);
+      return false;
     }
 
+    return true;
   }
 
 
-  /** TODO criar send() em todos os tipos de mensagem!
-  * Restores a file by asking for all of its chunks
+  /**
+  * Reads the next chunk of a file being backed up
+  *
+  * @param chunker Splits the file into chunks
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo Number of the chunk
+  *
+  * @return Next chunk. null if the file is over
+  *
+  * @throws IOException If the file can't be read
+  */
+  private byte[] readNext(Chunker chunker, String fileId, int chunkNo) throws IOException {
+
+    ChunkReadEvent event = new ChunkReadEvent();
+
+    event.begin();
+
+    byte[] body = chunker.next();
+
+    event.end();
+
+    if (body != null && event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = fileId;
+      event.chunkNo = Integer.toString(chunkNo);
+      event.bytes = body.length;
+      event.stored = false;
+      event.commit();
+    }
+
+    return body;
+  }
+
+  /**
+  * Adds a chunk to a new version of a file,
+  * sending it to the MDB channel unless the same contents
+  * are already backed up by the previous version
+  *
+  * @param session Progress of the backup, limiting the chunks waiting for STOREDs
+  * @param record Version being backed up
+  * @param previousChunks Chunks of the previous version, by contents
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  * @param offset Position of the chunk inside the file
+  * @param body Contents of the chunk
+  * @param compressed Compressed contents of the chunk. null to send them as they are
+  *
+  * @return TRUE if the chunk was sent, FALSE if it was reused
+  *
+  * @throws InterruptedException If interrupted while waiting for a free slot in the window
+  */
+  private boolean backupChunk(BackupSession session, FileRecord record, HashMap<String, ChunkRecord> previousChunks, String chunkNo, long offset, byte[] body, byte[] compressed) throws InterruptedException {
+
+    String hash = hashBytes(body);
+
+    ChunkRecord previous = previousChunks.get(hash);
+
+    // unchanged chunk, reference the previous version
+    if (previous != null) {
+      record.addChunk(previous.moveTo(offset));
+      session.reused(body.length);
+      return false;
+    }
+
+    String codec = compressed != null ? ChunkCodec.DEFLATE : null;
+
+    PutChunkMessage msg = new PutChunkMessage(peer, record.getFileId(), chunkNo, record.getRepDeg(), compressed != null ? compressed : body);
+
+    // tell storage peers the body is compressed
+    msg.setCodec(codec);
+
+    // wait for a free slot in the window
+    session.acquire();
+
+    msg.setSession(session, body.length);
+
+    // add this message to waiting "queue"
+    HashMap<String, PutChunkMessage> waitingConfirmation = peer.getControlChannel().getWaitingConfirmation();
+
+    synchronized (waitingConfirmation) {
+      waitingConfirmation.put(msg.getChunkName(), msg);
+    }
+
+    // send message to MDB channel
+    msg.send();
+
+    record.addChunk(new ChunkRecord(record.getFileId(), chunkNo, hash, offset, body.length, codec));
+
+    return true;
+  }
+
+
+  /**
+  * Restores a file by asking for all of its chunks.
+  * If the file was backed up by this peer, its chunks are
+  * looked up in the {@link BackupCatalog}, since some of them may
+  * belong to previous versions of the file
   *
   * @param filepath File to restore
+  *
+  * @return Restore of the file
   */
-  public void restore(String filepath) {
+  public RestoreSession restore(String filepath) {
+    return restore(filepath, null);
+  }
 
-    File file = new File(filepath);
 
-    long filesize = file.length();
+  /**
+  * Restores a file to a given sink
+  *
+  * @see #restore(String)
+  *
+  * @param filepath File to restore
+  * @param sink Destination of the chunks. null to restore to a local file
+  *
+  * @return Restore of the file
+  */
+  public RestoreSession restore(String filepath, RestoreSink sink) {
+    return restore(filepath, 0, -1, sink);
+  }
+
+
+  /**
+  * Restores part of a file.
+  * Only the chunks holding the requested bytes are asked for
+  * (looked up in the {@link BackupCatalog}, so variable size chunks work too),
+  * and only the requested bytes are written
+  *
+  * @param filepath File to restore
+  * @param offset Position of the first byte to restore
+  * @param length Number of bytes to restore. -1 for the rest of the file
+  * @param sink Destination of the bytes. null to restore to a local file
+  *
+  * @return Restore of the part
+  */
+  public RestoreSession restore(String filepath, long offset, long length, RestoreSink sink) {
 
-    String fileId = getFileId(filepath);
+    ArrayList<ChunkRecord> chunks;
+    long filesize;
 
-    int nchunks = (int) Math.ceil(file.length() / (double)Message.CHUNK_SIZE);
+    FileRecord record = peer.getCatalog().get(filepath);
 
-    System.out.println("debug nchunks: " + nchunks);
+    if (record != null) {
+      chunks = record.getChunks();
+      filesize = record.getSize();
+    }
+    else {
+
+      // not in the catalog, assume fixed size chunks of the local file
+      filesize = new File(filepath).length();
+
+      String fileId = getFileId(filepath);
 
-    for (int i = 0; i < nchunks; i++) {
+      int nchunks = (int) Math.ceil(filesize / (double)Message.CHUNK_SIZE);
 
-      // ask for the chunk
-      GetChunkMessage msg = new GetChunkMessage(fileId, Integer.toString(i));
+      chunks = new ArrayList<ChunkRecord>();
 
-      // add this message to waiting "queue"
-      synchronized (RestoreChannelListener.waitingConfirmation) {
-        RestoreChannelListener.waitingConfirmation.add(msg);
+      for (int i = 0; i < nchunks; i++) {
+
+        long chunkOffset = (long)i * Message.CHUNK_SIZE;
+
+        chunks.add(new ChunkRecord(fileId, Integer.toString(i), null, chunkOffset, (int)Math.min(Message.CHUNK_SIZE, filesize - chunkOffset), null));
       }
+    }
 
-      // send message to MC channel
-      msg.send();
+    // whole file
+    if (offset == 0 && (length < 0 || length >= filesize)) {
+      return RestoreSession.start(new RestoreSession(peer, filepath, chunks, filesize, sink));
     }
+
+    if (offset < 0 || offset > filesize) {
+      throw new IllegalArgumentException("offset " + offset + " is outside " + filepath + " (" + filesize + " bytes)");
+    }
+
+    long end = length < 0 ? filesize : Math.min(filesize, offset + length);
+
+    // a part restored to a local file gets its own file
+    if (sink == null) {
+      sink = new FileSink(RestoreSession.getRestoredFile(peer, filepath) + "." + offset + "-" + end, end - offset);
+    }
+
+    return RestoreSession.start(new RestoreSession(peer, filepath, getChunksInRange(chunks, offset, end), offset, end - offset, sink));
   }
 
 
-  /** TODO mapeamento fileId filepath hardcoded teste.txt
-  * Builds a file out of chunks
+  /**
+  * Returns the chunks holding some bytes of a part of a file
   *
-  * @param msg Message cointaining the chunk
+  * @param chunks Chunks of the file, in file order
+  * @param start Position of the first byte of the part
+  * @param end Position after the last byte of the part
+  *
+  * @return Chunks overlapping the part, in file order
   */
-  public void build(Message msg) {
+  private static ArrayList<ChunkRecord> getChunksInRange(ArrayList<ChunkRecord> chunks, long start, long end) {
 
-    try {
-      FileOutputStream output = new FileOutputStream("teste.txt", true);
-      output.write(msg.getBody());
-      output.close();
+    // binary search for the first chunk ending after start
+    int low = 0;
+    int high = chunks.size();
+
+    while (low < high) {
+
+      int middle = (low + high) >>> 1;
+
+      ChunkRecord chunk = chunks.get(middle);
+
+      if (chunk.getOffset() + chunk.getLength() <= start) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
     }
-    catch (Exception e) {
-      System.out.println("File Manager: Error building file: " + e);
+
+    ArrayList<ChunkRecord> range = new ArrayList<ChunkRecord>();
+
+    for (int i = low; i < chunks.size() && chunks.get(i).getOffset() < end; i++) {
+      range.add(chunks.get(i));
     }
+
+    return range;
   }
 
 
@@ -239,21 +553,204 @@ public class FileManager {
   */
   public void store(Message msg) {
 
-    String filepath = msg.getChunkPath();
+    String filepath = msg.getChunkPath(peer.getChunksPath());
 
     // create a byte[] to store only the actual content of the chunk
     byte[] content = new byte[msg.getBodyLength()];
 
     System.arraycopy(msg.getBody(), 0, content, 0, content.length);
 
+    long start = System.nanoTime();
+
+    // identical bodies are stored once
+    if (peer.isDedup()) {
+      peer.getChunkStore().store(msg.getFileId(), msg.getChunkNo(), content);
+    }
+    else {
+      try {
+        FileOutputStream out = new FileOutputStream(filepath);
+        out.write(content);
+        out.close();
+      }
+      catch (Exception e) {
+        Log.error("FileManager: Error storing chunk " + filepath + ": " + e);
+      }
+    }
+
+    peer.getLoad().diskTime(System.nanoTime() - start);
+
+    storeTime.recordMicrosSince(start);
+  }
+
+  /**
+  * Checks if this peer stores a chunk
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return TRUE if the chunk is stored
+  */
+  public boolean hasChunk(String fileId, String chunkNo) {
+    return new File(peer.getChunksPath() + fileId + "-" + chunkNo + ".chk").exists() || peer.getChunkStore().contains(fileId, chunkNo);
+  }
+
+  /**
+  * Reads a chunk stored by this peer
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return Body of the chunk. null if this peer doesn't store it
+  */
+  public byte[] readChunk(String fileId, String chunkNo) {
+
+    File chunk = new File(peer.getChunksPath() + fileId + "-" + chunkNo + ".chk");
+
+    long start = System.nanoTime();
+
+    ChunkReadEvent event = new ChunkReadEvent();
+
+    event.begin();
+
+    byte[] body = null;
+
     try {
-      FileOutputStream out = new FileOutputStream(filepath);
-      out.write(content);
-      out.close();
+      // chunks stored before dedup was turned on are still plain files
+      if (!chunk.exists()) {
+        body = peer.getChunkStore().read(fileId, chunkNo);
+      }
+      else {
+        body = Files.readAllBytes(chunk.toPath());
+      }
+
+      return body;
     }
     catch (Exception e) {
-      System.out.println("FileManager: Error storing chunk " + filepath + ": " + e);
+      Log.error("FileManager: Error reading chunk " + chunk.getPath() + ": " + e);
+      return null;
+    }
+    finally {
+      peer.getLoad().diskTime(System.nanoTime() - start);
+
+      readTime.recordMicrosSince(start);
+
+      event.end();
+
+      if (body != null && event.shouldCommit()) {
+        event.peerId = peer.getId();
+        event.fileId = fileId;
+        event.chunkNo = chunkNo;
+        event.bytes = body.length;
+        event.stored = true;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+  * Deletes a chunk stored by this peer
+  *
+  * @param fileId {@link message.MessageHeader#fileId}
+  * @param chunkNo {@link message.MessageHeader#chunkNo}
+  *
+  * @return Number of bytes freed on disk
+  */
+  public long deleteChunk(String fileId, String chunkNo) {
+
+    // this peer no longer counts as a replica
+    peer.getReplicationTracker().removeSaver(fileId + "-" + chunkNo, peer.getId());
+
+    File chunk = new File(peer.getChunksPath() + fileId + "-" + chunkNo + ".chk");
+
+    if (!chunk.exists()) {
+      return peer.getChunkStore().remove(fileId, chunkNo);
+    }
+
+    long size = chunk.length();
+
+    return chunk.delete() ? size : 0;
+  }
+
+  /**
+  * Returns the disk space used by the stored chunks
+  *
+  * @return Number of bytes
+  */
+  public long getUsedSpace() {
+
+    long used = peer.getChunkStore().getPhysicalBytes();
+
+    for (File chunk : getChunkFiles()) {
+      used += chunk.length();
+    }
+
+    return used;
+  }
+
+  /**
+  * Deletes stored chunks until they use at most the given disk space,
+  * telling other peers about each removed chunk (REMOVED).
+  *
+  * Chunks whose removal frees bytes go first: plain chunk files, then bodies of the dedup store
+  * referenced by a single chunk. A body shared by several chunks is only freed, all its chunks at once,
+  * if that is still needed, so no replica is dropped without freeing its bytes
+  *
+  * @param maxSpace Max number of bytes the stored chunks may use
+  *
+  * @return Number of bytes freed
+  */
+  public long reclaim(long maxSpace) {
+
+    long used = getUsedSpace();
+    long freed = 0;
+
+    // chunks removed together, in the order they free bytes
+    ArrayList<ArrayList<String>> groups = new ArrayList<ArrayList<String>>();
+
+    for (File chunk : getChunkFiles()) {
+      groups.add(new ArrayList<String>(Arrays.asList(chunk.getName().replace(".chk", ""))));
+    }
+
+    groups.addAll(peer.getChunkStore().getChunkNamesByBody());
+
+    for (ArrayList<String> names : groups) {
+
+      if (used <= maxSpace) {
+        break;
+      }
+
+      for (String name : names) {
+
+        String[] fields = name.split("-");
+
+        long size = deleteChunk(fields[0], fields[1]);
+
+        used -= size;
+        freed += size;
+
+        peer.getControlChannel().sendMessage(new RemovedMessage(fields[0], fields[1]), 0);
+      }
     }
+
+    Log.info("FileManager: reclaimed " + freed + " bytes, " + used + " bytes used");
+
+    return freed;
+  }
+
+  /**
+  * Returns the chunks stored as plain files
+  *
+  * @return Chunk files
+  */
+  private File[] getChunkFiles() {
+
+    File[] matches = new File(peer.getChunksPath()).listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".chk");
+      }
+    });
+
+    return matches != null ? matches : new File[0];
   }
 
   /**
@@ -270,7 +767,7 @@ public class FileManager {
     try {
 
       //ler info que ja la esta
-      ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(Peer.CHUNKS_PATH + "/currentInfo.info"));
+      ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(peer.getChunksPath() + "/currentInfo.info"));
       String[] currentInfo = (String[])inputStream.readObject();
 
       //System.out.println("de currentInfo.txt: "+Arrays.toString(currentInfo));
@@ -282,7 +779,7 @@ public class FileManager {
 
       //voltar a guardar no ficheiro
       currentInfo = currentInfoList.toArray(new String[currentInfoList.size()]);
-      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(Peer.CHUNKS_PATH + "/currentInfo.info"));
+      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(peer.getChunksPath() + "/currentInfo.info"));
       outputStream.writeObject(currentInfo);
 
       //System.out.println("para currentInfo.txt: "+Arrays.toString(currentInfo));
@@ -290,7 +787,7 @@ public class FileManager {
       inputStream.close();
     }
     catch(Exception e) {
-        System.out.println("FileManager > addChunkInfoToFile: " + e);
+        Log.error("FileManager > addChunkInfoToFile: " + e);
     }
   }
 
@@ -300,10 +797,10 @@ public class FileManager {
 
 
     try{
-      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(Peer.CHUNKS_PATH + "/chunkMap.info"));
+      ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(peer.getChunksPath() + "/chunkMap.info"));
 
 
-      File dir = new File(Peer.CHUNKS_PATH);
+      File dir = new File(peer.getChunksPath());
 
       File[] matches = dir.listFiles(new FilenameFilter()
       {
@@ -323,7 +820,7 @@ public class FileManager {
 
     }
     catch(Exception e){
-      System.out.println("FileManager > writeMaps: " +e);
+      Log.error("FileManager > writeMaps: " +e);
     }
 
 
@@ -335,14 +832,14 @@ public class FileManager {
     String[] currentMaps = null;
 
     try{
-      ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(Peer.CHUNKS_PATH + "/chunkMap.info"));
+      ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(peer.getChunksPath() + "/chunkMap.info"));
 
       currentMaps = (String[])inputStream.readObject();
       //  System.out.println(Arrays.toString(currentInfo));
 
     }
     catch(Exception e){
-      System.out.println("FileManager > readMaps: " +e);
+      Log.error("FileManager > readMaps: " +e);
     }
 
     return currentMaps;
@@ -0,0 +1,116 @@
+package peer.file;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* The last backed up version of a file, as kept by the {@link BackupCatalog}
+*/
+public class FileRecord implements Serializable {
+
+  /**
+  * Version of the serialized form, kept across changes so saved catalogs still load (the value the current fields had before it was fixed).
+  * Only add fields whose default (null, 0) is right for records saved without them
+  */
+  private static final long serialVersionUID = -6628827162878252318L;
+
+  /** Path of the backed up file */
+  private String filepath;
+  /** Id given to this version of the file */
+  private String fileId;
+  /** Desired replication degree of the file */
+  private String repDeg;
+  /** Chunks of this version, in file order */
+  private ArrayList<ChunkRecord> chunks = new ArrayList<ChunkRecord>();
+
+  /**
+  * Constructor
+  *
+  * @param filepath {@link #filepath}
+  * @param fileId {@link #fileId}
+  * @param repDeg {@link #repDeg}
+  */
+  public FileRecord(String filepath, String fileId, String repDeg) {
+
+    this.filepath = filepath;
+    this.fileId = fileId;
+    this.repDeg = repDeg;
+  }
+
+  /**
+  * Appends a chunk to this version
+  *
+  * @param chunk Chunk to append
+  */
+  public void addChunk(ChunkRecord chunk) {
+    chunks.add(chunk);
+  }
+
+  /**
+  * Returns the size of this version
+  *
+  * @return Size in bytes
+  */
+  public long getSize() {
+
+    long size = 0;
+
+    for (ChunkRecord chunk : chunks) {
+      size += chunk.getLength();
+    }
+
+    return size;
+  }
+
+  /**
+  * Returns the ids of every file whose backup holds chunks of this version
+  *
+  * @return Referenced file ids
+  */
+  public Set<String> getReferencedFileIds() {
+
+    Set<String> ids = new HashSet<String>();
+
+    for (ChunkRecord chunk : chunks) {
+      ids.add(chunk.getFileId());
+    }
+
+    return ids;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #filepath}
+  */
+  public String getFilepath() {
+    return filepath;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #fileId}
+  */
+  public String getFileId() {
+    return fileId;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #repDeg}
+  */
+  public String getRepDeg() {
+    return repDeg;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #chunks}
+  */
+  public ArrayList<ChunkRecord> getChunks() {
+    return chunks;
+  }
+}
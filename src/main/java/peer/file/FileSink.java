@@ -0,0 +1,88 @@
+package peer.file;
+
+import peer.log.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+* Writes a restore to a local file.
+*
+* The file is preallocated and each chunk is written at its offset
+* as soon as it arrives, so chunks can arrive in any order
+*/
+public class FileSink implements RestoreSink {
+
+  /** Path of the output file */
+  private String path;
+
+  /** Size of the output file */
+  private long size;
+
+  /** Output file */
+  private FileChannel output;
+
+  /**
+  * Constructor
+  *
+  * @param path {@link #path}
+  * @param size {@link #size}
+  */
+  public FileSink(String path, long size) {
+    this.path = path;
+    this.size = size;
+  }
+
+  @Override
+  public void open(RestoreSession session) throws IOException {
+
+    File parent = new File(path).getAbsoluteFile().getParentFile();
+
+    parent.mkdirs();
+
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+
+    // preallocate
+    file.setLength(size);
+
+    output = file.getChannel();
+  }
+
+  @Override
+  public boolean canRequest(int index) {
+    return true;
+  }
+
+  @Override
+  public void write(int index, long offset, byte[] body) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+
+    long position = offset;
+
+    while (buffer.hasRemaining()) {
+      position += output.write(buffer, position);
+    }
+  }
+
+  @Override
+  public void close(boolean success) {
+
+    try {
+      output.close();
+    }
+    catch (Exception e) {
+      Log.error("FileSink: Error closing " + path + ": " + e);
+    }
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #path}
+  */
+  public String getPath() {
+    return path;
+  }
+}
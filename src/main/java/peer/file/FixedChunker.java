@@ -0,0 +1,45 @@
+package peer.file;
+
+import peer.message.*;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+* Splits a stream into chunks of {@link Message#CHUNK_SIZE} bytes.
+* If the stream size is a multiple of the chunk size, the last chunk has size 0
+*/
+public class FixedChunker extends Chunker {
+
+  /** TRUE after the last chunk was returned */
+  private boolean over = false;
+
+  /**
+  * Constructor
+  *
+  * @see Chunker#Chunker
+  */
+  public FixedChunker(InputStream input) {
+    super(input);
+  }
+
+  @Override
+  public byte[] next() throws IOException {
+
+    if (over) {
+      return null;
+    }
+
+    byte[] chunk = new byte[Message.CHUNK_SIZE];
+
+    int length = fill(chunk, 0);
+
+    // a partial (or empty) chunk is the last one
+    if (length < chunk.length) {
+      over = true;
+      return Arrays.copyOf(chunk, length);
+    }
+
+    return chunk;
+  }
+}
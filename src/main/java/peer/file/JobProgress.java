@@ -0,0 +1,35 @@
+package peer.file;
+
+/**
+* Progress of a long running operation on a file (backup, restore), reported by the STATUS sub protocol
+*/
+public interface JobProgress {
+
+  /**
+  * Getter
+  *
+  * @return Number of chunks done
+  */
+  int getChunksDone();
+
+  /**
+  * Getter
+  *
+  * @return Number of chunks of the file. -1 if not known yet
+  */
+  int getChunksTotal();
+
+  /**
+  * Getter
+  *
+  * @return Number of bytes of the file done
+  */
+  long getBytesDone();
+
+  /**
+  * Getter
+  *
+  * @return Size of the file
+  */
+  long getBytesTotal();
+}
@@ -0,0 +1,67 @@
+package peer.file;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Sink that hands the chunks of a restore to a consumer in file order (a stream).
+*
+* Chunks that arrive early wait in a reorder buffer. Only chunks within
+* {@link #REORDER_WINDOW} of the next one to hand over can be requested,
+* and none while the consumer is backed up, so memory stays bounded
+* whatever the size of the file
+*/
+public abstract class OrderedSink implements RestoreSink {
+
+  /** Max number of chunks past the next one to hand over that can be requested (up to 16MB buffered) */
+  public static final int REORDER_WINDOW = RestoreSession.RANGE_WINDOW;
+
+  /** Chunks that arrived before the ones preceding them, by position */
+  private TreeMap<Integer, byte[]> reorder = new TreeMap<Integer, byte[]>();
+
+  /** Position of the next chunk to hand over */
+  private int next = 0;
+
+  /** Restore writing to this sink */
+  protected RestoreSession session;
+
+  @Override
+  public void open(RestoreSession session) throws IOException {
+    this.session = session;
+  }
+
+  @Override
+  public synchronized boolean canRequest(int index) {
+    return index < next + REORDER_WINDOW && !isBackedUp();
+  }
+
+  @Override
+  public synchronized void write(int index, long offset, byte[] body) throws IOException {
+
+    reorder.put(index, body);
+
+    // hand over every chunk now in order
+    byte[] ready;
+
+    while ((ready = reorder.remove(next)) != null) {
+      emit(ready);
+      next++;
+    }
+  }
+
+  /**
+  * Hands a chunk to the consumer. Must not block
+  *
+  * @param body Chunk data, in file order
+  *
+  * @throws IOException If the consumer is gone
+  */
+  protected abstract void emit(byte[] body) throws IOException;
+
+  /**
+  * Checks if the consumer has too much data still to take
+  *
+  * @return TRUE if no more chunks should be requested for now
+  */
+  protected abstract boolean isBackedUp();
+}
@@ -0,0 +1,84 @@
+package peer.file;
+
+import peer.log.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+* Streams a restore, in file order, to a file or named pipe.
+*
+* A writer thread does the (blocking) writes, so a slow reader only
+* holds back the requests of the restore
+*/
+public class PipeSink extends OrderedSink implements Runnable {
+
+  /** Max number of chunks waiting for the writer thread before requests stop */
+  public static final int MAX_QUEUED = 16;
+
+  /** Marks the end of the stream in {@link #queue} */
+  private static final byte[] END = new byte[0];
+
+  /** Path of the pipe */
+  private String path;
+
+  /** Chunks waiting for the writer thread */
+  private LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+
+  /**
+  * Constructor
+  *
+  * @param path {@link #path}
+  */
+  public PipeSink(String path) {
+    this.path = path;
+  }
+
+  @Override
+  public void open(RestoreSession session) throws IOException {
+
+    super.open(session);
+
+    // opening a named pipe blocks until there is a reader, so the writer thread does it
+    new Thread(this).start();
+  }
+
+  @Override
+  protected void emit(byte[] body) {
+    queue.add(body);
+  }
+
+  @Override
+  protected boolean isBackedUp() {
+    return queue.size() >= MAX_QUEUED;
+  }
+
+  @Override
+  public void close(boolean success) {
+    queue.add(END);
+  }
+
+  @Override
+  public void run() {
+
+    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(path))) {
+
+      byte[] body;
+
+      while ((body = queue.take()) != END) {
+
+        output.write(body);
+
+        // room for more chunks
+        if (queue.size() < MAX_QUEUED / 2) {
+          output.flush();
+          session.resume();
+        }
+      }
+    }
+    catch (Exception e) {
+      Log.error("PipeSink: Error writing to " + path + ": " + e);
+      session.abort();
+    }
+  }
+}
@@ -0,0 +1,529 @@
+package peer.file;
+
+import peer.*;
+import peer.channel.*;
+import peer.message.*;
+import peer.log.*;
+import peer.trace.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Restore of a file.
+*
+* Chunks are written to a {@link RestoreSink} as soon as they arrive, in any order:
+* a local file by default ({@link FileSink}), or a stream in file order.
+* Chunks are requested within a bounded window of {@link #WINDOW} requests,
+* and only when the sink can take them.
+* With the enhanced protocol, chunks are requested in ranges (see {@link GetChunksMessage})
+* within a window of {@link #RANGE_WINDOW} chunks.
+*
+* Each session has its own state, so many files can be restored at the same time
+*/
+public class RestoreSession implements JobProgress {
+
+  /** Max number of chunks requested at the same time */
+  public static final int WINDOW = 16;
+
+  /** Max number of chunks requested at the same time, when requesting ranges. At most {@link GetChunksMessage#MAX_CHUNKS} */
+  public static final int RANGE_WINDOW = 256;
+
+  /** Restores to a local file in progress, by {@link #outputPath} */
+  private static ConcurrentHashMap<String, RestoreSession> sessions = new ConcurrentHashMap<String, RestoreSession>();
+
+  /** Peer restoring the file */
+  private Peer peer;
+
+  /** Path of the file being restored */
+  private String filepath;
+
+  /** Path where the file is restored to. null if streamed */
+  private String outputPath;
+
+  /** Destination of the chunks */
+  private RestoreSink sink;
+
+  /** Chunks to restore, in file order */
+  private ArrayList<ChunkRecord> chunks;
+
+  /** Position of the first restored byte inside the file (0 unless restoring a part of it) */
+  private long start;
+
+  /** Number of bytes restored (the size of the file, unless restoring a part of it) */
+  private long size;
+
+  /** Chunks already written */
+  private BitSet received = new BitSet();
+
+  /** Number of bytes already written */
+  private long bytesWritten = 0;
+
+  /** Position of the next chunk to request */
+  private int next = 0;
+
+  /** Number of chunks requested and not yet received */
+  private int inflight = 0;
+
+  /** Number of times each chunk was requested again because it arrived corrupted, by position in {@link #chunks} */
+  private HashMap<Integer, Integer> corrupted = new HashMap<Integer, Integer>();
+
+  /** TRUE if a chunk couldn't be retrieved */
+  private boolean failed = false;
+
+  /** TRUE once the restore ended */
+  private boolean ended = false;
+
+  /** Completed with TRUE when the file is restored, FALSE if the restore failed */
+  private CompletableFuture<Boolean> completion = new CompletableFuture<Boolean>();
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  * @param filepath {@link #filepath}
+  * @param chunks {@link #chunks}
+  * @param size {@link #size}
+  */
+  public RestoreSession(Peer peer, String filepath, ArrayList<ChunkRecord> chunks, long size) {
+    this(peer, filepath, chunks, size, null);
+  }
+
+  /**
+  * Constructor
+  *
+  * @param peer {@link #peer}
+  * @param filepath {@link #filepath}
+  * @param chunks {@link #chunks}
+  * @param size {@link #size}
+  * @param sink {@link #sink}. null to restore to the local file under {@link Peer#getRestoredPath}
+  */
+  public RestoreSession(Peer peer, String filepath, ArrayList<ChunkRecord> chunks, long size, RestoreSink sink) {
+    this(peer, filepath, chunks, 0, size, sink);
+  }
+
+  /**
+  * Constructor (part of a file).
+  * Bytes of the first and last chunks outside the part are left out
+  *
+  * @param peer {@link #peer}
+  * @param filepath {@link #filepath}
+  * @param chunks {@link #chunks}. Must cover the part
+  * @param start {@link #start}
+  * @param size {@link #size}
+  * @param sink {@link #sink}. null to restore to the local file under {@link Peer#getRestoredPath}
+  */
+  public RestoreSession(Peer peer, String filepath, ArrayList<ChunkRecord> chunks, long start, long size, RestoreSink sink) {
+
+    this.peer = peer;
+    this.filepath = filepath;
+    this.chunks = chunks;
+    this.start = start;
+    this.size = size;
+
+    if (sink == null) {
+      sink = new FileSink(getRestoredFile(peer, filepath), size);
+    }
+
+    // only one restore at a time to the same local file
+    if (sink instanceof FileSink) {
+      this.outputPath = ((FileSink)sink).getPath();
+    }
+
+    this.sink = sink;
+  }
+
+  /**
+  * Starts a restore, unless the same file is already being restored
+  *
+  * @param session Restore to start
+  *
+  * @return Restore of the file (the given one, or the one already in progress)
+  */
+  public static RestoreSession start(RestoreSession session) {
+
+    // streams don't write to the local file, so they can run along with other restores
+    if (session.outputPath != null) {
+
+      RestoreSession current = sessions.putIfAbsent(session.outputPath, session);
+
+      if (current != null) {
+        Log.warn("RestoreSession: " + session.outputPath + " is already being restored");
+        return current;
+      }
+    }
+
+    session.start();
+
+    return session;
+  }
+
+  /**
+  * Returns the local file a file is restored to, under {@link Peer#getRestoredPath}
+  *
+  * @param peer Peer restoring the file
+  * @param filepath File to restore
+  *
+  * @return Absolute path of the restored file
+  *
+  * @throws IllegalArgumentException If the file would be written outside {@link Peer#getRestoredPath} (e.g. "../x")
+  */
+  public static String getRestoredFile(Peer peer, String filepath) {
+
+    Path root = Paths.get(peer.getRestoredPath()).toAbsolutePath().normalize();
+
+    // joined as strings, so absolute paths land under the root too
+    Path file = Paths.get(root.toString(), filepath).normalize();
+
+    if (!file.startsWith(root) || file.equals(root)) {
+      throw new IllegalArgumentException(filepath + " would be restored outside " + root);
+    }
+
+    return file.toString();
+  }
+
+  /**
+  * Returns the restore to a local file in progress
+  *
+  * @param outputPath {@link #outputPath}
+  *
+  * @return Restore to the file. null if not being restored
+  */
+  public static RestoreSession get(String outputPath) {
+    return sessions.get(outputPath);
+  }
+
+  /**
+  * Opens the sink and requests the first chunks
+  */
+  private synchronized void start() {
+
+    try {
+      sink.open(this);
+    }
+    catch (Exception e) {
+      Log.error("RestoreSession: Error opening output of " + filepath + ": " + e);
+      if (outputPath != null) {
+        sessions.remove(outputPath, this);
+      }
+      ended = true;
+      completion.complete(false);
+      return;
+    }
+
+    if (chunks.isEmpty()) {
+      finish();
+      return;
+    }
+
+    fill();
+  }
+
+  /**
+  * Requests chunks until the window is full
+  */
+  private void fill() {
+
+    if (peer.isEnhanced()) {
+      fillRanges();
+      return;
+    }
+
+    while (!failed && inflight < WINDOW && next < chunks.size() && sink.canRequest(next)) {
+
+      ChunkRecord chunk = chunks.get(next);
+
+      GetChunkMessage msg = new GetChunkMessage(peer, chunk.getFileId(), chunk.getChunkNo(), this, next);
+
+      // ask for the chunk to be sent straight to this peer (null if not listening)
+      msg.setReplyTo(getReplyTo());
+
+      // add this message to waiting "queue"
+      peer.getRestoreChannel().addWaitingConfirmation(msg);
+
+      // send message to MC channel
+      msg.send();
+
+      inflight++;
+      next++;
+    }
+  }
+
+  /**
+  * Requests chunks in ranges (one per file id) until the window is full.
+  * Only refills once half the window is free, so each range covers many chunks
+  */
+  private void fillRanges() {
+
+    if (failed || inflight > RANGE_WINDOW / 2 || next >= chunks.size()) {
+      return;
+    }
+
+    // requests of each file id (chunks may belong to previous versions of the file)
+    LinkedHashMap<String, ArrayList<GetChunkMessage>> ranges = new LinkedHashMap<String, ArrayList<GetChunkMessage>>();
+
+    while (inflight < RANGE_WINDOW && next < chunks.size() && sink.canRequest(next)) {
+
+      ChunkRecord chunk = chunks.get(next);
+
+      ArrayList<GetChunkMessage> range = ranges.get(chunk.getFileId());
+
+      if (range == null) {
+        range = new ArrayList<GetChunkMessage>();
+        ranges.put(chunk.getFileId(), range);
+      }
+
+      range.add(new GetChunkMessage(peer, chunk.getFileId(), chunk.getChunkNo(), this, next));
+
+      inflight++;
+      next++;
+    }
+
+    for (Map.Entry<String, ArrayList<GetChunkMessage>> range : ranges.entrySet()) {
+
+      GetChunksMessage msg = new GetChunksMessage(peer, range.getKey(), range.getValue());
+
+      // ask for the chunks to be sent straight to this peer (null if not listening)
+      msg.setReplyTo(getReplyTo());
+
+      // requests are only used to route replies
+      for (GetChunkMessage request : range.getValue()) {
+        peer.getRestoreChannel().addWaitingConfirmation(request);
+      }
+
+      // send message to MC channel
+      msg.send();
+    }
+  }
+
+  /**
+  * Returns where chunks should be sent
+  *
+  * @return {@link UnicastListener#getEndpoint}. null if the peer isn't listening (chunks go to MDR)
+  */
+  private String getReplyTo() {
+
+    UnicastListener listener = peer.getUnicastListener();
+
+    return listener != null ? listener.getEndpoint() : null;
+  }
+
+  /**
+  * Called when a requested chunk arrives.
+  * Writes it at its offset
+  *
+  * @param index Position of the chunk in {@link #chunks}
+  * @param msg Message containing the chunk
+  */
+  public synchronized void received(int index, Message msg) {
+
+    if (failed || received.get(index)) {
+      return;
+    }
+
+    ChunkRecord chunk = chunks.get(index);
+
+    byte[] body = msg.getBody();
+
+    // storage peers reply with the chunk as it was backed up
+    if (chunk.getCodec() != null) {
+      body = ChunkCodec.decompress(body);
+    }
+
+    if (body == null) {
+      rerequest(index);
+      return;
+    }
+
+    // keep only the restored bytes (first and last chunks of a part)
+    long from = Math.max(start, chunk.getOffset());
+    long to = Math.min(start + size, chunk.getOffset() + body.length);
+
+    if (from > chunk.getOffset() || to < chunk.getOffset() + body.length) {
+      body = Arrays.copyOfRange(body, (int)(from - chunk.getOffset()), (int)(Math.max(from, to) - chunk.getOffset()));
+    }
+
+    ChunkWrittenEvent event = new ChunkWrittenEvent();
+
+    event.begin();
+
+    try {
+      sink.write(index, from - start, body);
+    }
+    catch (Exception e) {
+      Log.error("RestoreSession: Error writing chunk " + index + " of " + filepath + ": " + e);
+      fail();
+      return;
+    }
+
+    event.end();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = chunk.getFileId();
+      event.chunkNo = chunk.getChunkNo();
+      event.bytes = body.length;
+      event.offset = from - start;
+      event.commit();
+    }
+
+    received.set(index);
+    bytesWritten += body.length;
+    inflight--;
+
+    if (received.cardinality() == chunks.size()) {
+      finish();
+    }
+    else {
+      fill();
+    }
+  }
+
+  /**
+  * Requests again a chunk that arrived corrupted (another copy may be fine),
+  * giving up after {@link GetChunkMessage#MAX_NRESENDS} tries
+  *
+  * @param index Position of the chunk in {@link #chunks}
+  */
+  private void rerequest(int index) {
+
+    int tries = corrupted.merge(index, 1, Integer::sum);
+
+    peer.getMetrics().counter("chunk.corrupted").increment();
+
+    if (tries > GetChunkMessage.MAX_NRESENDS) {
+      Log.error("RestoreSession: chunk " + index + " of " + filepath + " is corrupted");
+      fail();
+      return;
+    }
+
+    Log.warn("RestoreSession: chunk " + index + " of " + filepath + " is corrupted, requesting it again #" + tries);
+
+    ChunkRecord chunk = chunks.get(index);
+
+    GetChunkMessage msg = new GetChunkMessage(peer, chunk.getFileId(), chunk.getChunkNo(), this, index);
+
+    msg.setReplyTo(getReplyTo());
+
+    peer.getRestoreChannel().addWaitingConfirmation(msg);
+
+    msg.send();
+  }
+
+  /**
+  * Called when the sink can take more chunks.
+  * Requests chunks until the window is full
+  */
+  public synchronized void resume() {
+
+    if (!ended) {
+      fill();
+    }
+  }
+
+  /**
+  * Called when the sink can't take chunks anymore (e.g. the client is gone).
+  * Stops the restore
+  */
+  public synchronized void abort() {
+
+    Log.info("RestoreSession: " + filepath + ": output closed");
+
+    fail();
+  }
+
+  /**
+  * Called when a requested chunk couldn't be retrieved
+  *
+  * @param index Position of the chunk in {@link #chunks}
+  */
+  public synchronized void failed(int index) {
+
+    Log.warn("RestoreSession: " + filepath + ": chunk " + index + " could not be retrieved");
+
+    fail();
+  }
+
+  /**
+  * Stops the restore, leaving the output file incomplete
+  */
+  private void fail() {
+
+    if (ended) {
+      return;
+    }
+
+    failed = true;
+
+    close(false);
+
+    completion.complete(false);
+  }
+
+  /**
+  * Ends a successful restore
+  */
+  private void finish() {
+
+    close(true);
+
+    Log.info("RestoreSession: " + filepath + " restored to " + (outputPath != null ? outputPath : "stream"));
+
+    completion.complete(true);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #completion}
+  */
+  public CompletableFuture<Boolean> getCompletion() {
+    return completion;
+  }
+
+  @Override
+  public synchronized int getChunksDone() {
+    return received.cardinality();
+  }
+
+  @Override
+  public int getChunksTotal() {
+    return chunks.size();
+  }
+
+  @Override
+  public synchronized long getBytesDone() {
+    return bytesWritten;
+  }
+
+  @Override
+  public long getBytesTotal() {
+    return size;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #outputPath}. null if streamed
+  */
+  public String getOutputPath() {
+    return outputPath;
+  }
+
+  /**
+  * Closes the sink and ends the session
+  *
+  * @param success TRUE if every chunk was written
+  */
+  private void close(boolean success) {
+
+    ended = true;
+
+    if (outputPath != null) {
+      sessions.remove(outputPath, this);
+    }
+
+    sink.close(success);
+  }
+}
@@ -0,0 +1,47 @@
+package peer.file;
+
+import java.io.*;
+
+/**
+* Destination of the chunks of a restore
+*/
+public interface RestoreSink {
+
+  /**
+  * Called when the restore starts
+  *
+  * @param session Restore writing to this sink
+  *
+  * @throws IOException If the sink can't be opened
+  */
+  void open(RestoreSession session) throws IOException;
+
+  /**
+  * Checks if a chunk can be requested now.
+  * Sinks slower than the network return FALSE until they catch up
+  * (the session asks again when {@link RestoreSession#resume} is called)
+  *
+  * @param index Position of the chunk in the file
+  *
+  * @return TRUE if the chunk can be requested
+  */
+  boolean canRequest(int index);
+
+  /**
+  * Writes a chunk. Chunks arrive in any order
+  *
+  * @param index Position of the chunk in the file
+  * @param offset Position of the chunk data inside the file
+  * @param body Chunk data
+  *
+  * @throws IOException If the chunk can't be written
+  */
+  void write(int index, long offset, byte[] body) throws IOException;
+
+  /**
+  * Called when the restore ends
+  *
+  * @param success TRUE if every chunk was written
+  */
+  void close(boolean success);
+}
@@ -0,0 +1,111 @@
+package peer.log;
+
+import java.util.function.Supplier;
+
+/**
+* Leveled logging of the peer.
+*
+* Messages below {@link #LEVEL} are dropped before being built:
+* hot paths pass a {@link Supplier} (e.g. {@code Log.debug(() -> "got " + msg.getHeader().print())}),
+* so a disabled log costs one comparison.
+* Enabled messages are handed to {@link LogAppender}, which prints them from its own thread,
+* so the channel threads never wait for the console
+*/
+public class Log {
+
+  /**
+  * Importance of a message
+  */
+  public enum Level {
+    /** Something failed */
+    ERROR,
+    /** Something went wrong but was dealt with (e.g. a chunk that couldn't be retrieved) */
+    WARN,
+    /** Requests, and the outcome of backups, restores, etc */
+    INFO,
+    /** Every message sent and received, resends */
+    DEBUG,
+    /** Internal details */
+    TRACE
+  }
+
+  /** Messages less important than this are dropped. Set with --log */
+  public static volatile Level LEVEL = Level.INFO;
+
+  /**
+  * Checks if messages of a level are logged
+  *
+  * @param level Level of the messages
+  *
+  * @return TRUE if logged
+  */
+  public static boolean enabled(Level level) {
+    return level.ordinal() <= LEVEL.ordinal();
+  }
+
+  /**
+  * Logs a message
+  *
+  * @param level Level of the message
+  * @param message Message
+  */
+  public static void log(Level level, String message) {
+    if (enabled(level)) {
+      LogAppender.append(level, message);
+    }
+  }
+
+  /**
+  * Logs a message, building it only if its level is logged
+  *
+  * @param level Level of the message
+  * @param message Builds the message
+  */
+  public static void log(Level level, Supplier<String> message) {
+    if (enabled(level)) {
+      LogAppender.append(level, message.get());
+    }
+  }
+
+  /**
+  * @see #log(Level, String)
+  */
+  public static void error(String message) {
+    log(Level.ERROR, message);
+  }
+
+  /**
+  * @see #log(Level, String)
+  */
+  public static void warn(String message) {
+    log(Level.WARN, message);
+  }
+
+  /**
+  * @see #log(Level, String)
+  */
+  public static void info(String message) {
+    log(Level.INFO, message);
+  }
+
+  /**
+  * @see #log(Level, Supplier)
+  */
+  public static void info(Supplier<String> message) {
+    log(Level.INFO, message);
+  }
+
+  /**
+  * @see #log(Level, Supplier)
+  */
+  public static void debug(Supplier<String> message) {
+    log(Level.DEBUG, message);
+  }
+
+  /**
+  * @see #log(Level, Supplier)
+  */
+  public static void trace(Supplier<String> message) {
+    log(Level.TRACE, message);
+  }
+}
@@ -0,0 +1,127 @@
+package peer.log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* Prints the messages of {@link Log} from a background thread.
+*
+* Messages go through a bounded ring buffer: appending never waits,
+* and if the console can't keep up the messages that don't fit are dropped (and counted).
+* The writer prints whatever is buffered in one go, so the console lock is taken once per batch.
+* Messages only leave the buffer while holding the lock of the class, so {@link #flush} prints them in order
+*/
+public class LogAppender {
+
+  /** Number of messages the buffer holds */
+  public static final int CAPACITY = 8192;
+
+  /** Max number of messages printed in one batch */
+  private static final int BATCH = 256;
+
+  /** Messages waiting to be printed */
+  private static ArrayBlockingQueue<String> buffer = new ArrayBlockingQueue<String>(CAPACITY);
+
+  /** Number of messages dropped because the buffer was full (shared by every peer of the JVM, like the console) */
+  private static final LongAdder dropped = new LongAdder();
+
+  /** Thread printing the messages, woken up when messages are appended */
+  private static final Thread writer = new Thread(LogAppender::write, "LogAppender");
+
+  static {
+    writer.setDaemon(true);
+    writer.start();
+
+    // print what is left when the peer exits
+    Runtime.getRuntime().addShutdownHook(new Thread(LogAppender::flush));
+  }
+
+  /**
+  * Queues a message to be printed
+  *
+  * @param level Level of the message
+  * @param message Message
+  */
+  static void append(Log.Level level, String message) {
+
+    // problems stand out
+    if (level.compareTo(Log.Level.WARN) <= 0) {
+      message = level + " " + message;
+    }
+
+    if (!buffer.offer(message)) {
+      dropped.increment();
+      return;
+    }
+
+    LockSupport.unpark(writer);
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of messages dropped because the buffer was full
+  */
+  public static long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+  * Prints the buffered messages
+  */
+  public static synchronized void flush() {
+
+    ArrayList<String> batch = new ArrayList<String>(BATCH);
+
+    while (buffer.drainTo(batch, BATCH) > 0) {
+      print(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+  * Body of the writer thread: waits for messages and prints them
+  */
+  private static void write() {
+
+    ArrayList<String> batch = new ArrayList<String>(BATCH);
+
+    while (!Thread.currentThread().isInterrupted()) {
+
+      // wait without taking the messages, so a flush meanwhile can't print newer ones first
+      if (buffer.isEmpty()) {
+        LockSupport.park();
+        continue;
+      }
+
+      synchronized (LogAppender.class) {
+
+        // may have been flushed meanwhile
+        if (buffer.drainTo(batch, BATCH) > 0) {
+          print(batch);
+        }
+      }
+
+      batch.clear();
+    }
+  }
+
+  /**
+  * Prints a batch of messages
+  *
+  * @param batch Messages
+  */
+  private static void print(ArrayList<String> batch) {
+
+    StringBuilder text = new StringBuilder();
+
+    for (String message : batch) {
+      text.append(message).append('\n');
+    }
+
+    System.out.print(text);
+    System.out.flush();
+  }
+}
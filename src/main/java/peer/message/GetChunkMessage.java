@@ -1,7 +1,13 @@
 package peer.message;
 
+import peer.*;
 import peer.channel.*;
+import peer.file.*;
+import peer.log.*;
+import peer.trace.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TimerTask;
 import java.util.Timer;
 
@@ -13,12 +19,18 @@ public class GetChunkMessage extends Message {
   /** {@link MessageHeader#type} */
   private static final String TYPE = "GETCHUNK";
 
-  /** Initial ammount of time (in milliseconds) to wait for CHUNK reply */
+  /** Initial ammount of time (in milliseconds) to wait for CHUNK reply, until it is measured (see {@link RestoreChannelListener#getRto}) */
   public static final int WAITING_WINDOW = 1000;
 
-  /** The actual {@link #WAITING_WINDOW}, taking into account resends, etc */
+  /** The actual time window, taking into account measured latency, resends, etc */
   private int actualWaitingWindow = WAITING_WINDOW;
 
+  /** Time (in milliseconds) this message was first sent */
+  private long sentAt = 0;
+
+  /** Range message this request was sent in. null if sent on its own */
+  private GetChunksMessage range;
+
   /** TRUE if still waiting for CHUNK reply */
   public boolean waiting = true;
 
@@ -28,19 +40,70 @@ public class GetChunkMessage extends Message {
   /** Max number of times a message can be resent */
   public static final int MAX_NRESENDS = 4;
 
+  /** Peer restoring the chunk. null if received */
+  private Peer peer;
+
   /** TRUE if this message has been replied to */
   private boolean replied = false;
 
+  /** Restore this message belongs to. null if not sent by this peer */
+  private RestoreSession session;
+
+  /** Position of the requested chunk inside the file being restored */
+  private int index;
+
   /**
   * Constructor
   *
   * @see Message#Message
   */
   public GetChunkMessage(String fileId, String chunkNo) {
+    this(null, fileId, chunkNo, null, Integer.parseInt(chunkNo));
+  }
+
+  /**
+  * Constructor
+  *
+  * @see Message#Message
+  *
+  * @param peer {@link #peer}
+  * @param session {@link #session}
+  * @param index {@link #index}
+  */
+  public GetChunkMessage(Peer peer, String fileId, String chunkNo, RestoreSession session, int index) {
     super(TYPE, fileId, chunkNo, "", new byte[0]);
+
+    this.peer = peer;
+    this.session = session;
+    this.index = index;
   }
 
 
+  /**
+  * Gives the time taken to get the CHUNK to {@link RestoreChannelListener#getRto},
+  * if the message wasn't resent (Karn's rule).
+  * Requests sent in a range let the range measure it
+  */
+  public void sample() {
+
+    long firstSent = range != null ? range.getSentAt() : sentAt;
+
+    if (firstSent > 0) {
+      peer.getMetrics().histogram("getchunk.latency.ms").record(System.currentTimeMillis() - firstSent);
+    }
+
+    if (range != null) {
+      range.sample();
+      return;
+    }
+
+    if (nresends > 0 || sentAt == 0) {
+      return;
+    }
+
+    peer.getRestoreChannel().getRto().sample(System.currentTimeMillis() - sentAt);
+  }
+
   /**
   * Resend this message to the MC channel
   */
@@ -56,7 +119,9 @@ public class GetChunkMessage extends Message {
 
       nresends++;
 
-      System.out.println(header.chunkNo + ": Resending message! #" + nresends + " t" + actualWaitingWindow);
+      peer.getMetrics().counter("getchunk.resends").increment();
+
+      Log.debug(() -> header.chunkNo + ": Resending message! #" + nresends + " t" + actualWaitingWindow);
 
       send();
 
@@ -72,6 +137,12 @@ public class GetChunkMessage extends Message {
   */
   public void send() {
 
+    // first send, wait as long as CHUNKs usually take
+    if (nresends == 0) {
+      actualWaitingWindow = peer.getRestoreChannel().getRto().getRto();
+      sentAt = System.currentTimeMillis();
+    }
+
     // save a reference for timer to cancel() it
     Timer timer = new Timer();
 
@@ -87,8 +158,20 @@ public class GetChunkMessage extends Message {
       }, actualWaitingWindow
     );
 
+    GetChunkSentEvent event = new GetChunkSentEvent();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = header.fileId;
+      event.chunkNo = header.chunkNo;
+      event.attempt = nresends + 1;
+      event.chunks = 1;
+      event.window = actualWaitingWindow;
+      event.commit();
+    }
+
     // send message
-    ControlChannelListener.sendMessage(this, 0);
+    peer.getControlChannel().sendMessage(this, 0);
   }
 
   /**
@@ -97,38 +180,57 @@ public class GetChunkMessage extends Message {
   */
   public void update() {
 
+    // TRUE if max attempts to resend were achieved
+    boolean gaveUp = false;
+
     // only act if waiting window is over
     // this shouldn't be needed, but just in case
     if (!waiting) {
 
-      synchronized (RestoreChannelListener.waitingConfirmation) {
+      HashMap<String, ArrayList<GetChunkMessage>> waitingConfirmation = peer.getRestoreChannel().getWaitingConfirmation();
+
+      synchronized (waitingConfirmation) {
 
         // if rep deg was achieved
         if (replied) {
 
-          System.out.println(header.chunkNo + ": CHUNK received, removing message from waiting queue!");
+          Log.debug(() -> header.chunkNo + ": CHUNK received, removing message from waiting queue!");
 
           // remove this message from the "queue"
           removeFromQueue();
           }
         else {
 
+          // the measured latency was too optimistic
+          if (nresends == 0) {
+            peer.getRestoreChannel().getRto().backoff();
+          }
+
           // send message again, this time doubling the time window
           if (!resend()) {
 
-            System.out.println(header.chunkNo + ": RepDeg was NOT achieved and max attempts timedout!");
+            Log.warn(header.chunkNo + ": RepDeg was NOT achieved and max attempts timedout!");
 
             // if max attempts to resend were achieved
             // remove this message from the "queue"
             removeFromQueue();
+
+            peer.getMetrics().counter("getchunk.failed").increment();
+
+            gaveUp = true;
           }
         }
 
-        if (RestoreChannelListener.waitingConfirmation.size() == 0) {
-          System.out.println("Queue is empty!");
+        if (waitingConfirmation.isEmpty()) {
+          Log.debug(() -> "Queue is empty!");
         }
       }
     }
+
+    // give up on the restore (outside the lock, the session takes it to request more chunks)
+    if (gaveUp && session != null) {
+      session.failed(index);
+    }
   }
 
   /**
@@ -137,12 +239,8 @@ public class GetChunkMessage extends Message {
   */
   private void removeFromQueue() {
 
-    // this shouldn't be needed, but just in case
-    synchronized (RestoreChannelListener.waitingConfirmation) {
-
-      // remove this message from the "queue"
-      RestoreChannelListener.waitingConfirmation.remove(this);
-    }
+    // remove this message from the "queue"
+    peer.getRestoreChannel().removeWaitingConfirmation(this);
   }
 
   /**
@@ -154,6 +252,15 @@ public class GetChunkMessage extends Message {
     return waiting;
   }
 
+  /**
+  * Setter
+  *
+  * @param range {@link #range}
+  */
+  public void setRange(GetChunksMessage range) {
+    this.range = range;
+  }
+
   /**
   * Setter
   *
@@ -163,6 +270,33 @@ public class GetChunkMessage extends Message {
     this.waiting = waiting;
   }
 
+  /**
+  * Getter
+  *
+  * @return {@link #index}
+  */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #session}
+  */
+  public RestoreSession getSession() {
+    return session;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #replied}
+  */
+  public boolean getReplied() {
+    return replied;
+  }
+
   /**
   * Setter
   *
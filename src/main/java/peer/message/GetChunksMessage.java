@@ -0,0 +1,310 @@
+package peer.message;
+
+import peer.*;
+import peer.channel.*;
+import peer.file.*;
+import peer.log.*;
+import peer.trace.*;
+
+import java.util.*;
+
+/**
+* A message to get many chunks of a file at once (enhanced protocol).
+*
+* The requested chunk numbers travel in the {@link MessageHeader#CHUNKS_LINE} header line
+* as ranges ("0-99,105,107-110"). Storage peers answer with a paced stream of CHUNKs.
+* Resends only list the chunks still missing
+*/
+public class GetChunksMessage extends Message {
+
+  /** {@link MessageHeader#type} */
+  public static final String TYPE = "GETCHUNKS";
+
+  /** The time window (in milliseconds) to wait for the CHUNK replies, taking into account measured latency, resends, etc */
+  private int actualWaitingWindow;
+
+  /** Time (in milliseconds) this message was first sent */
+  private long sentAt = 0;
+
+  /** TRUE once this message gave a latency sample */
+  private boolean sampled = false;
+
+  /** Number of times message was resent */
+  private int nresends = 0;
+
+  /** Max number of times a message can be resent */
+  public static final int MAX_NRESENDS = 4;
+
+  /** Max number of chunks a request may list. Part of the protocol, so peers with different restore windows still understand each other */
+  public static final int MAX_CHUNKS = 1024;
+
+  /** Highest chunk number (ChunkNo has at most 6 digits, so files have at most a million chunks) */
+  public static final int MAX_CHUNK_NO = 999999;
+
+  /** Peer restoring the chunks. null if received */
+  private Peer peer;
+
+  /** Requests of each chunk of the range, used to route the replies. Empty if not sent by this peer */
+  private ArrayList<GetChunkMessage> requests;
+
+  /**
+  * Constructor
+  *
+  * @see Message#Message
+  *
+  * @param peer {@link #peer}
+  * @param requests {@link #requests}. Must all be of the same file
+  */
+  public GetChunksMessage(Peer peer, String fileId, ArrayList<GetChunkMessage> requests) {
+    super(TYPE, fileId, "", "", new byte[0]);
+
+    this.peer = peer;
+    this.requests = requests;
+
+    // the range message owns the time window, not each request
+    for (GetChunkMessage request : requests) {
+      request.setWaiting(false);
+      request.setRange(this);
+    }
+
+    setChunks(encode(requests));
+  }
+
+  /**
+  * Constructor (received message)
+  *
+  * @see Message#Message
+  */
+  public GetChunksMessage(String fileId) {
+    this(null, fileId, new ArrayList<GetChunkMessage>());
+  }
+
+  /**
+  * Returns the requested chunk numbers
+  *
+  * @return Chunk numbers. null if {@link MessageHeader#CHUNKS_LINE} is malformed
+  */
+  public BitSet getChunkSet() {
+    return decode(getChunks());
+  }
+
+  /**
+  * Gives the time taken to get the first CHUNK to {@link RestoreChannelListener#getRto}.
+  * Only the first time, and only if the message wasn't resent (Karn's rule)
+  */
+  public synchronized void sample() {
+
+    if (sampled || nresends > 0 || sentAt == 0) {
+      return;
+    }
+
+    sampled = true;
+
+    peer.getRestoreChannel().getRto().sample(System.currentTimeMillis() - sentAt);
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #sentAt}
+  */
+  public long getSentAt() {
+    return sentAt;
+  }
+
+  /**
+  * Sends this message to the MC channel
+  */
+  public void send() {
+
+    // first send, wait as long as the first CHUNK usually takes, plus the time to stream the range
+    if (nresends == 0) {
+      actualWaitingWindow = peer.getRestoreChannel().getRto().getRto() + requests.size() * ChunkStreamer.PACING;
+      sentAt = System.currentTimeMillis();
+    }
+
+    // save a reference for timer to cancel() it
+    Timer timer = new Timer();
+
+    // only allow CHUNK replies for a set time window
+    timer.schedule(
+      new TimerTask() {
+        @Override
+        public void run() {
+          update();
+          timer.cancel();
+        }
+      }, actualWaitingWindow
+    );
+
+    GetChunkSentEvent event = new GetChunkSentEvent();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = header.fileId;
+      event.chunkNo = requests.get(0).getChunkNo();
+      event.attempt = nresends + 1;
+      event.chunks = requests.size();
+      event.window = actualWaitingWindow;
+      event.commit();
+    }
+
+    // send message
+    peer.getControlChannel().sendMessage(this, 0);
+  }
+
+  /**
+  * Called when time window for waiting is over.
+  * Asks again for the chunks that are still missing
+  */
+  public void update() {
+
+    // first request that couldn't be retrieved
+    GetChunkMessage gaveUp = null;
+
+    synchronized (peer.getRestoreChannel().getWaitingConfirmation()) {
+
+      ArrayList<GetChunkMessage> missing = new ArrayList<GetChunkMessage>();
+
+      for (GetChunkMessage request : requests) {
+        if (!request.getReplied()) {
+          missing.add(request);
+        }
+      }
+
+      // every chunk was received
+      if (missing.isEmpty()) {
+        return;
+      }
+
+      requests = missing;
+
+      // the measured latency was too optimistic
+      if (nresends == 0) {
+        peer.getRestoreChannel().getRto().backoff();
+      }
+
+      if (nresends < MAX_NRESENDS) {
+
+        // double time window
+        actualWaitingWindow = actualWaitingWindow * 2;
+
+        nresends++;
+
+        peer.getMetrics().counter("getchunks.resends").increment();
+
+        // only ask for the gaps
+        setChunks(encode(missing));
+
+        Log.debug(() -> header.fileId + ": Resending range for " + missing.size() + " chunks! #" + nresends + " t" + actualWaitingWindow);
+
+        send();
+      }
+      else {
+
+        Log.warn(header.fileId + ": " + missing.size() + " chunks NOT received and max attempts timedout!");
+
+        for (GetChunkMessage request : missing) {
+          peer.getRestoreChannel().removeWaitingConfirmation(request);
+        }
+
+        peer.getMetrics().counter("getchunk.failed").add(missing.size());
+
+        gaveUp = missing.get(0);
+      }
+    }
+
+    // give up on the restore (outside the lock, the session takes it to request more chunks)
+    if (gaveUp != null && gaveUp.getSession() != null) {
+      gaveUp.getSession().failed(gaveUp.getIndex());
+    }
+  }
+
+  /**
+  * Encodes the chunk numbers of some requests as ranges
+  *
+  * @param requests Requests to encode
+  *
+  * @return Ranges, e.g. "0-99,105,107-110"
+  */
+  private static String encode(ArrayList<GetChunkMessage> requests) {
+
+    BitSet chunks = new BitSet();
+
+    for (GetChunkMessage request : requests) {
+      chunks.set(Integer.parseInt(request.getChunkNo()));
+    }
+
+    StringBuilder ranges = new StringBuilder();
+
+    for (int start = chunks.nextSetBit(0); start >= 0; start = chunks.nextSetBit(start)) {
+
+      int end = chunks.nextClearBit(start) - 1;
+
+      if (ranges.length() > 0) {
+        ranges.append(',');
+      }
+
+      ranges.append(start);
+
+      if (end > start) {
+        ranges.append('-').append(end);
+      }
+
+      start = end + 1;
+    }
+
+    return ranges.toString();
+  }
+
+  /**
+  * Decodes ranges of chunk numbers.
+  * A request never lists more chunks than {@link #MAX_CHUNKS}, nor chunks past {@link #MAX_CHUNK_NO}, so such (or malformed) ranges are refused
+  *
+  * @param ranges Ranges returned by {@link #encode}
+  *
+  * @return Chunk numbers. null if the ranges are malformed or too many chunks are requested
+  */
+  private static BitSet decode(String ranges) {
+
+    BitSet chunks = new BitSet();
+
+    if (ranges == null || ranges.isEmpty()) {
+      return chunks;
+    }
+
+    // chunks requested so far
+    int count = 0;
+
+    try {
+      for (String range : ranges.split(",")) {
+
+        String[] bounds = range.split("-", -1);
+
+        if (bounds.length > 2) {
+          return null;
+        }
+
+        int start = Integer.parseInt(bounds[0]);
+        int end = bounds.length > 1 ? Integer.parseInt(bounds[1]) : start;
+
+        if (start < 0 || end < start || end > MAX_CHUNK_NO) {
+          return null;
+        }
+
+        if (end - start >= MAX_CHUNKS - count) {
+          return null;
+        }
+
+        count += end - start + 1;
+
+        chunks.set(start, end + 1);
+      }
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+
+    return chunks;
+  }
+}
@@ -1,6 +1,5 @@
 package peer.message;
 
-import peer.*;
 import javax.xml.bind.DatatypeConverter;
 import java.util.Arrays;
 
@@ -41,28 +40,33 @@ public class Message {
     /**
     * Parses a message (byte[]) and returns the correspondent Message object
     *
-    * @param msg Message to parse
+    * @param msg Message to parse. Must hold exactly the received datagram
     */
     public static Message parser(byte[] msg) {
 
-        // <MessageType> <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> <CRLF><CRLF><body>
+        // <MessageType> <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> <CRLF>
+        // [<HeaderLine> <CRLF>]...
+        // <CRLF><body>
 
-        // init
-        byte[] header = new byte[Peer.BUFFER_SIZE - CHUNK_SIZE];
+        // find the empty line that ends the header
+        int header_end = findHeaderEnd(msg);
 
-        // byte[] -> string -> length + 2* CRLF.length
-        int header_length = new String(msg).split(MessageHeader.CRLF)[0].length() + 2 * MessageHeader.CRLF.length();
+        if (header_end < 0) {
+            return null;
+        }
+
+        // byte[] -> string -> header lines
+        String[] lines = new String(msg, 0, header_end).split(MessageHeader.CRLF);
+
+        // body is whatever follows the header
+        int header_length = header_end + 2 * MessageHeader.CRLF.length();
 
-        // init
-        byte[] body = new byte[CHUNK_SIZE];
+        byte[] body = new byte[msg.length - header_length];
 
-        // split array into header and body
-        System.arraycopy(msg, 0, header, 0, header_length);
         System.arraycopy(msg, header_length, body, 0, body.length);
 
-        // split the header to get each individual field
-        // .trim() removes null bytes from empty space in byte[]
-        String contents[] = new String(header).trim().split(SPLIT_REGEX);
+        // split the first line to get each individual field
+        String contents[] = lines[0].trim().split(SPLIT_REGEX);
 
         // return object
         Message message;
@@ -82,6 +86,12 @@ public class Message {
 
                 break;
             }
+            case "STOREDCHUNKS":
+            {
+                message = new StoredChunksMessage(contents[3], contents[4], body);
+
+                break;
+            }
             case "GETCHUNK":
             {
                 message = new GetChunkMessage(contents[3], contents[4]);
@@ -94,6 +104,18 @@ public class Message {
 
                 break;
             }
+            case "GETCHUNKS":
+            {
+                message = new GetChunksMessage(contents[3]);
+
+                break;
+            }
+            case "SERVED":
+            {
+                message = new ServedMessage(contents[3], contents[4]);
+
+                break;
+            }
             case "DELETE":
             {
                 message = new DeleteMessage(contents[3]);
@@ -103,7 +125,7 @@ public class Message {
             case "REMOVED":
             {
                 message = new RemovedMessage(contents[3], contents[4]);
-              
+
                 break;
             }
             default:
@@ -116,10 +138,58 @@ public class Message {
           if (message != null){
             message.setVersion(contents[1]);
             message.setSenderId(contents[2]);
+
+            // extra header lines (unknown ones are ignored)
+            for (int i = 1; i < lines.length; i++) {
+
+              String[] line = lines[i].trim().split(SPLIT_REGEX, 2);
+
+              // header line without a value
+              if (line.length < 2) {
+                continue;
+              }
+
+              switch (line[0]) {
+                case MessageHeader.CODEC_LINE:
+                  message.setCodec(line[1]);
+                  break;
+                case MessageHeader.CHUNKS_LINE:
+                  message.setChunks(line[1]);
+                  break;
+                case MessageHeader.REPLYTO_LINE:
+                  message.setReplyTo(line[1]);
+                  break;
+                default:
+                  break;
+              }
+            }
+
+            // don't stream ranges no peer would ask for
+            if (message instanceof GetChunksMessage && ((GetChunksMessage)message).getChunkSet() == null) {
+              return null;
+            }
           }
           return message;
     }
 
+    /**
+    * Finds the empty line (CRLF CRLF) that ends the header of a message
+    *
+    * @param msg Message to search
+    *
+    * @return Index of the first CRLF. -1 if not found
+    */
+    private static int findHeaderEnd(byte[] msg) {
+
+        for (int i = 0; i + 3 < msg.length; i++) {
+            if (msg[i] == 13 && msg[i + 1] == 10 && msg[i + 2] == 13 && msg[i + 3] == 10) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
     @Override
     public String toString() {
         return header.toString() + "" + DatatypeConverter.printHexBinary(body);
@@ -135,8 +205,8 @@ public class Message {
       // get header bytes
       byte[] b_header = header.toString().getBytes();
 
-      // init output
-      byte[] output = new byte[Peer.BUFFER_SIZE];
+      // init output (only as big as needed, so the datagram carries the exact body)
+      byte[] output = new byte[b_header.length + body.length];
 
       // copy b_header into output
       System.arraycopy(b_header, 0, output, 0, b_header.length);
@@ -156,6 +226,33 @@ public class Message {
       this.header.senderId = senderId;
     }
 
+    /**
+    * Setter
+    *
+    * @param codec {@link MessageHeader#codec}
+    */
+    public void setCodec(String codec) {
+      this.header.codec = codec;
+    }
+
+    /**
+    * Setter
+    *
+    * @param chunks {@link MessageHeader#chunks}
+    */
+    public void setChunks(String chunks) {
+      this.header.chunks = chunks;
+    }
+
+    /**
+    * Setter
+    *
+    * @param replyTo {@link MessageHeader#replyTo}
+    */
+    public void setReplyTo(String replyTo) {
+      this.header.replyTo = replyTo;
+    }
+
     /**
     * Setter
     *
@@ -219,6 +316,33 @@ public class Message {
         return header.repDeg;
     }
 
+    /**
+    * Getter
+    *
+    * @return {@link MessageHeader#codec}
+    */
+    public String getCodec() {
+        return header.codec;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link MessageHeader#chunks}
+    */
+    public String getChunks() {
+        return header.chunks;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link MessageHeader#replyTo}
+    */
+    public String getReplyTo() {
+        return header.replyTo;
+    }
+
     /**
     * Getter
     *
@@ -237,14 +361,26 @@ public class Message {
         return body;
     }
 
+    /**
+    * Returns a name that identifies this chunk among all backed up chunks
+    *
+    * @return "fileId-chunkNo"
+    */
+    public String getChunkName() {
+
+        return header.fileId + "-" + header.chunkNo;
+    }
+
     /**
     * Returns the filepath to store/load this chunk
     *
+    * @param chunksPath Path where the peer stores chunks
+    *
     * @return Filepath to store/load this chunk
     */
-    public String getChunkPath() {
+    public String getChunkPath(String chunksPath) {
 
-        return Peer.CHUNKS_PATH + header.fileId + "-" + header.chunkNo + ".chk";
+        return chunksPath + getChunkName() + ".chk";
     }
 
     /**
@@ -253,16 +389,6 @@ public class Message {
     * @return Length of body (byte[])
     */
     public int getBodyLength() {
-
-      int i;
-      for (i = body.length - 1; i > 0; i--) {
-        if (body[i] != 0 || body[i - 1] != 0) {
-          break;
-        }
-      }
-      if (i < 0 || i == body.length - 1) {
-        i++;
-      }
-      return i;
+      return body.length;
     }
 }
@@ -1,11 +1,11 @@
 package peer.message;
 
-import peer.*;
-
 /**
 * Header for a Message.
 *
-* <MessageType> <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> <CRLF><CRLF>
+* <MessageType> <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> <CRLF>
+* [<HeaderLine> <CRLF>]...
+* <CRLF>
 */
 public class MessageHeader {
 
@@ -14,9 +14,9 @@ public class MessageHeader {
 
   /** Type of the message */
   public String type;
-  /** Version of the protocol */
+  /** Version of the protocol. Set by the sending peer, if null (see {@link peer.channel.ChannelMessenger}) */
   public String version;
-  /** Id of the Peer who sent the message */
+  /** Id of the Peer who sent the message. Set by the sending peer, if null (see {@link peer.channel.ChannelMessenger}) */
   public String senderId;
   /** Id of file for backup service */
   public String fileId;
@@ -24,8 +24,20 @@ public class MessageHeader {
   public String chunkNo;
   /** Desired replication degree of the chunk */
   public String repDeg;
+  /** Codec the body is compressed with. null if not compressed */
+  public String codec;
+  /** Ranges of chunk numbers the message refers to. null if just {@link #chunkNo} */
+  public String chunks;
+  /** Endpoint ("host:port") the chunks should be sent to. null if to the MDR channel */
+  public String replyTo;
   /** Line terminator */
   public static final String CRLF = Character.toString((char)13) + Character.toString((char)10);
+  /** Name of the header line holding {@link #codec} */
+  public static final String CODEC_LINE = "CODEC";
+  /** Name of the header line holding {@link #chunks} */
+  public static final String CHUNKS_LINE = "CHUNKS";
+  /** Name of the header line holding {@link #replyTo} */
+  public static final String REPLYTO_LINE = "REPLYTO";
 
   /**
   * Constructor
@@ -38,8 +50,6 @@ public class MessageHeader {
   public MessageHeader(String type, String fileId, String chunkNo, String repDeg) {
 
     this.type = type;
-    this.version = Peer.VERSION;
-    this.senderId = Peer.ID;
     this.fileId = fileId;
     this.chunkNo = chunkNo;
     this.repDeg = repDeg;
@@ -48,7 +58,22 @@ public class MessageHeader {
 
   @Override
   public String toString() {
-    return type + " " + version + " " + senderId + " " + fileId + " " + chunkNo + " " + repDeg + " " + CRLF + CRLF;
+
+    String lines = "";
+
+    if (codec != null) {
+      lines += CODEC_LINE + " " + codec + " " + CRLF;
+    }
+
+    if (chunks != null) {
+      lines += CHUNKS_LINE + " " + chunks + " " + CRLF;
+    }
+
+    if (replyTo != null) {
+      lines += REPLYTO_LINE + " " + replyTo + " " + CRLF;
+    }
+
+    return type + " " + version + " " + senderId + " " + fileId + " " + chunkNo + " " + repDeg + " " + CRLF + lines + CRLF;
   }
 
   public String print() {
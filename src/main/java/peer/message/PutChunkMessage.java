@@ -1,9 +1,13 @@
 package peer.message;
 
+import peer.*;
 import peer.channel.*;
 import peer.file.*;
+import peer.log.*;
+import peer.trace.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TimerTask;
 import java.util.Timer;
 
@@ -15,12 +19,18 @@ public class PutChunkMessage extends Message {
   /** {@link MessageHeader#type} */
   public static final String TYPE = "PUTCHUNK";
 
-  /** Initial ammount of time (in milliseconds) to wait for STORED confirmations */
+  /** Initial ammount of time (in milliseconds) to wait for STORED confirmations, until it is measured (see {@link BackupChannelListener#getRto}) */
   public static final int WAITING_WINDOW = 1000;
 
-  /** The actual {@link #WAITING_WINDOW}, taking into account resends, etc */
+  /** The actual time window, taking into account measured latency, resends, etc */
   private int actualWaitingWindow = WAITING_WINDOW;
 
+  /** Time (in milliseconds) this message was first sent */
+  private long sentAt = 0;
+
+  /** TRUE once this message gave a latency sample */
+  private boolean sampled = false;
+
   /** TRUE if still waiting for STORED confirmations */
   public boolean waiting = true;
 
@@ -33,16 +43,44 @@ public class PutChunkMessage extends Message {
   /** Max number of times a message can be resent */
   public static final int MAX_NRESENDS = 4;
 
+  /** Peer backing up the chunk. null if received */
+  private Peer peer;
+
   /** List of server ids that have stored this message (chunk) */
   private ArrayList<String> savers = new ArrayList<String>();
 
+  /** Backup this message belongs to. null if not part of a file backup */
+  private BackupSession session;
+
+  /** Size of the chunk before compression */
+  private int length;
+
+  /** Timer of the current time window, cancelled when the desired rep deg is reached */
+  private Timer timer;
+
+  /** TRUE once this message left the waiting queue */
+  private boolean done = false;
+
   /**
-  * Constructor
+  * Constructor (received message)
   *
   * @see Message#Message
   */
   public PutChunkMessage(String fileId, String chunkNo, String repDeg, byte[] body) {
+    this(null, fileId, chunkNo, repDeg, body);
+  }
+
+  /**
+  * Constructor
+  *
+  * @see Message#Message
+  *
+  * @param peer {@link #peer}
+  */
+  public PutChunkMessage(Peer peer, String fileId, String chunkNo, String repDeg, byte[] body) {
     super(TYPE, fileId, chunkNo, repDeg, body);
+
+    this.peer = peer;
   }
 
   /**
@@ -54,6 +92,24 @@ public class PutChunkMessage extends Message {
     return actualRepDeg;
   }
 
+  /**
+  * Getter
+  *
+  * @return Number of times this message was sent (1 before any resend)
+  */
+  public int getAttempt() {
+    return nresends + 1;
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #sentAt}
+  */
+  public long getSentAt() {
+    return sentAt;
+  }
+
   /**
   * Adds one to the actual replication degree
   */
@@ -76,6 +132,21 @@ public class PutChunkMessage extends Message {
     return false;
   }
 
+  /**
+  * Gives the time taken to reach the desired replication degree to {@link BackupChannelListener#getRto}.
+  * Only the first time, and only if the message wasn't resent (Karn's rule)
+  */
+  public void sample() {
+
+    if (sampled || nresends > 0) {
+      return;
+    }
+
+    sampled = true;
+
+    peer.getBackupChannel().getRto().sample(System.currentTimeMillis() - sentAt);
+  }
+
   /**
   * Resend this message to the MDB channel
   */
@@ -91,7 +162,9 @@ public class PutChunkMessage extends Message {
 
       nresends++;
 
-      System.out.println(header.chunkNo + ": Resending message! #" + nresends + " t" + actualWaitingWindow);
+      peer.getMetrics().counter("putchunk.resends").increment();
+
+      Log.debug(() -> header.chunkNo + ": Resending message! #" + nresends + " t" + actualWaitingWindow);
 
       send();
 
@@ -102,6 +175,24 @@ public class PutChunkMessage extends Message {
     }
   }
 
+  /**
+  * Called when a STORED brings the actual rep deg to the desired one.
+  * Completes the message right away instead of waiting for the time window to end.
+  * Must be called while holding the lock of {@link ControlChannelListener#getWaitingConfirmation}
+  */
+  public void complete() {
+
+    if (done) {
+      return;
+    }
+
+    timer.cancel();
+
+    sample();
+
+    removeFromQueue();
+  }
+
   /**
   * Called when time window for waiting is over.
   * Checks if there's a need to resend the message
@@ -113,22 +204,34 @@ public class PutChunkMessage extends Message {
     // this shouldn't be needed, but just in case
     if (!waiting) {
 
-      synchronized (ControlChannelListener.waitingConfirmation) {
+      HashMap<String, PutChunkMessage> waitingConfirmation = peer.getControlChannel().getWaitingConfirmation();
+
+      synchronized (waitingConfirmation) {
+
+        // already completed by a STORED
+        if (done) {
+          return;
+        }
 
         // if rep deg was achieved
         if (getActualRepDeg() >= Integer.parseInt(getRepDeg())) {
 
-          System.out.println(header.chunkNo + ": RepDeg was achieved, removing message from waiting queue!");
+          Log.debug(() -> header.chunkNo + ": RepDeg was achieved, removing message from waiting queue!");
 
           // remove this message from the "queue"
           removeFromQueue();
           }
         else {
 
+          // the measured latency was too optimistic
+          if (nresends == 0) {
+            peer.getBackupChannel().getRto().backoff();
+          }
+
           // send message again, this time doubling the time window
           if (!resend()) {
 
-            System.out.println(header.chunkNo + ": RepDeg was NOT achieved and max attempts timedout!");
+            Log.warn(header.chunkNo + ": RepDeg was NOT achieved and max attempts timedout!");
 
             // if max attempts to resend were achieved
             // remove this message from the "queue"
@@ -136,8 +239,8 @@ public class PutChunkMessage extends Message {
           }
         }
 
-        if (ControlChannelListener.waitingConfirmation.size() == 0) {
-          System.out.println("Queue is empty!");
+        if (waitingConfirmation.isEmpty()) {
+          Log.debug(() -> "Queue is empty!");
         }
       }
     }
@@ -149,15 +252,46 @@ public class PutChunkMessage extends Message {
   */
   private void removeFromQueue() {
 
+    HashMap<String, PutChunkMessage> waitingConfirmation = peer.getControlChannel().getWaitingConfirmation();
+
     // this shouldn't be needed, but just in case
-    synchronized (ControlChannelListener.waitingConfirmation) {
+    synchronized (waitingConfirmation) {
+
+      done = true;
 
       // remove this message from the "queue"
-      ControlChannelListener.waitingConfirmation.remove(this);
+      waitingConfirmation.remove(getChunkName());
 
       // add this chunk to log TODO chamar no backup
-      new FileManager().addChunkInfoToFile(header.senderId, header.fileId, header.chunkNo, header.repDeg, Integer.toString(actualRepDeg));
+      new FileManager(peer).addChunkInfoToFile(header.senderId, header.fileId, header.chunkNo, header.repDeg, Integer.toString(actualRepDeg));
+
+    }
+
+    boolean replicated = actualRepDeg >= Integer.parseInt(getRepDeg());
 
+    if (replicated) {
+      peer.getMetrics().histogram("putchunk.replication.ms").record(System.currentTimeMillis() - sentAt);
+    }
+    else {
+      peer.getMetrics().counter("putchunk.failed").increment();
+    }
+
+    ReplicationEvent event = replicated ? new ReplicationReachedEvent() : new ReplicationFailedEvent();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = header.fileId;
+      event.chunkNo = header.chunkNo;
+      event.attempts = getAttempt();
+      event.replication = actualRepDeg;
+      event.desired = Integer.parseInt(getRepDeg());
+      event.elapsed = System.currentTimeMillis() - sentAt;
+      event.commit();
+    }
+
+    // free the slot of this chunk in the backup window
+    if (session != null) {
+      session.chunkDone(replicated, length);
     }
   }
 
@@ -166,23 +300,54 @@ public class PutChunkMessage extends Message {
   */
   public void send() {
 
+    // first send, wait as long as STOREDs usually take
+    if (nresends == 0) {
+      actualWaitingWindow = peer.getBackupChannel().getRto().getRto();
+      sentAt = System.currentTimeMillis();
+    }
+
     // save a reference for timer to cancel() it
-    Timer timer = new Timer();
+    timer = new Timer();
+
+    Timer windowTimer = timer;
 
     // only allow STORED confirmations for a set time window
-    timer.schedule(
+    windowTimer.schedule(
       new TimerTask() {
         @Override
         public void run() {
           setWaiting(false);
           checkRepDeg();
-          timer.cancel();
+          windowTimer.cancel();
         }
       }, actualWaitingWindow
     );
 
+    PutChunkSentEvent event = new PutChunkSentEvent();
+
+    if (event.shouldCommit()) {
+      event.peerId = peer.getId();
+      event.fileId = header.fileId;
+      event.chunkNo = header.chunkNo;
+      event.attempt = getAttempt();
+      event.window = actualWaitingWindow;
+      event.bytes = getBodyLength();
+      event.commit();
+    }
+
     // send message
-    BackupChannelListener.sendMessage(this);
+    peer.getBackupChannel().sendMessage(this);
+  }
+
+  /**
+  * Setter
+  *
+  * @param session {@link #session}
+  * @param length {@link #length}
+  */
+  public void setSession(BackupSession session, int length) {
+    this.session = session;
+    this.length = length;
   }
 
   /**
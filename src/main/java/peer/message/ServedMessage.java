@@ -0,0 +1,22 @@
+package peer.message;
+
+/**
+* A notice, sent to the MDR channel, that a chunk was sent straight to the peer
+* that requested it (enhanced protocol). Lets other peers skip sending the same chunk.
+*
+* The {@link MessageHeader#REPLYTO_LINE} header line holds the peer the chunk was sent to
+*/
+public class ServedMessage extends Message {
+
+  /** {@link MessageHeader#type} */
+  private static final String TYPE = "SERVED";
+
+  /**
+  * Constructor
+  *
+  * @see Message#Message
+  */
+  public ServedMessage(String fileId, String chunkNo) {
+    super(TYPE, fileId, chunkNo, "", new byte[0]);
+  }
+}
@@ -0,0 +1,56 @@
+package peer.message;
+
+import java.util.BitSet;
+
+/**
+* A message to confirm the backup of many chunks of a file at once (enhanced protocol).
+*
+* {@link MessageHeader#chunkNo} holds the first confirmed chunk and the body is a bitmap
+* of the confirmed chunks, relative to the first one
+*/
+public class StoredChunksMessage extends Message {
+
+  /** {@link MessageHeader#type} */
+  public static final String TYPE = "STOREDCHUNKS";
+
+  /**
+  * Constructor
+  *
+  * @see Message#Message
+  *
+  * @param body Bitmap of the confirmed chunks, relative to chunkNo
+  */
+  public StoredChunksMessage(String fileId, String chunkNo, byte[] body) {
+    super(TYPE, fileId, chunkNo, "", body);
+  }
+
+  /**
+  * Constructor
+  *
+  * @param fileId {@link MessageHeader#fileId}
+  * @param chunks Numbers of the confirmed chunks. Must not be empty
+  */
+  public StoredChunksMessage(String fileId, BitSet chunks) {
+    this(fileId, Integer.toString(chunks.nextSetBit(0)), chunks.get(chunks.nextSetBit(0), chunks.length()).toByteArray());
+  }
+
+  /**
+  * Returns the confirmed chunk numbers
+  *
+  * @return Chunk numbers
+  */
+  public BitSet getChunkSet() {
+
+    int first = Integer.parseInt(getChunkNo());
+
+    BitSet relative = BitSet.valueOf(getBody());
+
+    BitSet chunks = new BitSet();
+
+    for (int i = relative.nextSetBit(0); i >= 0; i = relative.nextSetBit(i + 1)) {
+      chunks.set(first + i);
+    }
+
+    return chunks;
+  }
+}
@@ -0,0 +1,299 @@
+package peer.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Lock-free histogram of non negative values (e.g. latencies), HdrHistogram style.
+*
+* Values are counted in log-linear buckets: each power of 2 is split in {@link #SUB_BUCKETS} buckets,
+* so percentiles are within 1/{@link #SUB_BUCKETS} of the recorded values, whatever their magnitude.
+* Recording is a few shifts and one atomic add
+*/
+public class Histogram {
+
+  /** log2 of {@link #SUB_BUCKETS} */
+  private static final int SUB_BITS = 4;
+
+  /** Number of buckets per power of 2 */
+  public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /** Number of buckets, enough for any positive long */
+  private static final int NBUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  /** Number of values in each bucket */
+  private AtomicLongArray buckets = new AtomicLongArray(NBUCKETS);
+
+  /** Number of recorded values */
+  private LongAdder count = new LongAdder();
+
+  /** Sum of recorded values */
+  private LongAdder sum = new LongAdder();
+
+  /** Largest recorded value */
+  private AtomicLong max = new AtomicLong();
+
+  /**
+  * Records a value
+  *
+  * @param value Value to record. Negative values count as 0
+  */
+  public void record(long value) {
+
+    if (value < 0) {
+      value = 0;
+    }
+
+    buckets.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+
+    // only contend when the max grows
+    long current = max.get();
+
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+  * Records the time since a start
+  *
+  * @param startNanos Start, from {@link System#nanoTime}
+  */
+  public void recordMicrosSince(long startNanos) {
+    record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of recorded values
+  */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+  * Getter
+  *
+  * @return {@link #max}
+  */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+  * Returns the average of the recorded values
+  *
+  * @return Average. 0 if none recorded
+  */
+  public double getMean() {
+
+    long n = count.sum();
+
+    return n == 0 ? 0 : sum.sum() / (double)n;
+  }
+
+  /**
+  * Returns a percentile of the recorded values
+  *
+  * @param percentile Percentile, between 0 and 100
+  *
+  * @return Middle of the bucket holding the percentile. 0 if none recorded
+  */
+  public long getPercentile(double percentile) {
+
+    long total = 0;
+
+    for (int i = 0; i < NBUCKETS; i++) {
+      total += buckets.get(i);
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+
+    long seen = 0;
+
+    for (int i = 0; i < NBUCKETS; i++) {
+
+      seen += buckets.get(i);
+
+      if (seen >= rank) {
+        return Math.min(lowest(i) + width(i) / 2, getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  /**
+  * Returns the current values, for JMX and the STATE sub protocol
+  *
+  * @return Count, mean, percentiles and max
+  */
+  public Snapshot snapshot() {
+    return new Snapshot(getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+  }
+
+  /**
+  * Returns the bucket of a value
+  *
+  * @param value Non negative value
+  *
+  * @return Bucket index
+  */
+  private static int index(long value) {
+
+    // small values have a bucket each
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+
+    return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+  * Returns the smallest value of a bucket
+  *
+  * @param index Bucket index
+  *
+  * @return Smallest value counted in the bucket
+  */
+  private static long lowest(int index) {
+
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift = index / SUB_BUCKETS - 1;
+
+    return (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+  }
+
+  /**
+  * Returns the number of values in the range of a bucket
+  *
+  * @param index Bucket index
+  *
+  * @return Width of the bucket
+  */
+  private static long width(int index) {
+    return index < SUB_BUCKETS ? 1 : 1L << (index / SUB_BUCKETS - 1);
+  }
+
+  /**
+  * Values of a histogram at some point
+  */
+  public static class Snapshot {
+
+    /** Number of recorded values */
+    private long count;
+
+    /** Average */
+    private double mean;
+
+    /** Median */
+    private long p50;
+
+    /** 90th percentile */
+    private long p90;
+
+    /** 99th percentile */
+    private long p99;
+
+    /** Largest value */
+    private long max;
+
+    /**
+    * Constructor
+    *
+    * @param count {@link #count}
+    * @param mean {@link #mean}
+    * @param p50 {@link #p50}
+    * @param p90 {@link #p90}
+    * @param p99 {@link #p99}
+    * @param max {@link #max}
+    */
+    @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+    public Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+      this.count = count;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+      this.max = max;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #count}
+    */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #mean}
+    */
+    public double getMean() {
+      return mean;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #p50}
+    */
+    public long getP50() {
+      return p50;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #p90}
+    */
+    public long getP90() {
+      return p90;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #p99}
+    */
+    public long getP99() {
+      return p99;
+    }
+
+    /**
+    * Getter
+    *
+    * @return {@link #max}
+    */
+    public long getMax() {
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "count " + count
+        + " mean " + String.format("%.1f", mean)
+        + " p50 " + p50
+        + " p90 " + p90
+        + " p99 " + p99
+        + " max " + max;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package peer.metrics;
+
+import peer.log.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.ObjectName;
+
+/**
+* Registry of the metrics of a peer: counters, gauges and histograms, by name.
+*
+* Names are dotted, starting with the channel or operation, e.g. "MDB.packets.in", "putchunk.resends".
+* Histogram names end with their unit ("ns", "us" or "ms").
+* Hot paths should look a metric up once (e.g. in a field) and update it directly,
+* counters are {@link LongAdder}s and {@link Histogram}s are lock-free.
+*
+* Shown by the STATE METRICS sub protocol and over JMX (see {@link #register})
+*/
+public class Metrics implements MetricsMXBean {
+
+  /** Counters, by name */
+  private ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+  /** Histograms, by name */
+  private ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  /** Gauges (values read when shown), by name */
+  private ConcurrentHashMap<String, DoubleSupplier> gauges = new ConcurrentHashMap<String, DoubleSupplier>();
+
+  /** Name the registry is visible under over JMX. null if not registered */
+  private ObjectName name = null;
+
+  /**
+  * Returns a counter, creating it if needed
+  *
+  * @param name Name of the counter
+  *
+  * @return Counter
+  */
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  /**
+  * Returns a histogram, creating it if needed
+  *
+  * @param name Name of the histogram
+  *
+  * @return Histogram
+  */
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  /**
+  * Adds a gauge, replacing any with the same name
+  *
+  * @param name Name of the gauge
+  * @param gauge Reads the current value
+  */
+  public void gauge(String name, DoubleSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+  * Returns the short name of a channel, used to prefix its metrics
+  *
+  * @param channelName Channel or messenger name, e.g. "(MDB) Data Backup Channel"
+  *
+  * @return Short name, e.g. "MDB"
+  */
+  public static String channelKey(String channelName) {
+
+    int end = channelName.indexOf(')');
+
+    return channelName.startsWith("(") && end > 0 ? channelName.substring(1, end) : channelName;
+  }
+
+  /**
+  * Returns the value of every counter
+  *
+  * @return Values, by name (sorted)
+  */
+  @Override
+  public Map<String, Long> getCounters() {
+
+    TreeMap<String, Long> values = new TreeMap<String, Long>();
+
+    counters.forEach((name, counter) -> values.put(name, counter.sum()));
+
+    return values;
+  }
+
+  /**
+  * Returns the value of every gauge
+  *
+  * @return Values, by name (sorted)
+  */
+  @Override
+  public Map<String, Double> getGauges() {
+
+    TreeMap<String, Double> values = new TreeMap<String, Double>();
+
+    gauges.forEach((name, gauge) -> values.put(name, gauge.getAsDouble()));
+
+    return values;
+  }
+
+  /**
+  * Returns the values of every histogram
+  *
+  * @return Values, by name (sorted)
+  */
+  @Override
+  public Map<String, Histogram.Snapshot> getHistograms() {
+
+    TreeMap<String, Histogram.Snapshot> values = new TreeMap<String, Histogram.Snapshot>();
+
+    histograms.forEach((name, histogram) -> values.put(name, histogram.snapshot()));
+
+    return values;
+  }
+
+  /**
+  * Describes every metric, one per line, for the STATE METRICS sub protocol
+  *
+  * @return Metrics description
+  */
+  public String state() {
+
+    StringBuilder state = new StringBuilder();
+
+    getCounters().forEach((name, value) -> state.append(name).append(' ').append(value).append('\n'));
+    getGauges().forEach((name, value) -> state.append(name).append(' ').append(String.format("%.2f", value)).append('\n'));
+    getHistograms().forEach((name, value) -> state.append(name).append(' ').append(value).append('\n'));
+
+    return state.toString().trim();
+  }
+
+  /**
+  * Makes the metrics visible over JMX, as "peer:type=Metrics,id=<id>"
+  *
+  * @param id Server id
+  */
+  public void register(String id) {
+
+    try {
+      name = new ObjectName("peer:type=Metrics,id=" + id);
+
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+    catch (Exception e) {
+      Log.error("Metrics: Error registering MBean: " + e);
+    }
+  }
+
+  /**
+  * Removes the metrics from JMX, if {@link #register}ed
+  */
+  public void unregister() {
+
+    if (name == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+    catch (Exception e) {
+      Log.error("Metrics: Error unregistering MBean: " + e);
+    }
+
+    name = null;
+  }
+}
@@ -0,0 +1,24 @@
+package peer.metrics;
+
+import java.util.Map;
+
+/**
+* JMX view of the {@link Metrics} of a peer (e.g. in jconsole, under "peer")
+*/
+public interface MetricsMXBean {
+
+  /**
+  * @see Metrics#getCounters
+  */
+  Map<String, Long> getCounters();
+
+  /**
+  * @see Metrics#getGauges
+  */
+  Map<String, Double> getGauges();
+
+  /**
+  * @see Metrics#getHistograms
+  */
+  Map<String, Histogram.Snapshot> getHistograms();
+}
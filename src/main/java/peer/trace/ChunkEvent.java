@@ -0,0 +1,25 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* Flight recorder event about a chunk.
+*
+* Events are only filled and committed when a recording enables them:
+* check {@link Event#shouldCommit} before setting the fields
+*/
+@StackTrace(false)
+public abstract class ChunkEvent extends Event {
+
+  /** Id of the peer the event happened in (several peers may share a JVM) */
+  @Label("Peer Id")
+  public String peerId;
+
+  /** {@link peer.message.MessageHeader#fileId} */
+  @Label("File Id")
+  public String fileId;
+
+  /** {@link peer.message.MessageHeader#chunkNo} */
+  @Label("Chunk No")
+  public String chunkNo;
+}
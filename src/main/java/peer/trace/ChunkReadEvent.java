@@ -0,0 +1,21 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A chunk read from disk: from the file being backed up, or from the chunks stored to serve it
+*/
+@Name("peer.ChunkRead")
+@Label("Chunk Read")
+@Category({"Peer", "Disk"})
+public class ChunkReadEvent extends ChunkEvent {
+
+  /** Size of the chunk */
+  @Label("Bytes")
+  @DataAmount
+  public int bytes;
+
+  /** TRUE if read from the chunks stored by this peer, FALSE if from a file being backed up */
+  @Label("Stored")
+  public boolean stored;
+}
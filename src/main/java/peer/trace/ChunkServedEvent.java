@@ -0,0 +1,26 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A CHUNK read and sent in reply to a GETCHUNK (or a GETCHUNKS range)
+*/
+@Name("peer.ChunkServed")
+@Label("CHUNK Served")
+@Category({"Peer", "Restore"})
+public class ChunkServedEvent extends ChunkEvent {
+
+  /** Size of the chunk */
+  @Label("Bytes")
+  @DataAmount
+  public int bytes;
+
+  /** TRUE if sent straight to the requesting peer */
+  @Label("Unicast")
+  public boolean unicast;
+
+  /** Time since the request arrived (reply delay, queueing) */
+  @Label("Waited")
+  @Timespan(Timespan.MILLISECONDS)
+  public long waited;
+}
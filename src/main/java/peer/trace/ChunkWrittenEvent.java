@@ -0,0 +1,21 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A restored chunk written to its destination (file, pipe or client stream)
+*/
+@Name("peer.ChunkWritten")
+@Label("Chunk Written")
+@Category({"Peer", "Restore"})
+public class ChunkWrittenEvent extends ChunkEvent {
+
+  /** Bytes written */
+  @Label("Bytes")
+  @DataAmount
+  public int bytes;
+
+  /** Position of the bytes in the restored data */
+  @Label("Offset")
+  public long offset;
+}
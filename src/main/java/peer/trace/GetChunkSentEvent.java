@@ -0,0 +1,25 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A GETCHUNK (or a GETCHUNKS range) sent to the MC channel (first send or resend)
+*/
+@Name("peer.GetChunkSent")
+@Label("GETCHUNK Sent")
+@Category({"Peer", "Restore"})
+public class GetChunkSentEvent extends ChunkEvent {
+
+  /** 1 for the first send, then one more for each resend */
+  @Label("Attempt")
+  public int attempt;
+
+  /** Number of chunks requested (more than 1 for a range, starting at {@link #chunkNo}) */
+  @Label("Chunks")
+  public int chunks;
+
+  /** Time allowed for the CHUNKs before resending */
+  @Label("Window")
+  @Timespan(Timespan.MILLISECONDS)
+  public long window;
+}
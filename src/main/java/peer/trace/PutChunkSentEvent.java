@@ -0,0 +1,26 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A PUTCHUNK sent to the MDB channel (first send or resend)
+*/
+@Name("peer.PutChunkSent")
+@Label("PUTCHUNK Sent")
+@Category({"Peer", "Backup"})
+public class PutChunkSentEvent extends ChunkEvent {
+
+  /** 1 for the first send, then one more for each resend */
+  @Label("Attempt")
+  public int attempt;
+
+  /** Time allowed for the STOREDs before resending */
+  @Label("Window")
+  @Timespan(Timespan.MILLISECONDS)
+  public long window;
+
+  /** Size of the body */
+  @Label("Bytes")
+  @DataAmount
+  public int bytes;
+}
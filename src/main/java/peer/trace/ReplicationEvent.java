@@ -0,0 +1,27 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A PUTCHUNK done waiting for STOREDs
+*/
+@Category({"Peer", "Backup"})
+public abstract class ReplicationEvent extends ChunkEvent {
+
+  /** Number of times the PUTCHUNK was sent */
+  @Label("Attempts")
+  public int attempts;
+
+  /** Replicas counted */
+  @Label("Replication")
+  public int replication;
+
+  /** Desired replication degree */
+  @Label("Desired")
+  public int desired;
+
+  /** Time since the PUTCHUNK was first sent */
+  @Label("Elapsed")
+  @Timespan(Timespan.MILLISECONDS)
+  public long elapsed;
+}
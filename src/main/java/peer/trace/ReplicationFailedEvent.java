@@ -0,0 +1,11 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A chunk given up on before reaching its desired replication degree
+*/
+@Name("peer.ReplicationFailed")
+@Label("Replication Failed")
+public class ReplicationFailedEvent extends ReplicationEvent {
+}
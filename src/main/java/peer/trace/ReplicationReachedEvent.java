@@ -0,0 +1,11 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A chunk that reached its desired replication degree
+*/
+@Name("peer.ReplicationReached")
+@Label("Replication Reached")
+public class ReplicationReachedEvent extends ReplicationEvent {
+}
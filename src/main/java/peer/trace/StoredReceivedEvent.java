@@ -0,0 +1,34 @@
+package peer.trace;
+
+import jdk.jfr.*;
+
+/**
+* A STORED (or an entry of a STOREDCHUNKS) confirming a PUTCHUNK this peer is waiting on
+*/
+@Name("peer.StoredReceived")
+@Label("STORED Received")
+@Category({"Peer", "Backup"})
+public class StoredReceivedEvent extends ChunkEvent {
+
+  /** Id of the peer that stored the chunk */
+  @Label("Sender Id")
+  public String senderId;
+
+  /** Attempt of the PUTCHUNK waiting when the STORED arrived */
+  @Label("Attempt")
+  public int attempt;
+
+  /** Replicas counted, including this one */
+  @Label("Replication")
+  public int replication;
+
+  /** Time since the PUTCHUNK was first sent */
+  @Label("Since Sent")
+  @Timespan(Timespan.MILLISECONDS)
+  public long sinceSent;
+
+  /** Time waiting for the lock of the PUTCHUNKs waiting for STOREDs */
+  @Label("Lock Wait")
+  @Timespan(Timespan.NANOSECONDS)
+  public long lockWait;
+}
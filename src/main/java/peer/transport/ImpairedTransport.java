@@ -0,0 +1,285 @@
+package peer.transport;
+
+import peer.log.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Transport carrying the packets of another one as a bad network would (see {@link Impairment}).
+*
+* Delays, reordering and bandwidth apply to the channel, when a packet is sent.
+* Loss and duplication apply to each receiver on its own, like packets lost by one member of a multicast group.
+* Each channel (for delays) and each receiver (for loss and duplication) draws from its own generator, seeded from the seed and its name,
+* so a channel or receiver given the same packets in the same order gets the same impairments, whatever the threads of the others do
+*/
+public class ImpairedTransport implements Transport {
+
+  /** Transport carrying the packets that get through */
+  private Transport transport;
+
+  /** Impairment of the channels without their own (and of the endpoints) */
+  private Impairment impairment;
+
+  /** Impairments by channel ("address:port") */
+  private ConcurrentHashMap<String, Impairment> impairments = new ConcurrentHashMap<String, Impairment>();
+
+  /** Time (System.nanoTime) each channel is done sending the packets already sent, by channel */
+  private ConcurrentHashMap<String, AtomicLong> links = new ConcurrentHashMap<String, AtomicLong>();
+
+  /** Seed the generators of the channels and receivers are derived from */
+  private long seed;
+
+  /** Source of the delays of each channel, by channel */
+  private ConcurrentHashMap<String, Random> randoms = new ConcurrentHashMap<String, Random>();
+
+  /** Number of receivers joined (or bound), by channel, so each one gets its own generator */
+  private ConcurrentHashMap<String, AtomicInteger> receivers = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /** Sends the delayed packets */
+  private ScheduledExecutorService scheduler;
+
+  /** Number of packets lost by a receiver */
+  private LongAdder lost = new LongAdder();
+
+  /** Number of packets received twice */
+  private LongAdder duplicated = new LongAdder();
+
+  /** Number of packets delayed before being sent */
+  private LongAdder delayed = new LongAdder();
+
+  /** Number of packets dropped because their channel had no bandwidth left */
+  private LongAdder overflowed = new LongAdder();
+
+  /**
+  * Constructor
+  *
+  * @param transport {@link #transport}
+  * @param impairment {@link #impairment}
+  * @param seed {@link #seed}
+  */
+  public ImpairedTransport(Transport transport, Impairment impairment, long seed) {
+
+    this.transport = transport;
+    this.impairment = impairment;
+
+    this.seed = seed;
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+      Thread thread = new Thread(runnable, "ImpairedTransport");
+
+      // don't keep the JVM running
+      thread.setDaemon(true);
+
+      return thread;
+    });
+  }
+
+  /**
+  * Sets the impairment of a channel
+  *
+  * @param address Address of the channel
+  * @param port Port of the channel
+  * @param impairment Impairment of the channel
+  */
+  public void setImpairment(String address, int port, Impairment impairment) {
+    impairments.put(address + ":" + port, impairment);
+  }
+
+  @Override
+  public Membership join(String address, int port, int bufferSize, Receiver receiver) throws IOException {
+    String channel = address + ":" + port;
+
+    return transport.join(address, port, bufferSize, impair(channel, getImpairment(channel), receiver));
+  }
+
+  @Override
+  public Membership bind(String address, int bufferSize, Receiver receiver) throws IOException {
+    return transport.bind(address, bufferSize, impair(address + ":endpoint", impairment, receiver));
+  }
+
+  @Override
+  public void send(String address, int port, byte[] packet) throws IOException {
+
+    String channel = address + ":" + port;
+
+    Impairment channelImpairment = getImpairment(channel);
+
+    if (!channelImpairment.delays()) {
+      transport.send(address, port, packet);
+      return;
+    }
+
+    long wait = TimeUnit.MILLISECONDS.toNanos(channelImpairment.sampleDelay(randoms.computeIfAbsent(channel, this::newRandom)));
+
+    if (channelImpairment.rate > 0) {
+
+      long transmission = transmit(channel, channelImpairment, packet.length);
+
+      // channel buffer full
+      if (transmission < 0) {
+        overflowed.increment();
+        return;
+      }
+
+      wait += transmission;
+    }
+
+    if (wait == 0) {
+      transport.send(address, port, packet);
+      return;
+    }
+
+    delayed.increment();
+
+    try {
+      scheduler.schedule(() -> {
+        try {
+          transport.send(address, port, packet);
+        }
+        catch (IOException e) {
+          Log.error("ImpairedTransport: Error sending delayed packet to " + channel + ": " + e);
+        }
+      }, wait, TimeUnit.NANOSECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      // transport closed
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    transport.close();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets lost by a receiver
+  */
+  public long getLost() {
+    return lost.sum();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets received twice
+  */
+  public long getDuplicated() {
+    return duplicated.sum();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets delayed before being sent
+  */
+  public long getDelayed() {
+    return delayed.sum();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets dropped because their channel had no bandwidth left
+  */
+  public long getOverflowed() {
+    return overflowed.sum();
+  }
+
+  /**
+  * Returns the impairment of a channel
+  *
+  * @param channel "address:port"
+  *
+  * @return Impairment set for the channel, {@link #impairment} if none
+  */
+  private Impairment getImpairment(String channel) {
+    return impairments.getOrDefault(channel, impairment);
+  }
+
+  /**
+  * Creates a generator of its own for a channel or receiver
+  *
+  * @param name Name of the channel or receiver
+  *
+  * @return Generator seeded from {@link #seed} and the name
+  */
+  private Random newRandom(String name) {
+    return new Random(seed * 31 + name.hashCode());
+  }
+
+  /**
+  * Wraps a receiver so it loses and duplicates packets
+  *
+  * @param channel "address:port" of the channel received from
+  * @param receiverImpairment Impairment of the receiver
+  * @param receiver Receiver of the packets that get through
+  *
+  * @return Receiver of the packets sent
+  */
+  private Receiver impair(String channel, Impairment receiverImpairment, Receiver receiver) {
+
+    if (receiverImpairment.loss == 0 && receiverImpairment.duplication == 0) {
+      return receiver;
+    }
+
+    // receivers of a channel are told apart by the order they joined in
+    int number = receivers.computeIfAbsent(channel, k -> new AtomicInteger()).incrementAndGet();
+
+    Random random = newRandom(channel + "#" + number);
+
+    return packet -> {
+
+      if (random.nextDouble() < receiverImpairment.loss) {
+        lost.increment();
+        return;
+      }
+
+      receiver.receive(packet);
+
+      if (random.nextDouble() < receiverImpairment.duplication) {
+        duplicated.increment();
+        receiver.receive(packet);
+      }
+    };
+  }
+
+  /**
+  * Takes the time a packet needs on its channel, after the packets already sent
+  *
+  * @param channel "address:port"
+  * @param channelImpairment Impairment of the channel
+  * @param length Size (in bytes) of the packet
+  *
+  * @return Nanoseconds until the packet is through. -1 if it would wait more than {@link Impairment#buffer}
+  */
+  private long transmit(String channel, Impairment channelImpairment, int length) {
+
+    AtomicLong link = links.computeIfAbsent(channel, k -> new AtomicLong(System.nanoTime()));
+
+    long duration = length * 1000000000L / channelImpairment.rate;
+    long limit = TimeUnit.MILLISECONDS.toNanos(channelImpairment.buffer);
+
+    while (true) {
+
+      long now = System.nanoTime();
+      long free = link.get();
+
+      long done = Math.max(now, free) + duration;
+
+      if (done - now > limit) {
+        return -1;
+      }
+
+      if (link.compareAndSet(free, done)) {
+        return done - now;
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package peer.transport;
+
+import java.util.*;
+
+/**
+* How badly a channel carries packets: loss, duplication, delay, reordering and bandwidth.
+*
+* Written as "name=value" pairs separated by commas (or semicolons), e.g. "loss=0.05,delay=2,jitter=10,dist=exponential,rate=1000000".
+* Probabilities go from 0 to 1, times are in milliseconds
+*/
+public class Impairment {
+
+  /** Impairment of a perfect channel */
+  public static final Impairment NONE = new Impairment();
+
+  /**
+  * Distribution of the delay added to each packet
+  */
+  public enum Distribution {
+    /** {@link #delay} plus 0 to {@link #jitter} */
+    UNIFORM,
+    /** {@link #delay} plus an exponential with mean {@link #jitter} (long tail) */
+    EXPONENTIAL,
+    /** Normal with mean {@link #delay} and standard deviation {@link #jitter} (never below 0) */
+    NORMAL
+  }
+
+  /** Probability of a receiver losing a packet. Set with loss=P */
+  double loss = 0;
+
+  /** Probability of a receiver getting a packet twice. Set with dup=P */
+  double duplication = 0;
+
+  /** Probability of a packet being held back {@link #hold} milliseconds, so later packets overtake it. Set with reorder=P */
+  double reorder = 0;
+
+  /** Milliseconds a reordered packet is held back. Set with hold=MS */
+  int hold = 10;
+
+  /** Base delay of each packet. Set with delay=MS */
+  int delay = 0;
+
+  /** Spread of the delay of each packet (see {@link Distribution}). Set with jitter=MS */
+  int jitter = 0;
+
+  /** Distribution of the delay. Set with dist=uniform|exponential|normal */
+  Distribution distribution = Distribution.UNIFORM;
+
+  /** Bytes per second the channel carries, 0 for no limit. Set with rate=BYTES */
+  long rate = 0;
+
+  /** Milliseconds of packets waiting for bandwidth before new ones are dropped. Set with buffer=MS */
+  int buffer = 1000;
+
+  /**
+  * Reads an impairment
+  *
+  * @param spec "name=value" pairs separated by commas or semicolons ("" for a perfect channel)
+  *
+  * @return Impairment read
+  *
+  * @throws IllegalArgumentException If a name or value is unknown, or a value out of range
+  */
+  public static Impairment parse(String spec) {
+
+    Impairment impairment = new Impairment();
+
+    for (String pair : spec.split("[,;]")) {
+
+      if (pair.trim().isEmpty()) {
+        continue;
+      }
+
+      String[] parts = pair.split("=", 2);
+
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("impairment without value: " + pair);
+      }
+
+      String name = parts[0].trim();
+      String value = parts[1].trim();
+
+      switch (name) {
+        case "loss":
+          impairment.loss = probability(name, value);
+          break;
+        case "dup":
+          impairment.duplication = probability(name, value);
+          break;
+        case "reorder":
+          impairment.reorder = probability(name, value);
+          break;
+        case "hold":
+          impairment.hold = (int)nonNegative(name, Integer.parseInt(value));
+          break;
+        case "delay":
+          impairment.delay = (int)nonNegative(name, Integer.parseInt(value));
+          break;
+        case "jitter":
+          impairment.jitter = (int)nonNegative(name, Integer.parseInt(value));
+          break;
+        case "dist":
+          impairment.distribution = Distribution.valueOf(value.toUpperCase());
+          break;
+        case "rate":
+          impairment.rate = nonNegative(name, Long.parseLong(value));
+          break;
+        case "buffer":
+          impairment.buffer = (int)nonNegative(name, Integer.parseInt(value));
+          break;
+        default:
+          throw new IllegalArgumentException("unknown impairment: " + name);
+      }
+    }
+
+    return impairment;
+  }
+
+  /**
+  * Reads a probability
+  *
+  * @param name Name of the value
+  * @param value Value read
+  *
+  * @return Probability
+  *
+  * @throws IllegalArgumentException If not between 0 and 1
+  */
+  private static double probability(String name, String value) {
+
+    double probability = Double.parseDouble(value);
+
+    if (probability < 0 || probability > 1) {
+      throw new IllegalArgumentException(name + " must be between 0 and 1: " + value);
+    }
+
+    return probability;
+  }
+
+  /**
+  * Checks a time, rate or size
+  *
+  * @param name Name of the value
+  * @param value Value read
+  *
+  * @return value
+  *
+  * @throws IllegalArgumentException If negative
+  */
+  private static long nonNegative(String name, long value) {
+
+    if (value < 0) {
+      throw new IllegalArgumentException(name + " can't be negative: " + value);
+    }
+
+    return value;
+  }
+
+  /**
+  * Checks if packets are delayed (or held back) before being sent
+  *
+  * @return TRUE if some packets wait
+  */
+  boolean delays() {
+    return delay > 0 || jitter > 0 || reorder > 0 || rate > 0;
+  }
+
+  /**
+  * Picks the delay of a packet
+  *
+  * @param random Source of randomness
+  *
+  * @return Milliseconds to wait before sending the packet
+  */
+  long sampleDelay(Random random) {
+
+    double sample;
+
+    switch (distribution) {
+      case EXPONENTIAL:
+        sample = delay - jitter * Math.log(1 - random.nextDouble());
+        break;
+      case NORMAL:
+        sample = delay + jitter * random.nextGaussian();
+        break;
+      default:
+        sample = delay + jitter * random.nextDouble();
+        break;
+    }
+
+    if (reorder > 0 && random.nextDouble() < reorder) {
+      sample += hold;
+    }
+
+    return Math.max(0, Math.round(sample));
+  }
+
+  @Override
+  public String toString() {
+    return "loss=" + loss + ",dup=" + duplication + ",reorder=" + reorder + ",hold=" + hold + ",delay=" + delay + ",jitter=" + jitter
+      + ",dist=" + distribution.name().toLowerCase() + ",rate=" + rate + ",buffer=" + buffer;
+  }
+}
@@ -0,0 +1,254 @@
+package peer.transport;
+
+import peer.log.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Transport between peers of the same JVM: a broadcast bus, with no network involved.
+*
+* Sending a packet hands the same bytes to every member of the group, without taking locks,
+* so messages are still encoded and parsed as over the network.
+* Each member has a bounded queue, drained (in order, one packet at a time) by a pool shared by every member,
+* so thousands of peers don't need thousands of threads
+*/
+public class MemoryTransport implements Transport {
+
+  /** Max number of packets waiting in a member's queue. Packets beyond are dropped, like a full socket buffer */
+  public static final int QUEUE_CAPACITY = 4096;
+
+  /** Max number of packets delivered to a member before letting the others run */
+  public static final int BATCH_SIZE = 64;
+
+  /** First port given to the endpoints bound, the next ones follow */
+  public static final int FIRST_PORT = 49152;
+
+  /** Members of each group, by "address:port" */
+  private ConcurrentHashMap<String, CopyOnWriteArrayList<Member>> groups = new ConcurrentHashMap<String, CopyOnWriteArrayList<Member>>();
+
+  /** Delivers the packets */
+  private ExecutorService executor;
+
+  /** Next port given to an endpoint */
+  private AtomicInteger nextPort = new AtomicInteger(FIRST_PORT);
+
+  /** Number of packets delivered */
+  private LongAdder delivered = new LongAdder();
+
+  /** Number of packets dropped because a queue was full */
+  private LongAdder dropped = new LongAdder();
+
+  /**
+  * Member of a group, with the packets waiting to be delivered to it
+  */
+  private class Member implements Membership {
+
+    /** Key of the group */
+    private String group;
+
+    /** Port of the group */
+    private int port;
+
+    /** Called with each packet */
+    private Receiver receiver;
+
+    /** Packets waiting */
+    private ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+
+    /** Number of packets in {@link #queue} */
+    private AtomicInteger size = new AtomicInteger();
+
+    /** TRUE while a thread of the pool delivers the packets (so only one at a time does) */
+    private AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** TRUE until {@link #leave} is called */
+    private volatile boolean open = true;
+
+    /**
+    * Constructor
+    *
+    * @param group {@link #group}
+    * @param port {@link #port}
+    * @param receiver {@link #receiver}
+    */
+    Member(String group, int port, Receiver receiver) {
+      this.group = group;
+      this.port = port;
+      this.receiver = receiver;
+    }
+
+    @Override
+    public int getPort() {
+      return port;
+    }
+
+    @Override
+    public void leave() {
+
+      open = false;
+
+      CopyOnWriteArrayList<Member> members = groups.get(group);
+
+      if (members != null) {
+        members.remove(this);
+      }
+
+      queue.clear();
+    }
+
+    /**
+    * Queues a packet, unless the queue is full
+    *
+    * @param packet Contents of the packet
+    */
+    void offer(byte[] packet) {
+
+      if (!open) {
+        return;
+      }
+
+      if (size.incrementAndGet() > QUEUE_CAPACITY) {
+        size.decrementAndGet();
+        dropped.increment();
+        return;
+      }
+
+      queue.offer(packet);
+
+      schedule();
+    }
+
+    /**
+    * Has a thread of the pool deliver the packets, if none is already
+    */
+    void schedule() {
+
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          executor.execute(this::drain);
+        }
+        catch (RejectedExecutionException e) {
+          // transport closed
+        }
+      }
+    }
+
+    /**
+    * Delivers up to {@link #BATCH_SIZE} packets
+    */
+    void drain() {
+
+      for (int i = 0; i < BATCH_SIZE && open; i++) {
+
+        byte[] packet = queue.poll();
+
+        if (packet == null) {
+          break;
+        }
+
+        size.decrementAndGet();
+        delivered.increment();
+
+        try {
+          receiver.receive(packet);
+        }
+        catch (RuntimeException e) {
+          Log.error("MemoryTransport: Error delivering packet to " + group + ": " + e);
+        }
+      }
+
+      scheduled.set(false);
+
+      // packets queued meanwhile (or left for the next batch)
+      if (open && !queue.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+
+  /**
+  * Constructor.
+  * Delivers with two threads per processor
+  */
+  public MemoryTransport() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+  * Constructor
+  *
+  * @param threads Number of threads delivering the packets
+  */
+  public MemoryTransport(int threads) {
+
+    AtomicInteger count = new AtomicInteger();
+
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+
+      Thread thread = new Thread(runnable, "MemoryTransport-" + count.incrementAndGet());
+
+      // don't keep the JVM running
+      thread.setDaemon(true);
+
+      return thread;
+    });
+  }
+
+  @Override
+  public Membership join(String address, int port, int bufferSize, Receiver receiver) {
+
+    String key = address + ":" + port;
+
+    Member member = new Member(key, port, receiver);
+
+    groups.computeIfAbsent(key, k -> new CopyOnWriteArrayList<Member>()).add(member);
+
+    return member;
+  }
+
+  @Override
+  public Membership bind(String address, int bufferSize, Receiver receiver) {
+    return join(address, nextPort.getAndIncrement(), bufferSize, receiver);
+  }
+
+  @Override
+  public void send(String address, int port, byte[] packet) throws IOException {
+
+    CopyOnWriteArrayList<Member> members = groups.get(address + ":" + port);
+
+    // nobody listening
+    if (members == null) {
+      return;
+    }
+
+    for (Member member : members) {
+      member.offer(packet);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets delivered
+  */
+  public long getDelivered() {
+    return delivered.sum();
+  }
+
+  /**
+  * Getter
+  *
+  * @return Number of packets dropped because a queue was full
+  */
+  public long getDropped() {
+    return dropped.sum();
+  }
+}
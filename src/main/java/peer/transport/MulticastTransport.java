@@ -0,0 +1,192 @@
+package peer.transport;
+
+import peer.log.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+* Transport over UDP: groups are IP multicast groups and endpoints are datagram sockets.
+* Each group joined is listened to by its own thread
+*/
+public class MulticastTransport implements Transport {
+
+  /** Socket sending every packet (created on the first one) */
+  private volatile MulticastSocket sender;
+
+  /**
+  * Group joined (or endpoint bound), listened to by its own thread
+  */
+  private static class SocketMembership implements Membership, Runnable {
+
+    /** Name of the group ("address:port"), for the logs */
+    private String name;
+
+    /** Socket receiving the packets */
+    private DatagramSocket socket;
+
+    /** Multicast group joined. null for endpoints */
+    private InetAddress group;
+
+    /** Max size (in bytes) of the packets received */
+    private int bufferSize;
+
+    /** Called with each packet */
+    private Receiver receiver;
+
+    /** TRUE until {@link #leave} is called */
+    private volatile boolean open = true;
+
+    /**
+    * Constructor
+    *
+    * @param socket {@link #socket}
+    * @param group {@link #group}
+    * @param bufferSize {@link #bufferSize}
+    * @param receiver {@link #receiver}
+    */
+    SocketMembership(DatagramSocket socket, InetAddress group, int bufferSize, Receiver receiver) {
+
+      this.socket = socket;
+      this.group = group;
+      this.bufferSize = bufferSize;
+      this.receiver = receiver;
+
+      name = (group != null ? group.getHostAddress() : "endpoint") + ":" + socket.getLocalPort();
+    }
+
+    @Override
+    public int getPort() {
+      return socket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+
+      while (open) {
+
+        byte[] buf = new byte[bufferSize];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+        try {
+          socket.receive(packet);
+        }
+        catch (IOException e) {
+
+          // socket closed by leave()
+          if (!open) {
+            break;
+          }
+
+          Log.error(name + ": Error receiving packet from socket: " + e);
+          continue;
+        }
+
+        // only the bytes actually received
+        receiver.receive(Arrays.copyOf(packet.getData(), packet.getLength()));
+      }
+    }
+
+    @Override
+    public void leave() {
+
+      open = false;
+
+      if (group != null) {
+        try {
+          ((MulticastSocket)socket).leaveGroup(group);
+        }
+        catch (IOException e) {
+          Log.error(name + ": Error leaving multicast group: " + e);
+        }
+      }
+
+      // a pending receive returns
+      socket.close();
+    }
+  }
+
+  @Override
+  public Membership join(String address, int port, int bufferSize, Receiver receiver) throws IOException {
+
+    MulticastSocket socket = new MulticastSocket(port);
+
+    InetAddress group = InetAddress.getByName(address);
+
+    try {
+      socket.joinGroup(group);
+    }
+    catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+
+    return listen(new SocketMembership(socket, group, bufferSize, receiver));
+  }
+
+  @Override
+  public Membership bind(String address, int bufferSize, Receiver receiver) throws IOException {
+
+    DatagramSocket socket = new DatagramSocket();
+
+    // make room for several packets in a row
+    socket.setReceiveBufferSize(bufferSize * 16);
+
+    return listen(new SocketMembership(socket, null, bufferSize, receiver));
+  }
+
+  @Override
+  public void send(String address, int port, byte[] packet) throws IOException {
+    getSender().send(new DatagramPacket(packet, packet.length, InetAddress.getByName(address), port));
+  }
+
+  @Override
+  public synchronized void close() {
+
+    if (sender != null) {
+      sender.close();
+      sender = null;
+    }
+  }
+
+  /**
+  * Starts the thread listening to a group
+  *
+  * @param membership Group joined
+  *
+  * @return membership
+  */
+  private Membership listen(SocketMembership membership) {
+
+    new Thread(membership, membership.name).start();
+
+    return membership;
+  }
+
+  /**
+  * Getter.
+  * Creates the socket if needed (no need to bind it to a port)
+  *
+  * @return {@link #sender}
+  *
+  * @throws IOException If the socket can't be created
+  */
+  private MulticastSocket getSender() throws IOException {
+
+    MulticastSocket socket = sender;
+
+    if (socket != null) {
+      return socket;
+    }
+
+    synchronized (this) {
+
+      if (sender == null) {
+        sender = new MulticastSocket();
+      }
+
+      return sender;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package peer.transport;
+
+import java.io.*;
+
+/**
+* Carries the packets of the peers.
+*
+* Peers join groups ("address:port") to receive the packets sent to them,
+* and bind endpoints to receive packets sent only to them.
+* Packets are delivered to a {@link Receiver}, one at a time per group joined, in the order they arrive
+*/
+public interface Transport {
+
+  /**
+  * Receives the packets of a group (or endpoint)
+  */
+  interface Receiver {
+
+    /**
+    * Called when a packet arrives
+    *
+    * @param packet Contents of the packet (must not be changed)
+    */
+    void receive(byte[] packet);
+  }
+
+  /**
+  * Group joined (or endpoint bound) by a peer
+  */
+  interface Membership {
+
+    /**
+    * Getter
+    *
+    * @return Port packets are received on
+    */
+    int getPort();
+
+    /**
+    * Stops receiving packets.
+    * Packets not delivered yet are dropped
+    */
+    void leave();
+  }
+
+  /**
+  * Joins a group
+  *
+  * @param address Address of the group
+  * @param port Port of the group
+  * @param bufferSize Max size (in bytes) of the packets received
+  * @param receiver Called with each packet sent to the group
+  *
+  * @return Membership, to leave the group
+  *
+  * @throws IOException If the group can't be joined
+  */
+  Membership join(String address, int port, int bufferSize, Receiver receiver) throws IOException;
+
+  /**
+  * Binds an endpoint on any free port
+  *
+  * @param address Address of the endpoint
+  * @param bufferSize Max size (in bytes) of the packets received
+  * @param receiver Called with each packet sent to the endpoint
+  *
+  * @return Membership, with the port bound
+  *
+  * @throws IOException If no port can be bound
+  */
+  Membership bind(String address, int bufferSize, Receiver receiver) throws IOException;
+
+  /**
+  * Sends a packet to a group (or endpoint).
+  * Like a datagram, it may not be delivered
+  *
+  * @param address Address of the group
+  * @param port Port of the group
+  * @param packet Contents of the packet
+  *
+  * @throws IOException If the packet can't be sent
+  */
+  void send(String address, int port, byte[] packet) throws IOException;
+
+  /**
+  * Releases what the transport holds. Groups joined should be left first
+  */
+  void close();
+}